@@ -176,7 +176,7 @@ public class QScanArgs {
             args.add(CommandKeyword.MINLEN).add(minlen);
         }
 
-        if (minlen != null) {
+        if (maxlen != null) {
             args.add(CommandKeyword.MAXLEN).add(maxlen);
         }
 
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Additive-increase/multiplicative-decrease (AIMD) controller for the {@code COUNT} of {@code GETJOB} commands. The controller
+ * tracks each received batch until all of its jobs are handled. The time between reception and handling of the last job of a
+ * batch is the worst-case latency a job of this batch experiences.
+ * <ul>
+ * <li>If the latency reaches {@link #LATENCY_THRESHOLD} of the {@code RETRY} budget, the count is multiplied by
+ * {@link #DECREASE_FACTOR}.</li>
+ * <li>Otherwise, the count is increased by one if the batch was full.</li>
+ * </ul>
+ * The count is kept between {@code minCount} and {@code maxCount}. Batches are received on the I/O thread and handled on the
+ * thread of the subscriber. Instances are stateful and bound to a single subscription.
+ *
+ * @author Mark Paluch
+ */
+class AdaptiveCount {
+
+    static final double LATENCY_THRESHOLD = 0.5;
+    static final double DECREASE_FACTOR = 0.5;
+
+    private final long minCount;
+    private final long maxCount;
+    private final long retryNanos;
+    private final Queue<Batch> batches = new ConcurrentLinkedQueue<>();
+
+    private volatile long count;
+    private long handled;
+
+    /**
+     * @param minCount the minimal count, must be greater 0
+     * @param maxCount the maximal count, must be greater or equal to {@code minCount}
+     * @param retry the {@code RETRY} period of the jobs
+     * @param timeUnit the retry unit
+     */
+    AdaptiveCount(long minCount, long maxCount, long retry, TimeUnit timeUnit) {
+
+        LettuceAssert.isTrue(minCount > 0, "Min count must be greater 0");
+        LettuceAssert.isTrue(maxCount >= minCount, "Max count must be greater or equal to min count");
+        LettuceAssert.isTrue(retry > 0, "Retry must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+        this.minCount = minCount;
+        this.maxCount = maxCount;
+        this.retryNanos = timeUnit.toNanos(retry);
+        this.count = minCount;
+    }
+
+    /**
+     * Create a new instance using the same settings but a fresh state.
+     *
+     * @return a new {@link AdaptiveCount}
+     */
+    AdaptiveCount newInstance() {
+        return new AdaptiveCount(minCount, maxCount, retryNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     *
+     * @return the current {@code COUNT}
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Record a received batch.
+     *
+     * @param received number of received jobs
+     * @param requestedCount the {@code COUNT} used to fetch the batch
+     */
+    void onReceived(int received, long requestedCount) {
+        onReceived(received, requestedCount, System.nanoTime());
+    }
+
+    void onReceived(int received, long requestedCount, long timestamp) {
+        if (received > 0) {
+            batches.add(new Batch(received, received >= requestedCount, timestamp));
+        }
+    }
+
+    /**
+     * Record a handled job. Adjusts the count once all jobs of the oldest batch are handled.
+     */
+    void onHandled() {
+        onHandled(System.nanoTime());
+    }
+
+    void onHandled(long timestamp) {
+
+        Batch batch = batches.peek();
+        if (batch == null) {
+            return;
+        }
+
+        if (++handled < batch.size) {
+            return;
+        }
+
+        batches.poll();
+        handled = 0;
+
+        long latency = timestamp - batch.timestamp;
+        if (latency >= retryNanos * LATENCY_THRESHOLD) {
+            count = Math.max(minCount, (long) (count * DECREASE_FACTOR));
+        } else if (batch.full) {
+            count = Math.min(maxCount, count + 1);
+        }
+    }
+
+    private static class Batch {
+
+        final int size;
+        final boolean full;
+        final long timestamp;
+
+        Batch(int size, boolean full, long timestamp) {
+            this.size = size;
+            this.full = full;
+            this.timestamp = timestamp;
+        }
+    }
+}
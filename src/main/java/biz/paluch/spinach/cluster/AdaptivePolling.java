@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.GetJobArgs;
+
+/**
+ * Adaptive polling settings for a {@link QueueListener}. Adaptive polling uses two modes:
+ * <ul>
+ * <li>{@link Mode#DRAIN}: The last reply was full, so the next {@code GETJOB} is issued immediately with {@code NOHANG} and
+ * a large {@code COUNT} to drain the queue.</li>
+ * <li>{@link Mode#LONG_POLL}: The queue ran dry, so the next {@code GETJOB} blocks on the server up to a long
+ * {@code TIMEOUT} and returns as soon as a job arrives.</li>
+ * </ul>
+ *
+ * @author Mark Paluch
+ */
+class AdaptivePolling {
+
+    private final long longPollTimeout;
+    private final TimeUnit timeUnit;
+    private final long drainCount;
+
+    AdaptivePolling(long longPollTimeout, TimeUnit timeUnit, long drainCount) {
+
+        LettuceAssert.isTrue(longPollTimeout > 0, "Long poll timeout must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+        LettuceAssert.isTrue(drainCount > 0, "Drain count must be greater 0");
+
+        this.longPollTimeout = longPollTimeout;
+        this.timeUnit = timeUnit;
+        this.drainCount = drainCount;
+    }
+
+    /**
+     * Determine the next polling mode.
+     *
+     * @param received number of jobs received with the last {@code GETJOB}
+     * @param count the {@code COUNT} used for the last {@code GETJOB}
+     * @return the next polling mode
+     */
+    Mode next(int received, long count) {
+        return received >= count ? Mode.DRAIN : Mode.LONG_POLL;
+    }
+
+    /**
+     * Create {@link GetJobArgs} for the {@code mode}.
+     *
+     * @param mode the polling mode
+     * @return the {@link GetJobArgs}
+     */
+    GetJobArgs getJobArgs(Mode mode) {
+
+        if (mode == Mode.DRAIN) {
+            return GetJobArgs.builder().noHang(true).build();
+        }
+
+        return GetJobArgs.builder().timeout(longPollTimeout, timeUnit).build();
+    }
+
+    long getLongPollTimeout() {
+        return longPollTimeout;
+    }
+
+    TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
+    long getDrainCount() {
+        return drainCount;
+    }
+
+    enum Mode {
+        DRAIN, LONG_POLL;
+    }
+}
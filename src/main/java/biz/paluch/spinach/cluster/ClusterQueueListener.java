@@ -0,0 +1,480 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
+import io.netty.util.internal.ConcurrentSet;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Observable;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Cluster-wide job listener. Each subscription consumes jobs from all cluster nodes reported by {@code HELLO} by using one
+ * {@link QueueListener} per node. The jobs of the nodes are merged into a single stream in a round-robin fashion so a busy node
+ * cannot starve the other nodes. The topology is refreshed periodically: listeners are added for new nodes and removed for
+ * nodes that left the cluster. A failed node listener is removed and re-created with the next topology refresh. The listener of a
+ * leaving node completes and is not re-created because leaving nodes are not reported as cluster nodes. Jobs that are buffered
+ * when a subscription closes are returned to their node using {@code NACK}.
+ *
+ * @author Mark Paluch
+ */
+class ClusterQueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
+
+    /**
+     * Number of jobs buffered per node.
+     */
+    static final int NODE_PREFETCH = 32;
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(ClusterQueueListener.class);
+
+    private final Scheduler scheduler;
+    private final Supplier<LocalityAwareConnection<K, V>> topologyConnectionSupplier;
+    private final Function<DisqueNode, QueueListener<K, V>> nodeListenerFactory;
+    private final Function<DisqueNode, LocalityAwareConnection<K, V>> nodeConnectionFactory;
+    private final long refreshInterval;
+    private final TimeUnit timeUnit;
+    private final Set<ClusterSubscription> subscriptions = new ConcurrentSet<>();
+
+    private Consumer<ClusterQueueListener<K, V>> onActive;
+    private Consumer<ClusterQueueListener<K, V>> onIdle;
+
+    /**
+     * @param scheduler the scheduler for topology refreshes and listener notification
+     * @param topologyConnectionSupplier supplier for the connection used to retrieve the cluster nodes
+     * @param nodeListenerFactory factory for a {@link QueueListener} connected to the given node
+     * @param nodeConnectionFactory factory for a connection to the given node used to release buffered jobs
+     * @param refreshInterval interval between topology refreshes
+     * @param timeUnit the interval unit
+     */
+    ClusterQueueListener(Scheduler scheduler, Supplier<LocalityAwareConnection<K, V>> topologyConnectionSupplier,
+            Function<DisqueNode, QueueListener<K, V>> nodeListenerFactory,
+            Function<DisqueNode, LocalityAwareConnection<K, V>> nodeConnectionFactory, long refreshInterval, TimeUnit timeUnit) {
+
+        LettuceAssert.isTrue(refreshInterval > 0, "Refresh interval must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+        this.scheduler = scheduler;
+        this.topologyConnectionSupplier = topologyConnectionSupplier;
+        this.nodeListenerFactory = nodeListenerFactory;
+        this.nodeConnectionFactory = nodeConnectionFactory;
+        this.refreshInterval = refreshInterval;
+        this.timeUnit = timeUnit;
+    }
+
+    /**
+     * Create an {@link Observable} that emits jobs on the {@link Scheduler}. The jobs are buffered per node only, so the
+     * buffered jobs can be released when the subscription is closed.
+     *
+     * @return the {@link Observable}
+     */
+    Observable<Job<K, V>> toObservable() {
+        return Observable.create(this);
+    }
+
+    @Override
+    public void call(Subscriber<? super Job<K, V>> subscriber) {
+
+        ClusterSubscription subscription = new ClusterSubscription(subscriber);
+        subscriptions.add(subscription);
+
+        if (onActive != null) {
+            onActive.accept(this);
+        }
+
+        subscriber.add(Subscriptions.create(subscription::close));
+        subscriber.setProducer(subscription);
+        subscription.start();
+    }
+
+    /**
+     * Stop all subscriptions. The node listeners are closed by their {@link QueueListener}.
+     *
+     * @return a future that completes once the buffered jobs are released
+     */
+    CompletableFuture<Void> close() {
+
+        List<CompletableFuture<Void>> released = new ArrayList<>();
+        for (ClusterSubscription subscription : subscriptions) {
+            released.add(subscription.close());
+        }
+
+        return CompletableFuture.allOf(released.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     *
+     * @return {@literal true} if the listener has no open subscriptions
+     */
+    boolean isIdle() {
+        return subscriptions.isEmpty();
+    }
+
+    /**
+     * Register callbacks for the subscription lifecycle.
+     *
+     * @param onActive invoked when a subscription is started
+     * @param onIdle invoked when the last subscription is closed
+     */
+    void withLifecycle(Consumer<ClusterQueueListener<K, V>> onActive, Consumer<ClusterQueueListener<K, V>> onIdle) {
+        this.onActive = onActive;
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * State of a single cluster-wide subscription.
+     */
+    private class ClusterSubscription implements Producer {
+
+        private final Subscriber<? super Job<K, V>> subscriber;
+        private final Scheduler.Worker worker = scheduler.createWorker();
+        private final Scheduler.Worker emitter = scheduler.createWorker();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        private final Map<String, NodeSubscriber> nodes = new ConcurrentHashMap<>();
+        private final List<NodeSubscriber> emitters = new CopyOnWriteArrayList<>();
+
+        private volatile LocalityAwareConnection<K, V> connection;
+        private int cursor;
+
+        ClusterSubscription(Subscriber<? super Job<K, V>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            worker.schedulePeriodically(this::refresh, 0, refreshInterval, timeUnit);
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n < 0) {
+                throw new IllegalArgumentException("n >= 0 required but it was " + n);
+            }
+
+            if (n > 0) {
+                Demand.add(requested, n);
+                drain();
+            }
+        }
+
+        private void refresh() {
+
+            if (!open.get()) {
+                return;
+            }
+
+            List<DisqueNode> clusterNodes;
+            try {
+                if (connection == null) {
+                    // the HELLO handshake on connect loads the nodes
+                    connection = topologyConnectionSupplier.get();
+                } else {
+                    connection.getSocketAddressSupplier().reloadNodes();
+                }
+                clusterNodes = new ArrayList<>(connection.getSocketAddressSupplier().getNodes());
+            } catch (RuntimeException e) {
+                log.warn("Cannot refresh the cluster topology: " + e.toString(), e);
+                return;
+            }
+
+            Set<String> nodeIds = new HashSet<>();
+            for (DisqueNode disqueNode : clusterNodes) {
+                nodeIds.add(disqueNode.getNodeId());
+                if (!nodes.containsKey(disqueNode.getNodeId())) {
+                    addNode(disqueNode);
+                }
+            }
+
+            for (NodeSubscriber node : nodes.values()) {
+                if (!nodeIds.contains(node.nodeId)) {
+                    log.debug("Node " + node.nodeId + " left the cluster, removing listener");
+                    removeNode(node);
+                }
+            }
+        }
+
+        private void addNode(DisqueNode disqueNode) {
+
+            log.debug("Adding listener for node " + disqueNode.getNodeId());
+
+            NodeSubscriber node = new NodeSubscriber(disqueNode);
+            nodes.put(node.nodeId, node);
+            emitters.add(node);
+
+            try {
+                nodeListenerFactory.apply(disqueNode).toObservable().unsafeSubscribe(node);
+            } catch (RuntimeException e) {
+                node.onError(e);
+            }
+        }
+
+        private void removeNode(NodeSubscriber node) {
+            nodes.remove(node.nodeId, node);
+            node.done = true;
+            node.unsubscribe();
+            drain();
+        }
+
+        /**
+         * Schedule the emission of jobs on the {@link Scheduler} unless an emission is already in progress.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                emitter.schedule(this::emit);
+            }
+        }
+
+        /**
+         * Emit jobs while there is demand. Jobs are taken from the nodes in a round-robin fashion, one job per node at a
+         * time. Nodes that are done are removed once their buffered jobs are emitted.
+         */
+        private void emit() {
+
+            int missed = 1;
+            do {
+
+                if (subscriber.isUnsubscribed()) {
+                    return;
+                }
+
+                long r = requested.get();
+                long emitted = 0;
+
+                while (emitted != r && !subscriber.isUnsubscribed()) {
+
+                    Job<K, V> job = pollNext();
+                    if (job == null) {
+                        break;
+                    }
+
+                    subscriber.onNext(job);
+                    emitted++;
+                }
+
+                if (emitted != 0) {
+                    Demand.produced(requested, emitted);
+                }
+
+                for (NodeSubscriber node : emitters) {
+                    if (node.done && node.queue.isEmpty()) {
+                        emitters.remove(node);
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private Job<K, V> pollNext() {
+
+            // emitters are only removed within the drain loop, concurrent additions are appended
+            int size = emitters.size();
+            for (int i = 0; i < size; i++) {
+
+                int index = (cursor + i) % size;
+                NodeSubscriber node = emitters.get(index);
+                Job<K, V> job = node.queue.poll();
+
+                if (job != null) {
+                    cursor = index + 1;
+                    if (!node.done) {
+                        node.requestMore();
+                    }
+                    return job;
+                }
+            }
+
+            return null;
+        }
+
+        CompletableFuture<Void> close() {
+
+            if (!open.compareAndSet(true, false)) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            subscriptions.remove(this);
+            for (NodeSubscriber node : nodes.values()) {
+                removeNode(node);
+            }
+
+            // the subscriber does not take the buffered jobs anymore, don't interrupt a running emission
+            emitter.schedule(emitter::unsubscribe);
+            CompletableFuture<Void> released = release(emitters);
+
+            if (onIdle != null && subscriptions.isEmpty()) {
+                onIdle.accept(ClusterQueueListener.this);
+            }
+
+            // closing the connection blocks, so run it outside of the calling thread
+            worker.schedule(() -> {
+                try {
+                    if (connection != null) {
+                        connection.getConnection().close();
+                    }
+                } finally {
+                    worker.unsubscribe();
+                }
+            });
+
+            return released;
+        }
+
+        /**
+         * Return the buffered jobs of the {@code nodes} to Disque using {@code NACK}. {@code NACK} only affects jobs known to
+         * the node that receives it, so the jobs are released on a connection to their node. Connecting blocks, so the jobs
+         * are released on a dedicated {@link rx.Scheduler.Worker worker}.
+         *
+         * @param nodes the nodes
+         * @return a future that completes once the jobs are released
+         */
+        private CompletableFuture<Void> release(Collection<NodeSubscriber> nodes) {
+
+            Map<DisqueNode, List<String>> jobIds = new HashMap<>();
+            for (NodeSubscriber node : nodes) {
+
+                Job<K, V> job;
+                while ((job = node.queue.poll()) != null) {
+                    List<String> ids = jobIds.get(node.disqueNode);
+                    if (ids == null) {
+                        ids = new ArrayList<>();
+                        jobIds.put(node.disqueNode, ids);
+                    }
+                    ids.add(job.getId());
+                }
+            }
+
+            if (jobIds.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            CompletableFuture<Void> released = new CompletableFuture<>();
+            Scheduler.Worker releaser = scheduler.createWorker();
+            releaser.schedule(() -> {
+                try {
+                    for (Map.Entry<DisqueNode, List<String>> entry : jobIds.entrySet()) {
+                        release(entry.getKey(), entry.getValue());
+                    }
+                } finally {
+                    released.complete(null);
+                    releaser.unsubscribe();
+                }
+            });
+
+            return released;
+        }
+
+        private void release(DisqueNode disqueNode, List<String> jobIds) {
+
+            log.debug("Releasing {} buffered jobs of node {}", jobIds.size(), disqueNode.getNodeId());
+            LocalityAwareConnection<K, V> connection = null;
+            try {
+                connection = nodeConnectionFactory.apply(disqueNode);
+                connection.getConnection().sync().nack(jobIds.toArray(new String[jobIds.size()]));
+            } catch (RuntimeException e) {
+                log.warn("Cannot release buffered jobs of node " + disqueNode.getNodeId() + ": " + e.toString(), e);
+            } finally {
+                if (connection != null) {
+                    connection.getConnection().close();
+                }
+            }
+        }
+
+        /**
+         * Subscriber for the jobs of a single node.
+         */
+        private class NodeSubscriber extends Subscriber<Job<K, V>> {
+
+            private final DisqueNode disqueNode;
+            private final String nodeId;
+            private final Queue<Job<K, V>> queue = new ConcurrentLinkedQueue<>();
+            private volatile boolean done;
+
+            NodeSubscriber(DisqueNode disqueNode) {
+                this.disqueNode = disqueNode;
+                this.nodeId = disqueNode.getNodeId();
+            }
+
+            @Override
+            public void onStart() {
+                request(NODE_PREFETCH);
+            }
+
+            @Override
+            public void onNext(Job<K, V> job) {
+
+                queue.offer(job);
+                if (!open.get()) {
+                    // a job that arrives after the subscription was closed is not emitted anymore
+                    release(Collections.singletonList(this));
+                    return;
+                }
+                drain();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                log.warn("Listener for node " + nodeId + " failed: " + e.toString(), e);
+                terminated();
+            }
+
+            @Override
+            public void onCompleted() {
+                terminated();
+            }
+
+            private void terminated() {
+                // the node is picked up again with the next topology refresh
+                nodes.remove(nodeId, this);
+                done = true;
+                drain();
+            }
+
+            void requestMore() {
+                request(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Bounded, time-windowed set of the ids of recently completed jobs to detect redeliveries. Ids are not retained as
+ * {@link String strings}, each id is reduced to a 128 bit hash that is stored in primitive arrays:
+ * <ul>
+ * <li>a ring of {@code capacity} slots holding the two hash halves and the completion time. Adding an id to a full ring
+ * evicts the oldest id.</li>
+ * <li>an open-addressing index with linear probing of {@code 2 * capacity} {@code int} slots (rounded up to a power of 2)
+ * pointing into the ring.</li>
+ * </ul>
+ * A tracked id costs 32 bytes if the capacity is a power of 2 (3 {@code long} in the ring plus 2 {@code int} index slots at a
+ * load factor of 0.5) and at most 40 bytes otherwise, 32 MiB for 2^20 ids, allocated once. Hashing an id reads each of its
+ * characters once, a lookup compares the hashes of usually one or two index slots, neither allocates. Ids that completed before
+ * the window are treated as absent. Two ids sharing the same 128 bit hash are indistinguishable, which is negligible for the job
+ * ids of a window. Instances are thread-safe.
+ *
+ * @author Mark Paluch
+ */
+class CompletedJobs {
+
+    private static final int EMPTY = -1;
+
+    private final long windowNanos;
+    private final long[] high;
+    private final long[] low;
+    private final long[] completed;
+    private final int[] index;
+    private final int indexMask;
+
+    private int next;
+    private int size;
+
+    /**
+     * @param capacity maximal number of tracked ids, must be greater 0
+     * @param window time window in which a completed job is considered a duplicate, must be greater 0
+     * @param timeUnit the window unit
+     */
+    CompletedJobs(int capacity, long window, TimeUnit timeUnit) {
+
+        validate(capacity, window, timeUnit);
+
+        this.windowNanos = timeUnit.toNanos(window);
+        this.high = new long[capacity];
+        this.low = new long[capacity];
+        this.completed = new long[capacity];
+
+        int indexSize = Integer.highestOneBit((capacity << 1) - 1) << 1;
+        this.index = new int[indexSize];
+        this.indexMask = indexSize - 1;
+        Arrays.fill(index, EMPTY);
+    }
+
+    /**
+     * Validate the settings.
+     *
+     * @param capacity maximal number of tracked ids
+     * @param window time window in which a completed job is considered a duplicate
+     * @param timeUnit the window unit
+     */
+    static void validate(int capacity, long window, TimeUnit timeUnit) {
+
+        LettuceAssert.isTrue(capacity > 0 && capacity <= 1 << 28, "Capacity must be between 1 and 2^28");
+        LettuceAssert.isTrue(window > 0, "Window must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+    }
+
+    /**
+     * Record the completion of the job {@code id}.
+     *
+     * @param id the job id
+     */
+    void add(String id) {
+        add(id, System.nanoTime());
+    }
+
+    /**
+     *
+     * @param id the job id
+     * @return {@literal true} if the job {@code id} completed within the window
+     */
+    boolean contains(String id) {
+        return contains(id, System.nanoTime());
+    }
+
+    synchronized void add(String id, long now) {
+
+        long h = hashHigh(id);
+        long l = hashLow(id);
+
+        int slot = find(h, l);
+        if (slot != EMPTY) {
+            completed[slot] = now;
+            return;
+        }
+
+        if (size == high.length) {
+            removeFromIndex(next);
+        } else {
+            size++;
+        }
+
+        slot = next;
+        next = next + 1 == high.length ? 0 : next + 1;
+
+        high[slot] = h;
+        low[slot] = l;
+        completed[slot] = now;
+
+        int position = (int) mix(h) & indexMask;
+        while (index[position] != EMPTY) {
+            position = (position + 1) & indexMask;
+        }
+        index[position] = slot;
+    }
+
+    synchronized boolean contains(String id, long now) {
+
+        int slot = find(hashHigh(id), hashLow(id));
+        return slot != EMPTY && now - completed[slot] <= windowNanos;
+    }
+
+    /**
+     *
+     * @return the number of tracked ids, including ids that completed before the window
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private int find(long h, long l) {
+
+        for (int position = (int) mix(h) & indexMask;; position = (position + 1) & indexMask) {
+
+            int slot = index[position];
+            if (slot == EMPTY) {
+                return EMPTY;
+            }
+
+            if (high[slot] == h && low[slot] == l) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Remove the index entry of the ring {@code slot} using backward-shift deletion, so the index needs no tombstones.
+     */
+    private void removeFromIndex(int slot) {
+
+        int position = (int) mix(high[slot]) & indexMask;
+        while (index[position] != slot) {
+            position = (position + 1) & indexMask;
+        }
+
+        int hole = position;
+        for (position = (hole + 1) & indexMask; index[position] != EMPTY; position = (position + 1) & indexMask) {
+
+            int home = (int) mix(high[index[position]]) & indexMask;
+
+            // move the entry into the hole unless its home lies cyclically in (hole, position]
+            if (((position - home) & indexMask) >= ((position - hole) & indexMask)) {
+                index[hole] = index[position];
+                hole = position;
+            }
+        }
+
+        index[hole] = EMPTY;
+    }
+
+    static long hashHigh(String id) {
+
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static long hashLow(String id) {
+
+        long hash = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < id.length(); i++) {
+            hash = (hash + id.charAt(i)) * 0xbf58476d1ce4e5b9L;
+            hash ^= hash >>> 31;
+        }
+        return mix(hash ^ id.length());
+    }
+
+    private static long mix(long hash) {
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility to track the outstanding demand of a subscriber. Demand is capped at {@link Long#MAX_VALUE} which stands for
+ * unbounded demand and is never reduced.
+ *
+ * @author Mark Paluch
+ */
+class Demand {
+
+    /**
+     * Utility constructor.
+     */
+    private Demand() {
+
+    }
+
+    /**
+     * Add {@code n} to the {@code requested} demand.
+     *
+     * @param requested the demand
+     * @param n the number of requested elements, must be greater 0
+     * @return the demand before adding {@code n}
+     */
+    static long add(AtomicLong requested, long n) {
+
+        for (;;) {
+            long current = requested.get();
+            if (current == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+
+            long next = current + n;
+            if (next < 0) {
+                next = Long.MAX_VALUE;
+            }
+
+            if (requested.compareAndSet(current, next)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Subtract {@code n} emitted elements from the {@code requested} demand.
+     *
+     * @param requested the demand
+     * @param n the number of emitted elements
+     * @return the remaining demand
+     * @throws IllegalStateException if more elements were emitted than requested
+     */
+    static long produced(AtomicLong requested, long n) {
+
+        for (;;) {
+            long current = requested.get();
+            if (current == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+
+            long next = current - n;
+            if (next < 0) {
+                throw new IllegalStateException("More produced than requested: " + next);
+            }
+
+            if (requested.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+}
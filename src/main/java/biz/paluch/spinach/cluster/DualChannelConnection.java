@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.DisqueConnection;
+import biz.paluch.spinach.api.async.DisqueAsyncCommands;
+import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Scheduler;
+import rx.Subscription;
+
+/**
+ * Connection with a poll channel and a control channel. Commands of a connection are processed strictly in order, so a control
+ * command such as {@code NACK}, {@code ACKJOB} or {@code WORKING} sent on the poll channel waits behind a blocking
+ * {@code GETJOB} for up to its timeout. Control commands use a second connection to the node of the poll channel instead. The
+ * control channel is opened when the first control command is issued and is reopened once the poll channel switched to
+ * another node. Opening the control channel blocks, so it is opened on a {@link rx.Scheduler.Worker worker}. Control commands
+ * fall back to the poll channel as long as the node of the poll channel is not known and if the control channel cannot be
+ * opened.
+ * <p>
+ * The poll channel is owned by the caller, {@link #close()} closes the control channel only.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class DualChannelConnection<K, V> {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(DualChannelConnection.class);
+
+    private final LocalityAwareConnection<K, V> pollChannel;
+    private final Function<DisqueNode, LocalityAwareConnection<K, V>> controlChannelFactory;
+    private final Scheduler.Worker worker;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    private volatile ControlChannel<K, V> controlChannel;
+
+    /**
+     * @param pollChannel the poll channel, must not be {@literal null}
+     * @param controlChannelFactory factory for a control channel connected to the given node, must not be {@literal null}
+     * @param scheduler the scheduler to open and close the control channel
+     */
+    DualChannelConnection(LocalityAwareConnection<K, V> pollChannel,
+            Function<DisqueNode, LocalityAwareConnection<K, V>> controlChannelFactory, Scheduler scheduler) {
+
+        LettuceAssert.notNull(pollChannel, "Poll channel must not be null");
+        LettuceAssert.notNull(controlChannelFactory, "Control channel factory must not be null");
+
+        this.pollChannel = pollChannel;
+        this.controlChannelFactory = controlChannelFactory;
+        this.worker = scheduler.createWorker();
+    }
+
+    /**
+     *
+     * @return the connection for {@code GETJOB} commands
+     */
+    DisqueConnection<K, V> getPollChannel() {
+        return pollChannel.getConnection();
+    }
+
+    /**
+     * Retrieve the asynchronous commands of the control channel. Opens the control channel to the node of the poll channel
+     * unless it is open.
+     *
+     * @return a future that completes with the control commands
+     */
+    CompletableFuture<DisqueAsyncCommands<K, V>> control() {
+
+        DisqueNode node = getPollNode();
+        if (node == null || !open.get()) {
+            return CompletableFuture.completedFuture(pollChannel.getConnection().async());
+        }
+
+        ControlChannel<K, V> current = controlChannel;
+        if (current != null && current.nodeId.equals(node.getNodeId())) {
+            return current.commands;
+        }
+
+        synchronized (this) {
+
+            current = controlChannel;
+            if (current != null && current.nodeId.equals(node.getNodeId())) {
+                return current.commands;
+            }
+
+            ControlChannel<K, V> previous = current;
+            ControlChannel<K, V> next = new ControlChannel<K, V>(node.getNodeId());
+            controlChannel = next;
+
+            Subscription scheduled = worker.schedule(() -> {
+
+                close(previous);
+
+                if (!open.get()) {
+                    next.commands.complete(pollChannel.getConnection().async());
+                    return;
+                }
+
+                try {
+                    next.connection = controlChannelFactory.apply(node).getConnection();
+                    next.commands.complete(next.connection.async());
+                } catch (RuntimeException e) {
+                    log.warn("Cannot open control channel to " + node.getNodeId() + ", using the poll channel: " + e.toString());
+                    next.commands.complete(pollChannel.getConnection().async());
+
+                    // retry with the next control command
+                    synchronized (this) {
+                        if (controlChannel == next) {
+                            controlChannel = null;
+                        }
+                    }
+                }
+            });
+
+            // the worker rejects tasks once the connection is closed
+            if (scheduled.isUnsubscribed()) {
+                next.commands.complete(pollChannel.getConnection().async());
+            }
+
+            return next.commands;
+        }
+    }
+
+    /**
+     *
+     * @return the id of the node of the control channel or {@literal null} if the control channel is not open
+     */
+    String getControlNodeId() {
+
+        ControlChannel<K, V> current = controlChannel;
+        return current != null && current.connection != null ? current.nodeId : null;
+    }
+
+    private DisqueNode getPollNode() {
+
+        String nodeId = pollChannel.getSocketAddressSupplier().getCurrentNodeId();
+        if (nodeId == null) {
+            return null;
+        }
+
+        for (DisqueNode node : pollChannel.getSocketAddressSupplier().getNodes()) {
+            if (nodeId.equals(node.getNodeId())) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the control channel. Control commands that are issued afterwards use the poll channel.
+     */
+    void close() {
+
+        if (!open.compareAndSet(true, false)) {
+            return;
+        }
+
+        // closing the connection blocks, so run it outside of the calling thread
+        worker.schedule(() -> {
+            try {
+                close(controlChannel);
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+    }
+
+    private static void close(ControlChannel<?, ?> channel) {
+        if (channel != null && channel.connection != null) {
+            channel.connection.close();
+        }
+    }
+
+    /**
+     * Control channel to a node. The connection is set once it is open.
+     */
+    private static class ControlChannel<K, V> {
+
+        final String nodeId;
+        final CompletableFuture<DisqueAsyncCommands<K, V>> commands = new CompletableFuture<>();
+        volatile DisqueConnection<K, V> connection;
+
+        ControlChannel(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+}
@@ -16,26 +16,39 @@
 package biz.paluch.spinach.cluster;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
+import rx.Producer;
+import rx.Scheduler;
 import rx.Subscriber;
-import rx.Subscription;
 import rx.functions.Action0;
+import biz.paluch.spinach.api.CommandType;
 import biz.paluch.spinach.api.DisqueConnection;
+import biz.paluch.spinach.api.GetJobArgs;
 import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.api.async.DisqueAsyncCommands;
 import biz.paluch.spinach.api.sync.DisqueCommands;
+import biz.paluch.spinach.output.JobListOutput;
+import biz.paluch.spinach.output.JobPool;
 
-import com.google.common.collect.ConcurrentHashMultiset;
-import com.google.common.collect.Multiset;
-import com.google.common.collect.Multisets;
 import com.lambdaworks.redis.RedisChannelHandler;
 import com.lambdaworks.redis.RedisChannelWriter;
 import com.lambdaworks.redis.RedisException;
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.internal.LettuceAssert;
+import com.lambdaworks.redis.protocol.AsyncCommand;
+import com.lambdaworks.redis.protocol.Command;
+import com.lambdaworks.redis.protocol.CommandArgs;
 import com.lambdaworks.redis.protocol.CommandHandler;
 
 import io.netty.channel.Channel;
@@ -43,99 +56,534 @@ import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 /**
- * Subscription action to emit {@link Job} objects. This action is intended to be {@link #call() called} regularly by a
- * {@link rx.Scheduler} and emits {@link Job jobs} upon reception from Disque.
+ * Subscription action to emit {@link Job} objects. This action is {@link #call() started} once and issues the next
+ * {@code GETJOB} command from the completion callback of the previous one using the asynchronous API. Jobs are emitted upon
+ * reception from Disque on the I/O thread that completed the command, so no thread is blocked while waiting for jobs.
+ * <p>
+ * The action is the {@link Producer} of its {@link Subscriber} and honors backpressure: The {@code COUNT} of each
+ * {@code GETJOB} command is limited by the outstanding demand and polling stops until the {@link Subscriber} requests more jobs.
+ * </p>
+ * <p>
+ * With {@link AdaptivePolling adaptive polling} enabled, the action drains the queues with {@code NOHANG} while replies are
+ * full and switches to a server-side long poll once the queues run dry. An {@link AdaptiveCount} adjusts the {@code COUNT}
+ * based on the handler latency.
+ * </p>
+ * <p>
+ * {@link InFlightLimits In-flight limits} leave queues that reached their limit out of the {@code GETJOB} command and limit the
+ * {@code COUNT} to the remaining capacity. Polling pauses while all queues are at their limit.
+ * </p>
+ * <p>
+ * With {@link WeightedFairness weighted fairness}, the queues of each {@code GETJOB} command are ordered so that the queue
+ * with the smallest weighted share of received jobs is drained first.
+ * </p>
+ * <p>
+ * Polling pauses while the listener has no queues, which is the case while a {@link QueueDiscovery} has not discovered a
+ * non-empty queue. The listener resumes polling once queues are discovered. {@link PausedQueues Paused queues} are left out of
+ * the {@code GETJOB} command and polling pauses while all queues are paused.
+ * </p>
+ * <p>
+ * With a {@link PrefetchBuffer prefetch buffer}, fetching is decoupled from the demand of the {@link Subscriber}. Jobs are
+ * fetched until the buffer reaches its high watermark and emitted from the buffer on the {@link rx.Scheduler.Worker worker}
+ * according to the demand. Jobs that remain in the buffer on close are returned to Disque with a single {@code NACK}.
+ * </p>
+ * <p>
+ * In batch mode, the action emits the reply of each {@code GETJOB} command as one {@link List} and the demand is counted in
+ * batches. The {@code COUNT} is not limited by the demand in batch mode.
+ * </p>
+ * <p>
+ * With a {@link DualChannelConnection control channel}, the {@code NACK} commands releasing prefetched and in-flight jobs are
+ * sent on a second connection to the polled node and do not wait behind an outstanding {@code GETJOB} command.
+ * </p>
  * <p>
  * The subscription action allows tracking of the producer nodeId when receiving messages from Disque and a reconnect/locality
- * improvement by switching the Disque node. Instances are stateful and need to be {@link #close(long, TimeUnit)} closed. The
- * shutdown is graceful and waits up to the specified getjobs timeout. The connection is force closed on timeout expiry.
+ * improvement by switching the Disque node. Operations that require a blocking call (such as reloading the cluster nodes
+ * after a {@code LEAVING} error) are performed on a {@link rx.Scheduler.Worker worker}. Closing the connection is performed on
+ * a dedicated worker. Instances
+ * are stateful and need to be {@link #close(long, TimeUnit)} closed. The shutdown is graceful and waits up to the specified
+ * getjobs timeout for the outstanding {@code GETJOB} command. The connection is force closed on timeout expiry.
  * </p>
  * 
  */
-class GetJobsAction<K, V> implements Action0 {
+class GetJobsAction<K, V> implements Action0, Producer {
 
     private static final InternalLogger log = InternalLoggerFactory.getInstance(GetJobsAction.class);
 
     private final DisqueConnection<K, V> disqueConnection;
+    private final DualChannelConnection<K, V> dualChannel;
     private final String subscriptionId;
-    private final Subscriber<? super Job<K, V>> subscriber;
-    private final boolean jobLocalityTracking;
+    private final Subscriber<Object> subscriber;
+    private final boolean batches;
+    private final NodeLocality locality;
     private final GetJobsArgs<K> getJobsArgs;
+    private final AdaptivePolling adaptivePolling;
+    private final AdaptiveCount adaptiveCount;
+    private final InFlightLimits<K> inFlightLimits;
+    private final WeightedFairness<K> fairness;
+    private final PausedQueues<K, V> pausedQueues;
+    private final InFlightJobs inFlightJobs;
+    private final JobPool<K, V> jobPool;
+    private final PrefetchBuffer<K, V> prefetch;
+    private final Scheduler scheduler;
+    private final Scheduler.Worker worker;
 
     private final AtomicBoolean enabled = new AtomicBoolean(true);
     private final AtomicBoolean open = new AtomicBoolean(true);
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final CompletableFuture<Void> released = new CompletableFuture<>();
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
 
-    private final Multiset<String> nodePrefixes = ConcurrentHashMultiset.create();
     private final NodeIdAwareSocketAddressSupplier socketAddressSupplier;
-    private ReentrantLock reentrantLock = new ReentrantLock();
 
     private volatile boolean switchNodesCheck = false;
-    private volatile Subscription schedulerSubscription;
+    private volatile boolean replyProcessed = false;
+    private volatile RedisFuture<List<Job<K, V>>> outstanding;
+    private volatile CompletableFuture<?> processing = CompletableFuture.completedFuture(null);
+    private volatile AdaptivePolling.Mode mode = AdaptivePolling.Mode.DRAIN;
 
+    @SuppressWarnings("unchecked")
     public GetJobsAction(Supplier<QueueListener.LocalityAwareConnection<K, V>> disqueConnectionSupplier, String subscriptionId,
-                         Subscriber<? super Job<K, V>> subscriber, boolean jobLocalityTracking, GetJobsArgs<K> getJobsArgs) {
+            Subscriber<?> subscriber, GetJobsArgs<K> getJobsArgs, GetJobsSettings<K, V> settings, Scheduler scheduler) {
+
+        LettuceAssert.isTrue(!settings.isBatches() || settings.getPrefetch() == null,
+                "Batch emission does not support a prefetch buffer");
 
         QueueListener.LocalityAwareConnection<K, V> localityAwareConnection = disqueConnectionSupplier.get();
 
         this.disqueConnection = localityAwareConnection.getConnection();
         this.socketAddressSupplier = localityAwareConnection.getSocketAddressSupplier();
+        this.dualChannel = settings.getControlChannelFactory() != null
+                ? new DualChannelConnection<K, V>(localityAwareConnection, settings.getControlChannelFactory(), scheduler) : null;
 
         this.subscriptionId = subscriptionId;
-        this.subscriber = subscriber;
-        this.jobLocalityTracking = jobLocalityTracking;
+        this.subscriber = (Subscriber<Object>) subscriber;
+        this.batches = settings.isBatches();
+        this.locality = settings.getLocality();
         this.getJobsArgs = getJobsArgs;
+        this.adaptivePolling = settings.getAdaptivePolling();
+        this.adaptiveCount = settings.getAdaptiveCount();
+        this.inFlightLimits = settings.getInFlightLimits();
+        this.fairness = settings.getFairness();
+        this.pausedQueues = settings.getPausedQueues();
+        this.inFlightJobs = settings.getInFlightJobs();
+        this.jobPool = settings.getJobPool();
+        this.prefetch = settings.getPrefetch();
+        this.scheduler = scheduler;
+        this.worker = scheduler.createWorker();
 
         disqueConnection.async().clientSetname(subscriptionId);
+
+        if (inFlightLimits != null) {
+            inFlightLimits.onAvailable(this::call);
+        }
+    }
+
+    /**
+     * Request {@code n} jobs respective batches and resume polling if the action is idle.
+     *
+     * @param n the number of jobs respective batches to request
+     */
+    @Override
+    public void request(long n) {
+
+        if (n < 0) {
+            throw new IllegalArgumentException("n >= 0 required but it was " + n);
+        }
+
+        if (n != 0) {
+            Demand.add(requested, n);
+            if (prefetch != null) {
+                drain();
+            }
+            call();
+        }
     }
 
+    /**
+     * Start polling unless a {@code GETJOB} command is already outstanding. Subsequent commands are issued from the completion
+     * callback of the previous command as long as there is demand respective capacity in the prefetch buffer.
+     */
     @Override
     public void call() {
+        if (polling.compareAndSet(false, true)) {
+            poll();
+        }
+    }
+
+    private void poll() {
+
+        if (!enabled.get() || !open.get()) {
+            polling.set(false);
+            return;
+        }
+
+        if (subscriber.isUnsubscribed()) {
+            polling.set(false);
+            scheduleClose();
+            return;
+        }
 
-        if (!enabled.get()) {
+        long limit = prefetch != null ? prefetch.remainingCapacity() : requested.get();
+        if (limit == 0 || (prefetch != null && prefetch.isAboveHighWatermark())) {
+            pause();
             return;
         }
 
-        if (subscriber.isUnsubscribed() && open.get()) {
-            close(getJobsArgs.getTimeout(), getJobsArgs.getTimeUnit());
+        K[] queues = getQueues();
+        if (queues.length == 0) {
+            pause();
             return;
         }
 
+        long count = batches ? getCount() : Math.min(getCount(), limit);
+        if (inFlightLimits != null) {
+            queues = inFlightLimits.getAvailableQueues(queues);
+            if (queues.length == 0) {
+                pause();
+                return;
+            }
+            count = Math.min(count, inFlightLimits.getRemainingCapacity(queues));
+        }
+
+        if (fairness != null) {
+            queues = fairness.order(queues);
+        }
+
         if (switchNodesCheck) {
             switchNodesCheck = false;
             reconnectToNearestProducer(disqueConnection, false);
         }
 
-        if (!disqueConnection.isOpen()) {
+        GetJobArgs args = null;
+        if (adaptivePolling != null) {
+            args = adaptivePolling.getJobArgs(mode);
+        } else if (getJobsArgs.isWithCounters() || jobPool != null) {
+            args = GetJobArgs.builder().timeout(getJobsArgs.getTimeout(), getJobsArgs.getTimeUnit()).build();
+        }
+
+        if (args != null && getJobsArgs.isWithCounters()) {
+            args.setWithCounters(true);
+        }
+
+        RedisFuture<List<Job<K, V>>> future;
+        if (jobPool != null) {
+            future = getjobs(disqueConnection, args, count, queues);
+        } else if (args != null) {
+            future = disqueConnection.async().getjobs(args, count, queues);
+        } else {
+            future = disqueConnection.async().getjobs(getJobsArgs.getTimeout(), getJobsArgs.getTimeUnit(), count, queues);
+        }
+
+        outstanding = future;
+        long requestedCount = count;
+        processing = future.toCompletableFuture()
+                .whenComplete((jobs, throwable) -> onCompletion(jobs, throwable, requestedCount));
+    }
+
+    /**
+     * Dispatch a {@code GETJOB} command whose output emits recycled jobs of the {@link JobPool}.
+     */
+    private RedisFuture<List<Job<K, V>>> getjobs(DisqueConnection<K, V> connection, GetJobArgs args, long count, K[] queues) {
+
+        CommandArgs<K, V> commandArgs = new CommandArgs<K, V>(jobPool.getCodec());
+        args.build(commandArgs, count, queues);
+
+        AsyncCommand<K, V, List<Job<K, V>>> command = new AsyncCommand<K, V, List<Job<K, V>>>(
+                new Command<K, V, List<Job<K, V>>>(CommandType.GETJOB, new JobListOutput<K, V>(jobPool.getCodec(), jobPool),
+                        commandArgs));
+        connection.dispatch(command);
+        return command;
+    }
+
+    private void onCompletion(List<Job<K, V>> jobs, Throwable throwable, long count) {
+
+        if (throwable != null) {
+            onError(unwrap(throwable));
             return;
         }
 
         try {
-            reentrantLock.lock();
-            if (!open.get()) {
-                return;
+            if (adaptiveCount != null) {
+                adaptiveCount.onReceived(jobs.size(), count);
+            }
+
+            if (pausedQueues != null && jobs.isEmpty()) {
+                pausedQueues.onEmptyReply();
+            }
+
+            if (inFlightJobs != null) {
+                for (Job<K, V> job : jobs) {
+                    inFlightJobs.add(job.getId());
+                }
+            }
+
+            if (inFlightLimits != null) {
+                for (Job<K, V> job : jobs) {
+                    inFlightLimits.onReceived(job.getQueue());
+                }
+            }
+
+            if (fairness != null) {
+                for (Job<K, V> job : jobs) {
+                    fairness.onReceived(job.getQueue());
+                }
             }
 
-            try {
-                List<Job<K, V>> getjobs = disqueConnection.sync().getjobs(getJobsArgs.getTimeout(), getJobsArgs.getTimeUnit(),
-                        getJobsArgs.getCount(), getJobsArgs.getQueues());
-                for (Job<K, V> job : getjobs) {
+            if (prefetch != null) {
+                for (Job<K, V> job : jobs) {
+                    trackNodeStats(job.getId());
+                    if (!prefetch.offer(job)) {
+                        throw new IllegalStateException("Prefetch buffer of " + subscriptionId + " overflow");
+                    }
+                }
+                drain();
+            } else if (batches) {
+                for (Job<K, V> job : jobs) {
+                    trackNodeStats(job.getId());
+                }
+
+                if (!jobs.isEmpty()) {
+                    subscriber.onNext(jobs);
+                    Demand.produced(requested, 1);
+                }
+            } else {
+                for (Job<K, V> job : jobs) {
                     trackNodeStats(job.getId());
                     subscriber.onNext(job);
                 }
-            } catch (RedisException e) {
-                if (e.getMessage() != null && e.getMessage().startsWith("LEAVING")) {
+
+                if (!jobs.isEmpty()) {
+                    Demand.produced(requested, jobs.size());
+                }
+            }
+
+            if (adaptivePolling != null) {
+                mode = adaptivePolling.next(jobs.size(), count);
+            }
+        } catch (RuntimeException e) {
+            terminate(e);
+            return;
+        }
+
+        poll();
+    }
+
+    /**
+     * Schedule draining of the prefetch buffer on the {@link rx.Scheduler.Worker worker} unless draining is already in
+     * progress.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() == 0) {
+            worker.schedule(this::drainLoop);
+        }
+    }
+
+    /**
+     * Emit jobs from the prefetch buffer according to the demand. Buffered jobs are released to Disque once the action is
+     * disabled. Resumes polling once the buffer is below its low watermark.
+     */
+    private void drainLoop() {
+
+        int missed = 1;
+        for (;;) {
+
+            if (!enabled.get()) {
+                release();
+            } else {
+                long r = requested.get();
+                long e = 0;
+
+                while (e != r) {
+                    Job<K, V> job = prefetch.poll();
+                    if (job == null) {
+                        break;
+                    }
+                    subscriber.onNext(job);
+                    e++;
+                }
+
+                if (e != 0) {
+                    Demand.produced(requested, e);
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+
+        if (enabled.get() && prefetch.isBelowLowWatermark()) {
+            call();
+        }
+    }
+
+    /**
+     * Return all buffered jobs to Disque using a single {@code NACK}. Completes {@link #released} once the jobs of the last
+     * reply are released.
+     */
+    private void release() {
+
+        boolean last = replyProcessed;
+        List<String> jobIds = new ArrayList<>(prefetch.size());
+        Job<K, V> job;
+        while ((job = prefetch.poll()) != null) {
+            jobIds.add(job.getId());
+            if (inFlightJobs != null) {
+                inFlightJobs.remove(job.getId());
+            }
+        }
+
+        if (jobIds.isEmpty()) {
+            if (last) {
+                released.complete(null);
+            }
+            return;
+        }
+
+        log.debug("Releasing {} prefetched jobs of {}", jobIds.size(), subscriptionId);
+        String[] ids = jobIds.toArray(new String[jobIds.size()]);
+        control().thenCompose(commands -> commands.nack(ids).toCompletableFuture()).whenComplete((count, throwable) -> {
+            if (throwable != null) {
+                log.warn("Could not release prefetched jobs of " + subscriptionId + ": " + throwable.getMessage());
+            }
+            if (last) {
+                released.complete(null);
+            }
+        });
+    }
+
+    /**
+     *
+     * @return the {@code COUNT} for the next {@code GETJOB} command regardless of the demand
+     */
+    long getCount() {
+
+        if (adaptiveCount != null) {
+            return adaptiveCount.getCount();
+        }
+
+        if (adaptivePolling != null) {
+            return adaptivePolling.getDrainCount();
+        }
+
+        return getJobsArgs.getCount();
+    }
+
+    /**
+     *
+     * @return the queues to poll, excluding paused queues
+     */
+    private K[] getQueues() {
+
+        K[] queues = getJobsArgs.getQueues();
+        return pausedQueues != null ? pausedQueues.getActiveQueues(queues) : queues;
+    }
+
+    /**
+     *
+     * @return the achieved shares of the received jobs per queue or {@literal null} if weighted fairness is disabled
+     */
+    Map<K, Double> getShares() {
+        return fairness != null ? fairness.getShares() : null;
+    }
+
+    String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     * Stop polling until new demand arrives respective the prefetch buffer drains below its low watermark or a queue drops
+     * below its in-flight limit respective queues are discovered. Demand that was signalled concurrently resumes polling right
+     * away.
+     */
+    private void pause() {
+
+        polling.set(false);
+
+        K[] queues = getQueues();
+        if ((prefetch != null ? prefetch.isBelowLowWatermark() : requested.get() != 0) && queues.length != 0
+                && (inFlightLimits == null || inFlightLimits.hasCapacity(queues))) {
+            call();
+        }
+    }
+
+    private void onError(Throwable throwable) {
+
+        if (!enabled.get() || !open.get() || throwable instanceof CancellationException) {
+            polling.set(false);
+            return;
+        }
+
+        if (throwable instanceof RedisException && throwable.getMessage() != null
+                && throwable.getMessage().startsWith("LEAVING")) {
+
+            // a pinned connection would reconnect to the leaving node, complete so the owner drops the node instead
+            if (socketAddressSupplier instanceof NodePinnedSocketAddressSupplier) {
+                log.info("Pinned node {} of {} is leaving, completing the subscription",
+                        ((NodePinnedSocketAddressSupplier) socketAddressSupplier).getNodeId(), subscriptionId);
+                complete();
+                return;
+            }
+
+            // reloading the nodes requires a blocking call, don't block the I/O thread
+            worker.schedule(() -> {
+                try {
                     String nodeIdPrefix = getCurrentNodeIdPrefix();
-                    nodePrefixes.remove(nodeIdPrefix);
+                    if (locality != null) {
+                        locality.remove(nodeIdPrefix);
+                    }
                     log.info("Received LEAVING from NodeId with prefix {}", nodeIdPrefix);
                     forcedReconnect();
+                } catch (RuntimeException e) {
+                    terminate(e);
                     return;
                 }
+                poll();
+            });
+            return;
+        }
 
-                throw e;
-            }
-        } finally {
-            reentrantLock.unlock();
+        terminate(throwable);
+    }
+
+    /**
+     * Stop polling and propagate the {@code throwable} to the {@link Subscriber}.
+     *
+     * @param throwable the cause
+     */
+    private void terminate(Throwable throwable) {
+
+        polling.set(false);
+        if (!subscriber.isUnsubscribed()) {
+            subscriber.onError(throwable);
         }
+        scheduleClose();
+    }
+
+    /**
+     * Stop polling and complete the {@link Subscriber}.
+     */
+    private void complete() {
+
+        polling.set(false);
+        if (!subscriber.isUnsubscribed()) {
+            subscriber.onCompleted();
+        }
+        scheduleClose();
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
     }
 
     /**
@@ -146,35 +594,147 @@ class GetJobsAction<K, V> implements Action0 {
         reconnectToNearestProducer(disqueConnection, true);
     }
 
-    protected void setSelfSubscription(Subscription self) {
-        this.schedulerSubscription = self;
+    /**
+     * Unsubscribe and try to close the resources gracefully. Blocks until the resources are closed.
+     *
+     * @param timeout
+     * @param timeUnit
+     * @see #closeAsync(long, TimeUnit)
+     */
+    void close(long timeout, TimeUnit timeUnit) {
+        closeAsync(timeout, timeUnit).join();
     }
 
     /**
-     * Unsubscribe and try to close the resources gracefully. If the grace period times out (minimum of 100 ms, max timeout plus
-     * 100ms), the connection is closed forcibly.
+     * Unsubscribe and try to close the resources gracefully without blocking the calling thread. The outstanding {@code GETJOB}
+     * command is awaited up to the {@code timeout}. An outstanding long poll is awaited at most for the getjobs timeout to keep
+     * shutdown fast unless jobs need to be released. In that case, the {@code timeout} starts after the long poll timeout so the
+     * {@code NACK} is sent before the connection is closed. Prefetched jobs and {@link InFlightJobs in-flight jobs} that were not
+     * emitted to the subscriber are released using {@code NACK} and no longer emitted. Jobs that are handled at this point are
+     * left to their handler. With a control channel, the prefetched jobs are released right away instead of after the outstanding
+     * command. If the grace period times out, the connection is closed forcibly. The connection is closed on a dedicated
+     * {@link rx.Scheduler.Worker worker} because closing must not happen on the I/O thread. Subsequent calls return the same
+     * future.
      *
      * @param timeout
      * @param timeUnit
+     * @return a future that completes once the connection is closed
      */
-    void close(long timeout, TimeUnit timeUnit) {
+    CompletableFuture<Void> closeAsync(long timeout, TimeUnit timeUnit) {
+
         disable();
 
-        try {
-            if (!reentrantLock.tryLock(timeout, timeUnit)) {
-                log.warn("Could not gracefully close the subscription connection " + subscriptionId + " within " + timeout
-                        + " " + timeUnit + ", forcing close of connection");
+        if (!closing.compareAndSet(false, true)) {
+            return closed;
+        }
+
+        if (adaptivePolling != null && mode == AdaptivePolling.Mode.LONG_POLL) {
+
+            if (prefetch != null || inFlightJobs != null) {
+                // jobs are released after the long poll returned, so the connection must stay open until the NACK completed
+                timeout = adaptivePolling.getTimeUnit().toNanos(adaptivePolling.getLongPollTimeout())
+                        + timeUnit.toNanos(timeout);
+                timeUnit = TimeUnit.NANOSECONDS;
+            } else if (getJobsArgs.getTimeUnit().toNanos(getJobsArgs.getTimeout()) < timeUnit.toNanos(timeout)) {
+                timeout = getJobsArgs.getTimeout();
+                timeUnit = getJobsArgs.getTimeUnit();
             }
-        } catch (InterruptedException e) {
-            throw new IllegalStateException(e);
-        } finally {
-            if (reentrantLock.isLocked() && reentrantLock.isHeldByCurrentThread()) {
-                reentrantLock.unlock();
+        }
+
+        // wait until the reply of the outstanding command is processed
+        CompletableFuture<?> completion = processing.handle((ignore, throwable) -> null);
+        if (prefetch != null) {
+
+            if (dualChannel != null) {
+                // the control channel does not wait for the outstanding command, release the buffered jobs right away
+                drain();
+            }
+
+            // the jobs of the outstanding command are released once it completed
+            completion = completion.handle((jobs, throwable) -> {
+                replyProcessed = true;
+                drain();
+                return null;
+            }).thenCompose(ignore -> released);
+        }
+
+        if (inFlightJobs != null) {
+            completion = completion.thenCompose(ignore -> releaseInFlight());
+        }
+
+        long gracePeriod = timeout;
+        TimeUnit gracePeriodUnit = timeUnit;
+        Scheduler.Worker closer = scheduler.createWorker();
+        closer.schedule(() -> {
+            if (!closed.isDone()) {
+                log.warn("Could not gracefully close the subscription connection " + subscriptionId + " within " + gracePeriod
+                        + " " + gracePeriodUnit + ", forcing close of connection");
+                closeNow(closer);
+            }
+        }, timeout, timeUnit);
+
+        completion.whenComplete((ignore, throwable) -> closer.schedule(() -> closeNow(closer)));
+        return closed;
+    }
+
+    /**
+     * Return the jobs that were received but not emitted to the subscriber to Disque using a single {@code NACK}. Emission
+     * stops first, so the released jobs are not handled anymore.
+     *
+     * @return a future that completes once the jobs are released
+     */
+    private CompletableFuture<Void> releaseInFlight() {
+
+        String[] jobIds = inFlightJobs.release();
+        if (jobIds.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        log.debug("Releasing {} in-flight jobs of {}", jobIds.length, subscriptionId);
+        return control().thenCompose(commands -> commands.nack(jobIds).toCompletableFuture()).handle((count, throwable) -> {
+            if (throwable != null) {
+                log.warn("Could not release in-flight jobs of " + subscriptionId + ": " + throwable.getMessage());
             }
+            return null;
+        });
+    }
+
+    /**
+     *
+     * @return the commands for control commands, the control channel if enabled, otherwise the poll connection
+     */
+    private CompletableFuture<DisqueAsyncCommands<K, V>> control() {
+        return dualChannel != null ? dualChannel.control() : CompletableFuture.completedFuture(disqueConnection.async());
+    }
+
+    /**
+     * Schedule closing of the resources without blocking the calling thread.
+     */
+    void scheduleClose() {
+
+        if (!open.get()) {
+            return;
         }
 
-        closeConnection();
-        unsubscribe();
+        closeAsync(getJobsArgs.getTimeout(), getJobsArgs.getTimeUnit());
+    }
+
+    /**
+     *
+     * @return a future that completes once the connection is closed
+     */
+    CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    private void closeNow(Scheduler.Worker closer) {
+        try {
+            closeConnection();
+            unsubscribe();
+        } finally {
+            closed.complete(null);
+            closer.unsubscribe();
+        }
     }
 
     /**
@@ -182,6 +742,9 @@ class GetJobsAction<K, V> implements Action0 {
      */
     private void closeConnection() {
         if (open.compareAndSet(true, false)) {
+            if (dualChannel != null) {
+                dualChannel.close();
+            }
             disqueConnection.close();
         }
     }
@@ -197,17 +760,14 @@ class GetJobsAction<K, V> implements Action0 {
      * Unsubscribe from the scheduler.
      */
     protected void unsubscribe() {
-        if (schedulerSubscription != null) {
-            schedulerSubscription.unsubscribe();
-            schedulerSubscription = null;
+        if (!worker.isUnsubscribed()) {
+            worker.unsubscribe();
         }
     }
 
     private void trackNodeStats(String id) {
-        if (jobLocalityTracking && id.length() >= QueueListener.MIN_DISQUE_JOB_ID_LENGTH
-                && id.startsWith(QueueListener.JOB_ID_PREFIX)) {
-            String nodePrefix = getNodeIdPrefix(id);
-            nodePrefixes.add(nodePrefix);
+        if (locality != null) {
+            locality.onReceived(id);
         }
     }
 
@@ -217,14 +777,17 @@ class GetJobsAction<K, V> implements Action0 {
 
     private void reconnectToNearestProducer(DisqueConnection<K, V> disqueConnection, boolean forcedReconnect) {
         log.debug("reconnectToNearestProducer()");
-        Set<Multiset.Entry<String>> stats = Multisets.copyHighestCountFirst(nodePrefixes).entrySet();
-        nodePrefixes.clear();
 
-        if (!isNodeSwitchNecessary(stats) && !forcedReconnect) {
+        String nodeIdPrefix = null;
+        if (locality != null) {
+            locality.update();
+            nodeIdPrefix = locality.getBestNodeIdPrefix();
+        }
+
+        if (!forcedReconnect && !isNodeSwitchNecessary(nodeIdPrefix)) {
             return;
         }
 
-        String nodeIdPrefix = getNodeIdPrefix(stats);
         if (nodeIdPrefix != null) {
             log.debug("Set preferred node prefix to {}", nodeIdPrefix);
             socketAddressSupplier.setPreferredNodeIdPrefix(nodeIdPrefix);
@@ -256,7 +819,7 @@ class GetJobsAction<K, V> implements Action0 {
      *
      * @param redisChannelHandler the channel handler.
      */
-    private void disconnect(RedisChannelHandler<?, ?> redisChannelHandler) {
+    static void disconnect(RedisChannelHandler<?, ?> redisChannelHandler) {
 
         RedisChannelHandler<?, ?> rch = redisChannelHandler;
         RedisChannelWriter<?, ?> channelWriter = rch.getChannelWriter();
@@ -273,21 +836,21 @@ class GetJobsAction<K, V> implements Action0 {
         }
     }
 
-    private boolean isNodeSwitchNecessary(Set<Multiset.Entry<String>> stats) {
-        if (stats.isEmpty()) {
-            return false;
-        }
-
-        String nodeIdPrefix = getNodeIdPrefix(stats);
+    private boolean isNodeSwitchNecessary(String nodeIdPrefix) {
 
         if (nodeIdPrefix == null) {
-            return true;
+            return false;
         }
 
         if (isConnectedToNode(nodeIdPrefix)) {
             return false;
         }
 
+        // hysteresis: stay unless the best node clearly outperforms the current node
+        if (!locality.isSwitchBeneficial(nodeIdPrefix, socketAddressSupplier.getCurrentNodeId())) {
+            return false;
+        }
+
         if (socketAddressSupplier.getPreferredNodeIdPrefix() == null
                 || !nodeIdPrefix.equals(socketAddressSupplier.getPreferredNodeIdPrefix())) {
             return true;
@@ -296,16 +859,6 @@ class GetJobsAction<K, V> implements Action0 {
         return false;
     }
 
-    private String getNodeIdPrefix(Set<Multiset.Entry<String>> entries) {
-
-        if (entries.isEmpty()) {
-            return null;
-        }
-
-        Multiset.Entry<String> entry = entries.iterator().next();
-        return entry.getElement();
-    }
-
     private boolean isConnectedToNode(String nodeIdPrefix) {
         return socketAddressSupplier.getCurrentNodeId() != null
                 && socketAddressSupplier.getCurrentNodeId().startsWith(nodeIdPrefix);
@@ -15,9 +15,15 @@
  */
 package biz.paluch.spinach.cluster;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
+import com.lambdaworks.redis.internal.LettuceAssert;
+
 /**
+ * Arguments for {@code GETJOB} commands of a {@link QueueListener}. The queues can be changed while the listener is running,
+ * the change takes effect with the next {@code GETJOB} command of each subscription.
+ *
  * @author Mark Paluch
  */
 class GetJobsArgs<Q> {
@@ -25,7 +31,8 @@ class GetJobsArgs<Q> {
     private final long timeout;
     private final TimeUnit timeUnit;
     private final long count;
-    private final Q[] queues;
+    private volatile Q[] queues;
+    private volatile boolean withCounters;
 
     public static <Q> GetJobsArgs<Q> create(long timeout, TimeUnit timeUnit, long count, Q[] queues) {
         return new GetJobsArgs(timeout, timeUnit, count, queues);
@@ -53,4 +60,95 @@ class GetJobsArgs<Q> {
     public Q[] getQueues() {
         return queues;
     }
+
+    boolean isWithCounters() {
+        return withCounters;
+    }
+
+    /**
+     * Request the counters of the jobs ({@code WITHCOUNTERS}).
+     *
+     * @param withCounters {@literal true} to request the counters
+     */
+    void setWithCounters(boolean withCounters) {
+        this.withCounters = withCounters;
+    }
+
+    /**
+     * Add the {@code queues} unless already present.
+     *
+     * @param queues the queues to add
+     */
+    synchronized void addQueues(Q[] queues) {
+        this.queues = union(this.queues, queues);
+    }
+
+    /**
+     * Remove the {@code queues}. At least one queue must remain.
+     *
+     * @param queues the queues to remove
+     */
+    synchronized void removeQueues(Q[] queues) {
+        this.queues = difference(this.queues, queues);
+    }
+
+    /**
+     * Replace the queues. The queues may be empty while a {@link QueueDiscovery} has not discovered any queue.
+     *
+     * @param queues the new queues, must not be {@literal null} or contain {@literal null} elements
+     */
+    synchronized void setQueues(Q[] queues) {
+
+        LettuceAssert.notNull(queues, "Queues must not be null");
+        LettuceAssert.noNullElements(queues, "Queues must not contain null elements");
+
+        this.queues = queues;
+    }
+
+    /**
+     * Create an array containing the elements of {@code queues} followed by the elements of {@code additions} that are not
+     * contained in {@code queues}.
+     *
+     * @param queues the queues
+     * @param additions the queues to add, must not be {@literal null} or contain {@literal null} elements
+     * @return the union
+     */
+    static <Q> Q[] union(Q[] queues, Q[] additions) {
+
+        LettuceAssert.notNull(additions, "Queues must not be null");
+        LettuceAssert.noNullElements(additions, "Queues must not contain null elements");
+
+        Q[] result = Arrays.copyOf(queues, queues.length + additions.length);
+        int size = queues.length;
+        for (Q queue : additions) {
+            if (!Arrays.asList(result).subList(0, size).contains(queue)) {
+                result[size++] = queue;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Create an array containing the elements of {@code queues} that are not contained in {@code removals}.
+     *
+     * @param queues the queues
+     * @param removals the queues to remove, must not be {@literal null}
+     * @return the difference, never empty
+     * @throws IllegalArgumentException if no queue remains
+     */
+    static <Q> Q[] difference(Q[] queues, Q[] removals) {
+
+        LettuceAssert.notNull(removals, "Queues must not be null");
+
+        Q[] result = Arrays.copyOf(queues, queues.length);
+        int size = 0;
+        for (Q queue : queues) {
+            if (!Arrays.asList(removals).contains(queue)) {
+                result[size++] = queue;
+            }
+        }
+
+        LettuceAssert.isTrue(size > 0, "At least one queue must remain");
+        return Arrays.copyOf(result, size);
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.function.Function;
+
+import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
+import biz.paluch.spinach.output.JobPool;
+
+/**
+ * Per-subscription options of a {@link GetJobsAction}. Each option is disabled unless it is set. Stateful options such as the
+ * {@link InFlightJobs} or the {@link PrefetchBuffer} must be created for each subscription.
+ *
+ * @author Mark Paluch
+ */
+class GetJobsSettings<K, V> {
+
+    private boolean batches;
+    private NodeLocality locality;
+    private AdaptivePolling adaptivePolling;
+    private AdaptiveCount adaptiveCount;
+    private InFlightLimits<K> inFlightLimits;
+    private WeightedFairness<K> fairness;
+    private PausedQueues<K, V> pausedQueues;
+    private InFlightJobs inFlightJobs;
+    private JobPool<K, V> jobPool;
+    private PrefetchBuffer<K, V> prefetch;
+    private Function<DisqueNode, LocalityAwareConnection<K, V>> controlChannelFactory;
+
+    /**
+     * Emit the reply of each {@code GETJOB} command as one {@link java.util.List}.
+     *
+     * @param batches {@literal true} to emit batches
+     * @return the settings
+     */
+    GetJobsSettings<K, V> withBatches(boolean batches) {
+        this.batches = batches;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withLocality(NodeLocality locality) {
+        this.locality = locality;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withAdaptivePolling(AdaptivePolling adaptivePolling) {
+        this.adaptivePolling = adaptivePolling;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withAdaptiveCount(AdaptiveCount adaptiveCount) {
+        this.adaptiveCount = adaptiveCount;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withInFlightLimits(InFlightLimits<K> inFlightLimits) {
+        this.inFlightLimits = inFlightLimits;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withFairness(WeightedFairness<K> fairness) {
+        this.fairness = fairness;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withPausedQueues(PausedQueues<K, V> pausedQueues) {
+        this.pausedQueues = pausedQueues;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withInFlightJobs(InFlightJobs inFlightJobs) {
+        this.inFlightJobs = inFlightJobs;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withJobPool(JobPool<K, V> jobPool) {
+        this.jobPool = jobPool;
+        return this;
+    }
+
+    GetJobsSettings<K, V> withPrefetch(PrefetchBuffer<K, V> prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * Send control commands on a second connection to the polled node.
+     *
+     * @param controlChannelFactory factory for a connection to the given node
+     * @return the settings
+     */
+    GetJobsSettings<K, V> withControlChannel(Function<DisqueNode, LocalityAwareConnection<K, V>> controlChannelFactory) {
+        this.controlChannelFactory = controlChannelFactory;
+        return this;
+    }
+
+    boolean isBatches() {
+        return batches;
+    }
+
+    NodeLocality getLocality() {
+        return locality;
+    }
+
+    AdaptivePolling getAdaptivePolling() {
+        return adaptivePolling;
+    }
+
+    AdaptiveCount getAdaptiveCount() {
+        return adaptiveCount;
+    }
+
+    InFlightLimits<K> getInFlightLimits() {
+        return inFlightLimits;
+    }
+
+    WeightedFairness<K> getFairness() {
+        return fairness;
+    }
+
+    PausedQueues<K, V> getPausedQueues() {
+        return pausedQueues;
+    }
+
+    InFlightJobs getInFlightJobs() {
+        return inFlightJobs;
+    }
+
+    JobPool<K, V> getJobPool() {
+        return jobPool;
+    }
+
+    PrefetchBuffer<K, V> getPrefetch() {
+        return prefetch;
+    }
+
+    Function<DisqueNode, LocalityAwareConnection<K, V>> getControlChannelFactory() {
+        return controlChannelFactory;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Hashed timing wheel with a fixed number of buckets. An element due in {@code n} ticks is put into the bucket
+ * {@code (tick + n) mod buckets}, so scheduling costs {@code O(1)} regardless of the number of elements. Each
+ * {@link #advance()} moves the wheel by one tick and inspects a single bucket. Elements due in more than one rotation stay in
+ * their bucket until their deadline is reached. The wheel does not keep time itself, the owner advances it once per tick.
+ *
+ * @author Mark Paluch
+ */
+class HashedTimingWheel<T> {
+
+    private final List<Entry<T>>[] buckets;
+    private final int mask;
+
+    private long tick;
+    private int size;
+
+    /**
+     * @param buckets number of buckets, must be a power of 2
+     */
+    @SuppressWarnings("unchecked")
+    HashedTimingWheel(int buckets) {
+
+        LettuceAssert.isTrue(buckets > 0 && Integer.bitCount(buckets) == 1, "Buckets must be a power of 2");
+
+        this.buckets = (List<Entry<T>>[]) new List<?>[buckets];
+        this.mask = buckets - 1;
+
+        for (int i = 0; i < buckets; i++) {
+            this.buckets[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Schedule the {@code element}.
+     *
+     * @param element the element
+     * @param ticks number of ticks until the element is due, at least {@literal 1}
+     */
+    synchronized void schedule(T element, long ticks) {
+
+        long deadline = tick + Math.max(ticks, 1);
+        buckets[(int) (deadline & mask)].add(new Entry<T>(element, deadline));
+        size++;
+    }
+
+    /**
+     * Move the wheel by one tick.
+     *
+     * @return the elements that are due, in the order they were scheduled
+     */
+    synchronized List<T> advance() {
+
+        tick++;
+        List<Entry<T>> bucket = buckets[(int) (tick & mask)];
+        if (bucket.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<T> due = new ArrayList<>();
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+
+            Entry<T> entry = bucket.get(i);
+            if (entry.deadline <= tick) {
+                due.add(entry.element);
+            } else {
+                bucket.set(kept++, entry);
+            }
+        }
+
+        bucket.subList(kept, bucket.size()).clear();
+        size -= due.size();
+        return due;
+    }
+
+    /**
+     *
+     * @return the number of scheduled elements
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private static class Entry<T> {
+
+        final T element;
+        final long deadline;
+
+        Entry(T element, long deadline) {
+            this.element = element;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.List;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * Registry of the ids of in-flight jobs. A job is in flight from its reception until the subscriber has handled it. The ids are
+ * kept in an open-addressing hash set with linear probing, so tracking a job costs no allocation besides the occasional
+ * resize. Removed ids leave a tombstone that is reclaimed on the next resize. Jobs are received on the I/O thread and handled on
+ * the thread of the subscriber, so all methods are synchronized. Changes are recorded in the {@link InFlightJournal} if
+ * present. Instances are bound to a single subscription.
+ * <p>
+ * Jobs that were {@link #emit(String) emitted} to the subscriber are owned by its handler. {@link #release()} returns only the
+ * jobs that were not emitted yet and rejects further emissions, so a job is never released while it is handled.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class InFlightJobs {
+
+    static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Tombstone of a removed id, compared by identity.
+     */
+    private static final String REMOVED = new String("removed");
+
+    private final InFlightJournal journal;
+
+    private String[] table = new String[INITIAL_CAPACITY];
+    private boolean[] emitted = new boolean[INITIAL_CAPACITY];
+    private int size;
+    private int used;
+    private boolean released;
+
+    InFlightJobs() {
+        this(null);
+    }
+
+    /**
+     * @param journal the journal to record the in-flight jobs, may be {@literal null}
+     */
+    InFlightJobs(InFlightJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Track the job {@code id}.
+     *
+     * @param id the job id, must not be {@literal null}
+     * @return {@literal true} if the id was not tracked yet
+     */
+    synchronized boolean add(String id) {
+
+        LettuceAssert.notNull(id, "Job id must not be null");
+
+        if ((used + 1) * 2 > table.length) {
+            resize(size + 1);
+        }
+
+        int mask = table.length - 1;
+        int tombstone = -1;
+        for (int index = hash(id) & mask;; index = (index + 1) & mask) {
+
+            String entry = table[index];
+            if (entry == null) {
+
+                if (tombstone != -1) {
+                    index = tombstone;
+                } else {
+                    used++;
+                }
+                table[index] = id;
+                emitted[index] = false;
+                size++;
+
+                if (journal != null) {
+                    journal.delivered(id);
+                }
+                return true;
+            }
+
+            if (entry == REMOVED) {
+                if (tombstone == -1) {
+                    tombstone = index;
+                }
+            } else if (entry.equals(id)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stop tracking the job {@code id}.
+     *
+     * @param id the job id
+     * @return {@literal true} if the id was tracked
+     */
+    synchronized boolean remove(String id) {
+
+        int mask = table.length - 1;
+        for (int index = hash(id) & mask;; index = (index + 1) & mask) {
+
+            String entry = table[index];
+            if (entry == null) {
+                return false;
+            }
+
+            if (entry != REMOVED && entry.equals(id)) {
+                table[index] = REMOVED;
+                emitted[index] = false;
+                size--;
+
+                if (journal != null) {
+                    journal.released(id);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Mark the job {@code id} as emitted to the subscriber.
+     *
+     * @param id the job id
+     * @return {@literal true} if the job may be emitted, {@literal false} if the jobs were {@link #release() released} and the
+     *         job must be dropped
+     */
+    synchronized boolean emit(String id) {
+
+        if (released) {
+            return false;
+        }
+
+        setEmitted(id, true);
+        return true;
+    }
+
+    /**
+     * Mark all {@code jobs} of a batch as emitted to the subscriber.
+     *
+     * @param jobs the jobs
+     * @return {@literal true} if the batch may be emitted, {@literal false} if the jobs were {@link #release() released} and the
+     *         batch must be dropped
+     */
+    synchronized boolean emit(List<? extends Job<?, ?>> jobs) {
+
+        if (released) {
+            return false;
+        }
+
+        for (Job<?, ?> job : jobs) {
+            setEmitted(job.getId(), true);
+        }
+        return true;
+    }
+
+    /**
+     * Hand back the emitted job {@code id} whose handler failed, so it is released with the jobs that were not emitted.
+     *
+     * @param id the job id
+     */
+    synchronized void failed(String id) {
+        setEmitted(id, false);
+    }
+
+    /**
+     * Remove the ids that were not emitted to the subscriber and reject further emissions. Emitted ids remain tracked until
+     * their handler is finished. The removed ids are recorded as released in the journal.
+     *
+     * @return the ids that were tracked but not emitted
+     */
+    synchronized String[] release() {
+
+        released = true;
+
+        int count = 0;
+        for (int index = 0; index < table.length; index++) {
+            if (table[index] != null && table[index] != REMOVED && !emitted[index]) {
+                count++;
+            }
+        }
+
+        String[] ids = new String[count];
+        int offset = 0;
+        for (int index = 0; index < table.length; index++) {
+
+            String entry = table[index];
+            if (entry != null && entry != REMOVED && !emitted[index]) {
+                ids[offset++] = entry;
+                table[index] = REMOVED;
+                size--;
+
+                if (journal != null) {
+                    journal.released(entry);
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Remove all tracked ids. The ids are recorded as released in the journal.
+     *
+     * @return the ids that were tracked
+     */
+    synchronized String[] drain() {
+
+        String[] ids = new String[size];
+        int index = 0;
+        for (String entry : table) {
+            if (entry != null && entry != REMOVED) {
+                ids[index++] = entry;
+
+                if (journal != null) {
+                    journal.released(entry);
+                }
+            }
+        }
+
+        table = new String[INITIAL_CAPACITY];
+        emitted = new boolean[INITIAL_CAPACITY];
+        size = 0;
+        used = 0;
+        return ids;
+    }
+
+    /**
+     *
+     * @return the number of tracked ids
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Rehash into a table that holds {@code required} ids at a load factor of at most 0.5. Drops the tombstones.
+     */
+    private void resize(int required) {
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < required * 4) {
+            capacity <<= 1;
+        }
+
+        String[] old = table;
+        boolean[] oldEmitted = emitted;
+        table = new String[capacity];
+        emitted = new boolean[capacity];
+        used = size;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < old.length; i++) {
+            String entry = old[i];
+            if (entry != null && entry != REMOVED) {
+                int index = hash(entry) & mask;
+                while (table[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                table[index] = entry;
+                emitted[index] = oldEmitted[i];
+            }
+        }
+    }
+
+    private void setEmitted(String id, boolean value) {
+
+        int mask = table.length - 1;
+        for (int index = hash(id) & mask;; index = (index + 1) & mask) {
+
+            String entry = table[index];
+            if (entry == null) {
+                return;
+            }
+
+            if (entry != REMOVED && entry.equals(id)) {
+                emitted[index] = value;
+                return;
+            }
+        }
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
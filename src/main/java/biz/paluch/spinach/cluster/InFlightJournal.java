@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Append-only journal of in-flight job ids in a memory-mapped file. Deliveries and releases are appended as records of a type
+ * byte, a length byte and the ASCII bytes of the job id. Appending copies the id into the mapped page without allocation or
+ * system call. Mapped pages are written back by the operating system even if the JVM dies, so the journal survives a crash of
+ * the process (but not of the operating system, the journal is never forced to disk).
+ * <p>
+ * {@link #replay(Consumer)} reads the journal after a restart and hands over the ids of jobs that were delivered but never
+ * released. A full journal is compacted in place to the records of the in-flight jobs and grows if the in-flight jobs occupy
+ * more than half of it. A crash during compaction may lose records, the affected jobs are re-queued once their retry time
+ * passes. Instances are shared by all subscriptions of a {@link QueueListenerFactory} and are thread-safe.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class InFlightJournal {
+
+    /**
+     * Initial size of the journal file in bytes.
+     */
+    static final int DEFAULT_SIZE = 1024 * 1024;
+
+    static final int MAGIC = 0x53504a31;
+    static final byte END = 0;
+    static final byte DELIVERED = 1;
+    static final byte RELEASED = 2;
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(InFlightJournal.class);
+    private static final int HEADER = 4;
+
+    private final File file;
+    private final FileChannel channel;
+    private final InFlightJobs inFlight = new InFlightJobs();
+
+    private MappedByteBuffer buffer;
+    private int position = HEADER;
+
+    /**
+     * Open or create the journal {@code file}.
+     *
+     * @param file the journal file, must not be {@literal null}
+     * @param size initial size of the journal file in bytes
+     * @throws IOException if the file cannot be mapped
+     */
+    InFlightJournal(File file, int size) throws IOException {
+
+        LettuceAssert.notNull(file, "File must not be null");
+        LettuceAssert.isTrue(size > HEADER, "Size must be greater " + HEADER);
+
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+
+            int magic = buffer.getInt(0);
+            if (magic == 0) {
+                buffer.putInt(0, MAGIC);
+            } else if (magic != MAGIC) {
+                throw new IllegalStateException("File " + file + " is not an in-flight journal");
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @return the journal file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Record the delivery of the job {@code id}. Ids that are longer than 255 characters are not recorded.
+     *
+     * @param id the job id
+     */
+    synchronized void delivered(String id) {
+
+        if (inFlight.add(id)) {
+            append(DELIVERED, id);
+        }
+    }
+
+    /**
+     * Record that the job {@code id} is no longer in flight because it was handled or released.
+     *
+     * @param id the job id
+     */
+    synchronized void released(String id) {
+
+        if (inFlight.remove(id)) {
+            append(RELEASED, id);
+        }
+    }
+
+    /**
+     *
+     * @return the number of in-flight jobs
+     */
+    synchronized int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Read the journal and pass the ids of the jobs that were delivered but not released to the {@code releaser}. The journal
+     * is cleared once the {@code releaser} returns. An exception of the {@code releaser} keeps the journal so the next replay
+     * picks up the same jobs.
+     *
+     * @param releaser consumer of the ids of the unreleased jobs, invoked only if there are unreleased jobs
+     */
+    synchronized void replay(Consumer<String[]> releaser) {
+
+        Set<String> unreleased = new LinkedHashSet<>();
+        int offset = HEADER;
+        byte[] bytes = new byte[255];
+
+        while (offset + 2 <= buffer.capacity()) {
+
+            byte type = buffer.get(offset);
+            int length = buffer.get(offset + 1) & 0xff;
+            if (type == END || offset + 2 + length > buffer.capacity()) {
+                break;
+            }
+
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + 2 + i);
+            }
+
+            String id = new String(bytes, 0, length, StandardCharsets.US_ASCII);
+            if (type == DELIVERED) {
+                unreleased.add(id);
+            } else {
+                unreleased.remove(id);
+            }
+            offset += 2 + length;
+        }
+
+        if (!unreleased.isEmpty()) {
+            log.info("Releasing {} unreleased jobs of journal {}", unreleased.size(), file);
+            releaser.accept(unreleased.toArray(new String[unreleased.size()]));
+        }
+
+        inFlight.drain();
+        position = HEADER;
+        buffer.put(position, END);
+    }
+
+    /**
+     * Close the journal. In-flight jobs remain recorded.
+     */
+    synchronized void close() {
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Cannot close journal " + file + ": " + e.toString());
+        }
+    }
+
+    private void append(byte type, String id) {
+
+        int length = id.length();
+        if (length > 255) {
+            return;
+        }
+
+        if (position + 2 + length + 1 > buffer.capacity() && !compact(2 + length + 1)) {
+            log.warn("Journal {} is full, job {} is not recorded", file, id);
+            return;
+        }
+
+        write(type, id);
+    }
+
+    private void write(byte type, String id) {
+
+        int length = id.length();
+
+        // the type byte replaces the end marker last, so a partially written record is never read
+        int offset = position;
+        buffer.put(offset + 1, (byte) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + 2 + i, (byte) id.charAt(i));
+        }
+
+        position = offset + 2 + length;
+        if (position < buffer.capacity()) {
+            buffer.put(position, END);
+        }
+        buffer.put(offset, type);
+    }
+
+    /**
+     * Rewrite the journal to the delivery records of the in-flight jobs and grow the file if the in-flight jobs occupy more
+     * than half of it.
+     *
+     * @param required bytes required for the next record
+     * @return {@literal true} if the journal has room for the next record
+     */
+    private boolean compact(int required) {
+
+        String[] ids = inFlight.drain();
+        int used = HEADER;
+        for (String id : ids) {
+            used += 2 + id.length();
+        }
+
+        try {
+            long capacity = buffer.capacity();
+            while (used + required > capacity / 2) {
+                capacity *= 2;
+            }
+
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("Journal exceeds " + Integer.MAX_VALUE + " bytes");
+            }
+
+            if (capacity != buffer.capacity()) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot grow journal " + file + ": " + e.toString());
+        }
+
+        position = HEADER;
+        buffer.put(position, END);
+        for (String id : ids) {
+            if (position + 2 + id.length() + 1 <= buffer.capacity()) {
+                inFlight.add(id);
+                write(DELIVERED, id);
+            }
+        }
+
+        return position + required <= buffer.capacity();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [file=" + file + ", inFlight=" + size() + "]";
+    }
+}
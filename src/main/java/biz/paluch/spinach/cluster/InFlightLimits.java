@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Per-queue limits of in-flight jobs. A job is in flight from its reception until the subscriber has handled it. Queues that
+ * reached their limit are left out of the {@code GETJOB} command until a job of the queue is handled. Queues without a limit are
+ * not limited, including queues that are added to the listener later. Queue names are compared using
+ * {@link Object#equals(Object)}. Instances are stateful and bound to a single subscription.
+ *
+ * @author Mark Paluch
+ */
+class InFlightLimits<K> {
+
+    private final K[] queues;
+    private final Map<K, Integer> limitsByQueue;
+    private final int[] limits;
+    private final AtomicIntegerArray inFlight;
+
+    private volatile Runnable onAvailable;
+
+    /**
+     * @param queues the queues of the listener, must not be {@literal null}
+     * @param limitsByQueue the limits per queue, must not be {@literal null}
+     */
+    InFlightLimits(K[] queues, Map<K, Integer> limitsByQueue) {
+
+        LettuceAssert.notNull(queues, "Queues must not be null");
+        LettuceAssert.notNull(limitsByQueue, "Limits must not be null");
+
+        this.queues = queues;
+        this.limitsByQueue = new LinkedHashMap<>(limitsByQueue);
+        this.limits = new int[queues.length];
+        this.inFlight = new AtomicIntegerArray(queues.length);
+
+        Arrays.fill(limits, Integer.MAX_VALUE);
+        for (Map.Entry<K, Integer> entry : limitsByQueue.entrySet()) {
+
+            int index = indexOf(entry.getKey());
+            LettuceAssert.isTrue(index != -1, "Queue " + entry.getKey() + " is not a queue of the listener");
+            LettuceAssert.isTrue(entry.getValue() != null && entry.getValue() > 0, "Limit must be greater 0");
+
+            limits[index] = entry.getValue();
+        }
+    }
+
+    /**
+     * Create a new instance using the same limits but a fresh state.
+     *
+     * @return a new {@link InFlightLimits}
+     */
+    InFlightLimits<K> newInstance() {
+        return new InFlightLimits<K>(queues, limitsByQueue);
+    }
+
+    /**
+     * Register a callback that is invoked when a queue drops below its limit.
+     *
+     * @param onAvailable the callback
+     */
+    void onAvailable(Runnable onAvailable) {
+        this.onAvailable = onAvailable;
+    }
+
+    /**
+     * Retrieve the {@code queues} that have capacity for more jobs. Returns {@code queues} if no queue is at its limit.
+     *
+     * @param queues the current queues of the listener
+     * @return the queues with capacity, may be empty
+     */
+    K[] getAvailableQueues(K[] queues) {
+
+        int available = 0;
+        for (K queue : queues) {
+            if (hasCapacity(queue)) {
+                available++;
+            }
+        }
+
+        if (available == queues.length) {
+            return queues;
+        }
+
+        K[] result = Arrays.copyOf(queues, available);
+        int index = 0;
+        for (K queue : queues) {
+            if (hasCapacity(queue)) {
+                result[index++] = queue;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retrieve the number of jobs that can be fetched from the {@code queues} without exceeding a limit. A single
+     * {@code GETJOB} may return all jobs from one queue, so this is the smallest remaining capacity of the queues.
+     *
+     * @param queues the queues
+     * @return the remaining capacity
+     */
+    long getRemainingCapacity(K[] queues) {
+
+        long remaining = Long.MAX_VALUE;
+        for (K queue : queues) {
+            int index = indexOf(queue);
+            if (index != -1 && limits[index] != Integer.MAX_VALUE) {
+                remaining = Math.min(remaining, limits[index] - (long) inFlight.get(index));
+            }
+        }
+        return Math.max(remaining, 0);
+    }
+
+    /**
+     *
+     * @param queues the current queues of the listener
+     * @return {@literal true} if at least one of the {@code queues} has capacity for more jobs
+     */
+    boolean hasCapacity(K[] queues) {
+
+        for (K queue : queues) {
+            if (hasCapacity(queue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a received job.
+     *
+     * @param queue the queue of the job
+     */
+    void onReceived(K queue) {
+
+        int index = indexOf(queue);
+        if (index != -1) {
+            inFlight.incrementAndGet(index);
+        }
+    }
+
+    /**
+     * Record a handled job. Invokes the {@link #onAvailable(Runnable) callback} if the queue drops below its limit.
+     *
+     * @param queue the queue of the job
+     */
+    void onHandled(K queue) {
+
+        int index = indexOf(queue);
+        if (index == -1) {
+            return;
+        }
+
+        if (inFlight.decrementAndGet(index) == limits[index] - 1) {
+            Runnable callback = onAvailable;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param queue the queue
+     * @return the number of in-flight jobs of the {@code queue}
+     */
+    int getInFlight(K queue) {
+
+        int index = indexOf(queue);
+        return index == -1 ? 0 : inFlight.get(index);
+    }
+
+    private boolean hasCapacity(K queue) {
+
+        int index = indexOf(queue);
+        return index == -1 || inFlight.get(index) < limits[index];
+    }
+
+    private int indexOf(K queue) {
+
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].equals(queue)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
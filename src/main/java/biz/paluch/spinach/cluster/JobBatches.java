@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.Collection;
+
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.DisqueConnection;
+import biz.paluch.spinach.api.Job;
+
+/**
+ * Utility methods for batches of {@link Job jobs} as emitted by {@link QueueListenerFactory.GetJobsBuilder#getjobBatches()}.
+ *
+ * @author Mark Paluch
+ */
+public final class JobBatches {
+
+    private JobBatches() {
+    }
+
+    /**
+     * Retrieve the job Id's of the {@code jobs}.
+     *
+     * @param jobs the jobs, must not be {@literal null}
+     * @return the job Id's
+     */
+    public static String[] getIds(Collection<? extends Job<?, ?>> jobs) {
+
+        LettuceAssert.notNull(jobs, "Jobs must not be null");
+
+        String[] ids = new String[jobs.size()];
+        int i = 0;
+        for (Job<?, ?> job : jobs) {
+            ids[i++] = job.getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Acknowledge all {@code jobs} with a single {@code FASTACK} command.
+     *
+     * @param connection the connection, must not be {@literal null}
+     * @param jobs the jobs, must not be {@literal null} and not empty
+     * @return the number of jobs that are deleted from the local node as a result of receiving the command
+     */
+    public static RedisFuture<Long> fastack(DisqueConnection<?, ?> connection, Collection<? extends Job<?, ?>> jobs) {
+
+        LettuceAssert.notNull(connection, "DisqueConnection must not be null");
+        LettuceAssert.isTrue(jobs != null && !jobs.isEmpty(), "Jobs must not be empty");
+
+        return connection.async().fastack(getIds(jobs));
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * Handler for {@link Job jobs} processed by a {@link JobWorker}. A job is acknowledged if the handler returns normally and
+ * returned to its queue using {@code NACK} if the handler throws an exception.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ * @author Mark Paluch
+ */
+@FunctionalInterface
+public interface JobHandler<K, V> {
+
+    /**
+     * Handle the {@code job}.
+     *
+     * @param job the job
+     * @throws Exception if the job cannot be processed
+     */
+    void handle(Job<K, V> job) throws Exception;
+}
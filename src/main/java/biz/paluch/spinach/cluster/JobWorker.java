@@ -0,0 +1,800 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.AddJobArgs;
+import biz.paluch.spinach.api.DisqueConnection;
+import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.output.JobPool;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+
+/**
+ * Managed execution of a {@link JobHandler} for jobs emitted by a {@link QueueListenerFactory}. The worker subscribes to the
+ * job {@link Observable} and runs the handler on an {@link Executor}. At most {@code maxInFlight} jobs are requested from the
+ * {@link Observable} and processed at a time.
+ * <ul>
+ * <li>Jobs are acknowledged with {@code ACKJOB} once the handler returns. Acknowledgements are collected and sent in batches
+ * of {@code ackBatchSize} job Id's or after the flush interval, whichever comes first.</li>
+ * <li>Jobs are returned to their queue with {@code NACK} if the handler throws an exception or the executor rejects the
+ * job. With retry backoff, jobs whose handler throws an exception are added again with a {@code DELAY} instead and the
+ * failed job is acknowledged.</li>
+ * <li>If a dead-letter queue is configured, jobs that failed too often are moved to the dead-letter queue without reaching
+ * the handler.</li>
+ * <li>If deduplication is enabled, redeliveries of recently acknowledged jobs are acknowledged without reaching the
+ * handler.</li>
+ * <li>If lease extension is enabled, the worker sends {@code WORKING} for each in-flight job until it is acknowledged or
+ * returned to its queue, so long-running jobs are not redelivered.</li>
+ * </ul>
+ * {@link #shutdown(long, TimeUnit)} stops fetching jobs, waits until the in-flight jobs are finished and flushes the pending
+ * acknowledgements. Jobs that do not finish within the timeout are not acknowledged and are redelivered by Disque after their
+ * {@code RETRY} period. The worker stops the same way, waiting up to {@link #DEFAULT_STOP_TIMEOUT}
+ * {@link #DEFAULT_STOP_TIMEOUT_UNIT}, if the job {@link Observable} terminates. {@link #getTerminated()} completes once the
+ * worker is stopped, exceptionally with the error of the job {@link Observable} if it failed.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ * @author Mark Paluch
+ */
+public class JobWorker<K, V> {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final int DEFAULT_ACK_BATCH_SIZE = 50;
+    public static final int DEFAULT_ACK_FLUSH_INTERVAL = 100;
+    public static final TimeUnit DEFAULT_ACK_FLUSH_UNIT = TimeUnit.MILLISECONDS;
+    public static final double DEFAULT_LEASE_REFRESH_FRACTION = 0.5;
+    public static final long DEFAULT_RETRY_TIMEOUT = 1;
+    public static final TimeUnit DEFAULT_RETRY_TIMEOUT_UNIT = TimeUnit.SECONDS;
+    public static final long DEFAULT_STOP_TIMEOUT = 10;
+    public static final TimeUnit DEFAULT_STOP_TIMEOUT_UNIT = TimeUnit.SECONDS;
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(JobWorker.class);
+
+    private final JobHandler<K, V> handler;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int maxInFlight;
+    private final int ackBatchSize;
+    private final DisqueConnection<K, V> connection;
+    private final Scheduler scheduler;
+    private final Scheduler.Worker flusher;
+    private final WorkingLeases<K, V> leases;
+    private final RetryBackoff retryBackoff;
+    private final AddJobArgs retryArgs;
+    private final K deadLetterQueue;
+    private final AddJobArgs deadLetterArgs;
+    private final long maxFailures;
+    private final CompletedJobs completedJobs;
+    private final Consumer<JobWorker<K, V>> onStop;
+    private final JobSubscriber subscriber = new JobSubscriber();
+
+    private final Queue<String> acks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingAcks = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+    private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+    private JobWorker(Builder<K, V> builder) {
+
+        this.handler = builder.handler;
+        this.maxInFlight = builder.maxInFlight;
+        this.ackBatchSize = builder.ackBatchSize;
+
+        if (builder.executor != null) {
+            this.executor = builder.executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newFixedThreadPool(maxInFlight);
+            this.executor = ownedExecutor;
+        }
+
+        this.connection = builder.connectionSupplier.get();
+        this.scheduler = builder.scheduler;
+        this.flusher = builder.scheduler.createWorker();
+        this.flusher.schedulePeriodically(this::flush, builder.ackFlushInterval, builder.ackFlushInterval,
+                builder.ackFlushUnit);
+
+        if (builder.leaseUnit != null) {
+            this.leases = new WorkingLeases<K, V>(builder.scheduler, builder.connectionSupplier, builder.leaseInitialDelay,
+                    builder.leaseUnit, builder.leaseRefreshFraction);
+        } else {
+            this.leases = null;
+        }
+
+        this.retryBackoff = builder.retryBackoff;
+        this.retryArgs = builder.retryArgs;
+        this.deadLetterQueue = builder.deadLetterQueue;
+        this.deadLetterArgs = builder.deadLetterArgs;
+        this.maxFailures = builder.maxFailures;
+
+        if (builder.deduplicationUnit != null) {
+            this.completedJobs = new CompletedJobs(builder.deduplicationCapacity, builder.deduplicationWindow,
+                    builder.deduplicationUnit);
+        } else {
+            this.completedJobs = null;
+        }
+
+        this.onStop = builder.onStop;
+    }
+
+    /**
+     *
+     * @return the number of jobs that are currently processed
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     *
+     * @return {@literal true} if the worker was not shut down yet and its job {@link Observable} did not terminate
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     *
+     * @return a future that completes once the worker is stopped, exceptionally with the error of the job {@link Observable}
+     *         if it failed
+     */
+    public CompletableFuture<Void> getTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Shut down the worker. Stops fetching jobs, waits up to {@code timeout} for the in-flight jobs and flushes the pending
+     * acknowledgements. The connection and the executor (unless provided by the user) are closed afterwards.
+     *
+     * @param timeout the maximum time to wait for in-flight jobs and acknowledgements
+     * @param timeUnit the timeout unit
+     */
+    public void shutdown(long timeout, TimeUnit timeUnit) {
+
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+
+        subscriber.unsubscribe();
+        stop(timeout, timeUnit, null);
+    }
+
+    /**
+     * Stop the worker once the job {@link Observable} terminated. Waiting for the in-flight jobs blocks, so the worker is stopped
+     * on a {@link rx.Scheduler.Worker worker} instead of the thread that terminated the {@link Observable}.
+     *
+     * @param cause the error of the job {@link Observable} or {@literal null} if it completed
+     */
+    private void onTerminated(Throwable cause) {
+
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+
+        Scheduler.Worker stopper = scheduler.createWorker();
+        stopper.schedule(() -> {
+            try {
+                stop(DEFAULT_STOP_TIMEOUT, DEFAULT_STOP_TIMEOUT_UNIT, cause);
+            } finally {
+                stopper.unsubscribe();
+            }
+        });
+    }
+
+    /**
+     * Wait up to {@code timeout} for the in-flight jobs, flush the pending acknowledgements and release the resources.
+     */
+    private void stop(long timeout, TimeUnit timeUnit, Throwable cause) {
+
+        if (inFlight.get() == 0) {
+            drained.complete(null);
+        }
+
+        try {
+            drained.get(timeout, timeUnit);
+        } catch (TimeoutException e) {
+            log.warn("Could not finish " + inFlight.get() + " in-flight jobs within " + timeout + " " + timeUnit);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            flusher.unsubscribe();
+            try {
+                RedisFuture<Long> future = flush();
+                if (future != null && !future.await(timeout, timeUnit)) {
+                    log.warn("Could not flush acknowledgements within " + timeout + " " + timeUnit);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (leases != null) {
+                    leases.close();
+                }
+                connection.close();
+                if (ownedExecutor != null) {
+                    ownedExecutor.shutdown();
+                }
+                onStop.accept(this);
+
+                if (cause != null) {
+                    terminated.completeExceptionally(cause);
+                } else {
+                    terminated.complete(null);
+                }
+            }
+        }
+    }
+
+    private void start(Observable<Job<K, V>> jobs) {
+        jobs.subscribe(subscriber);
+    }
+
+    private void process(Job<K, V> job) {
+
+        CompletionStage<?> retry = null;
+        try {
+            handler.handle(job);
+            ack(job);
+        } catch (Exception e) {
+            if (retryBackoff != null) {
+                retry = retry(job, e);
+            } else {
+                nack(job, e);
+            }
+        } finally {
+            // a retried job is in flight until it was added again, so shutdown can flush its acknowledgement
+            if (retry != null) {
+                retry.whenComplete((ignore, throwable) -> finished());
+            } else {
+                finished();
+            }
+        }
+    }
+
+    private void finished() {
+
+        if (inFlight.decrementAndGet() == 0 && !running.get()) {
+            drained.complete(null);
+        }
+
+        if (running.get()) {
+            subscriber.requestOne();
+        }
+    }
+
+    private void ack(Job<K, V> job) {
+
+        if (leases != null) {
+            leases.cancel(job.getId());
+        }
+
+        if (completedJobs != null) {
+            completedJobs.add(job.getId());
+        }
+
+        acks.offer(job.getId());
+        if (pendingAcks.incrementAndGet() >= ackBatchSize) {
+            flush();
+        }
+    }
+
+    private void nack(Job<K, V> job, Exception cause) {
+
+        if (leases != null) {
+            leases.cancel(job.getId());
+        }
+
+        if (cause != null) {
+            log.warn("Job " + job.getId() + " failed, returning it to the queue: " + cause.toString(), cause);
+        }
+
+        connection.async().nack(job.getId()).whenComplete((count, throwable) -> {
+            if (throwable != null) {
+                log.warn("Could not return job " + job.getId() + " to the queue: " + throwable.toString());
+            }
+        });
+    }
+
+    /**
+     * Add the failed {@code job} again with a {@code DELAY} according to the {@link RetryBackoff}. The failed job is
+     * acknowledged with the next batch of acknowledgements once the job was added. It is returned to its queue using
+     * {@code NACK} if it cannot be added.
+     *
+     * @return the future of the {@code ADDJOB} command
+     */
+    private CompletionStage<String> retry(Job<K, V> job, Exception cause) {
+
+        if (leases != null) {
+            leases.cancel(job.getId());
+        }
+
+        int attempt = retryBackoff.getAttempt(job);
+        long delay = retryBackoff.getDelay(attempt);
+        log.warn("Job " + job.getId() + " failed (attempt " + attempt + "), retrying in " + delay + " seconds: "
+                + cause.toString(), cause);
+
+        return connection.async().addjob(job.getQueue(), job.getBody(), DEFAULT_RETRY_TIMEOUT, DEFAULT_RETRY_TIMEOUT_UNIT,
+                getRetryArgs(delay)).whenComplete((jobId, throwable) -> {
+
+                    if (throwable != null) {
+                        log.warn("Could not retry job " + job.getId() + ": " + throwable.toString());
+                        nack(job, null);
+                        return;
+                    }
+
+                    retryBackoff.remember(jobId, attempt);
+                    ack(job);
+                });
+    }
+
+    /**
+     *
+     * @return the {@code ADDJOB} arguments of a retry with the {@code delay}
+     */
+    private AddJobArgs getRetryArgs(long delay) {
+
+        AddJobArgs args = AddJobArgs.builder().delay(delay).build();
+        if (retryArgs != null) {
+            args.setReplicate(retryArgs.getReplicate());
+            args.setRetry(retryArgs.getRetry());
+            args.setTtl(retryArgs.getTtl());
+            args.setMaxlen(retryArgs.getMaxlen());
+            args.setAsync(retryArgs.getAsync());
+        }
+        return args;
+    }
+
+    /**
+     *
+     * @return {@literal true} if the {@code job} failed too often and should be moved to the dead-letter queue
+     */
+    private boolean isPoison(Job<K, V> job) {
+
+        long failures = retryBackoff != null ? retryBackoff.getFailures(job)
+                : RetryBackoff.getFailedDeliveries(job.getCounters());
+        return failures >= maxFailures;
+    }
+
+    /**
+     * Move the {@code job} to the dead-letter queue. The job is acknowledged with the next batch of acknowledgements once it
+     * was added to the dead-letter queue. It is returned to its queue using {@code NACK} if it cannot be added.
+     *
+     * @return the future of the {@code ADDJOB} command
+     */
+    private CompletionStage<String> deadLetter(Job<K, V> job) {
+
+        log.warn("Job " + job.getId() + " of queue " + job.getQueue() + " failed too often, moving it to " + deadLetterQueue);
+
+        RedisFuture<String> future = deadLetterArgs != null
+                ? connection.async().addjob(deadLetterQueue, job.getBody(), DEFAULT_RETRY_TIMEOUT, DEFAULT_RETRY_TIMEOUT_UNIT,
+                        deadLetterArgs)
+                : connection.async().addjob(deadLetterQueue, job.getBody(), DEFAULT_RETRY_TIMEOUT, DEFAULT_RETRY_TIMEOUT_UNIT);
+
+        return future.whenComplete((jobId, throwable) -> {
+
+            if (throwable != null) {
+                log.warn("Could not move job " + job.getId() + " to " + deadLetterQueue + ": " + throwable.toString());
+                nack(job, null);
+                return;
+            }
+
+            ack(job);
+        });
+    }
+
+    /**
+     * Send the pending acknowledgements using a single {@code ACKJOB} command.
+     *
+     * @return the future of the {@code ACKJOB} command or {@literal null} if there were no pending acknowledgements
+     */
+    private RedisFuture<Long> flush() {
+
+        List<String> ids = new ArrayList<>(Math.max(pendingAcks.get(), 0));
+        String id;
+        while ((id = acks.poll()) != null) {
+            ids.add(id);
+        }
+
+        if (ids.isEmpty()) {
+            return null;
+        }
+
+        pendingAcks.addAndGet(-ids.size());
+        RedisFuture<Long> future = connection.async().ackjob(ids.toArray(new String[ids.size()]));
+        future.whenComplete((count, throwable) -> {
+            if (throwable != null) {
+                log.warn("Could not acknowledge " + ids.size() + " jobs: " + throwable.toString());
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Subscriber that dispatches jobs to the executor.
+     */
+    private class JobSubscriber extends Subscriber<Job<K, V>> {
+
+        @Override
+        public void onStart() {
+            request(maxInFlight);
+        }
+
+        @Override
+        public void onNext(Job<K, V> job) {
+
+            inFlight.incrementAndGet();
+
+            if (JobPool.isPooled(job)) {
+                unsubscribe();
+                onTerminated(new IllegalStateException(
+                        "Cannot process recycled jobs, the job " + job.getId() + " is reused once onNext returns"));
+                nack(job, null);
+                finished();
+                return;
+            }
+
+            if (!running.get()) {
+                nack(job, null);
+                finished();
+                return;
+            }
+
+            if (completedJobs != null && completedJobs.contains(job.getId())) {
+                log.debug("Job {} was already completed, acknowledging redelivery", job.getId());
+                ack(job);
+                finished();
+                return;
+            }
+
+            // poison jobs never reach the executor, so they cannot take a slot from healthy jobs
+            if (deadLetterQueue != null && isPoison(job)) {
+                deadLetter(job).whenComplete((ignore, throwable) -> finished());
+                return;
+            }
+
+            if (leases != null) {
+                leases.start(job.getId());
+            }
+
+            try {
+                executor.execute(() -> process(job));
+            } catch (RejectedExecutionException e) {
+                nack(job, e);
+                finished();
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            log.error("Job source of the worker failed, stopping the worker: " + e.toString(), e);
+            onTerminated(e);
+        }
+
+        @Override
+        public void onCompleted() {
+            log.debug("Job source of the worker completed, stopping the worker");
+            onTerminated(null);
+        }
+
+        void requestOne() {
+            request(1);
+        }
+    }
+
+    /**
+     * Builder for a {@link JobWorker}. Use {@link QueueListenerFactory#newWorker(JobHandler)} to obtain a builder.
+     *
+     * @param <K> Key type.
+     * @param <V> Value type.
+     */
+    public static class Builder<K, V> {
+
+        private final JobHandler<K, V> handler;
+        private final Scheduler scheduler;
+        private final Supplier<DisqueConnection<K, V>> connectionSupplier;
+        private final Function<Boolean, Observable<Job<K, V>>> defaultJobs;
+        private final Consumer<JobWorker<K, V>> onStart;
+        private final Consumer<JobWorker<K, V>> onStop;
+
+        private Executor executor;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private int ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+        private long ackFlushInterval = DEFAULT_ACK_FLUSH_INTERVAL;
+        private TimeUnit ackFlushUnit = DEFAULT_ACK_FLUSH_UNIT;
+        private long leaseInitialDelay;
+        private TimeUnit leaseUnit;
+        private double leaseRefreshFraction;
+        private RetryBackoff retryBackoff;
+        private AddJobArgs retryArgs;
+        private K deadLetterQueue;
+        private AddJobArgs deadLetterArgs;
+        private long maxFailures;
+        private int deduplicationCapacity;
+        private long deduplicationWindow;
+        private TimeUnit deduplicationUnit;
+        private Observable<Job<K, V>> jobs;
+
+        Builder(JobHandler<K, V> handler, Scheduler scheduler, Supplier<DisqueConnection<K, V>> connectionSupplier,
+                Function<Boolean, Observable<Job<K, V>>> defaultJobs, Consumer<JobWorker<K, V>> onStart,
+                Consumer<JobWorker<K, V>> onStop) {
+
+            LettuceAssert.notNull(handler, "JobHandler must not be null");
+
+            this.handler = handler;
+            this.scheduler = scheduler;
+            this.connectionSupplier = connectionSupplier;
+            this.defaultJobs = defaultJobs;
+            this.onStart = onStart;
+            this.onStop = onStop;
+        }
+
+        /**
+         * Run the handler on the {@code executor}. Defaults to a fixed thread pool with {@code maxInFlight} threads that is
+         * shut down with the worker.
+         *
+         * @param executor the executor, must not be {@literal null}
+         * @return the builder
+         */
+        public Builder<K, V> withExecutor(Executor executor) {
+
+            LettuceAssert.notNull(executor, "Executor must not be null");
+
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Limit the number of jobs that are processed at a time. Defaults to {@link #DEFAULT_MAX_IN_FLIGHT}.
+         *
+         * @param maxInFlight the maximal number of in-flight jobs, must be greater 0
+         * @return the builder
+         */
+        public Builder<K, V> withMaxInFlight(int maxInFlight) {
+
+            LettuceAssert.isTrue(maxInFlight > 0, "Max in-flight must be greater 0");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Configure the batching of acknowledgements. Defaults to {@link #DEFAULT_ACK_BATCH_SIZE} job Id's and
+         * {@link #DEFAULT_ACK_FLUSH_INTERVAL} {@link #DEFAULT_ACK_FLUSH_UNIT}.
+         *
+         * @param batchSize number of job Id's that trigger an {@code ACKJOB} command, must be greater 0
+         * @param flushInterval interval to flush pending acknowledgements, must be greater 0
+         * @param timeUnit the interval unit
+         * @return the builder
+         */
+        public Builder<K, V> withAckBatching(int batchSize, long flushInterval, TimeUnit timeUnit) {
+
+            LettuceAssert.isTrue(batchSize > 0, "Batch size must be greater 0");
+            LettuceAssert.isTrue(flushInterval > 0, "Flush interval must be greater 0");
+            LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+            this.ackBatchSize = batchSize;
+            this.ackFlushInterval = flushInterval;
+            this.ackFlushUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Extend the lease of in-flight jobs using {@code WORKING}, refreshing each lease after
+         * {@link #DEFAULT_LEASE_REFRESH_FRACTION} of the postpone time.
+         *
+         * @param initialDelay delay of the first {@code WORKING} after a job is received, must be greater 0 and should be
+         *        well below the {@code RETRY} of the jobs
+         * @param timeUnit the delay unit
+         * @return the builder
+         * @see #withLeaseExtension(long, TimeUnit, double)
+         */
+        public Builder<K, V> withLeaseExtension(long initialDelay, TimeUnit timeUnit) {
+            return withLeaseExtension(initialDelay, timeUnit, DEFAULT_LEASE_REFRESH_FRACTION);
+        }
+
+        /**
+         * Extend the lease of in-flight jobs using {@code WORKING}. The first {@code WORKING} of a job is sent after the
+         * {@code initialDelay}, each further one after the {@code refreshFraction} of the postpone time returned by Disque.
+         * Leases are kept on a hashed timing wheel and the {@code WORKING} commands that fall due at the same time are
+         * pipelined, so tens of thousands of in-flight jobs do not need a scheduled task each. A lease ends when the job is
+         * acknowledged or returned to its queue.
+         *
+         * @param initialDelay delay of the first {@code WORKING} after a job is received, must be greater 0 and should be
+         *        well below the {@code RETRY} of the jobs
+         * @param timeUnit the delay unit
+         * @param refreshFraction fraction of the postpone time after which a lease is refreshed, must be greater 0 and less
+         *        than 1
+         * @return the builder
+         */
+        public Builder<K, V> withLeaseExtension(long initialDelay, TimeUnit timeUnit, double refreshFraction) {
+
+            WorkingLeases.validate(initialDelay, timeUnit, refreshFraction);
+
+            this.leaseInitialDelay = initialDelay;
+            this.leaseUnit = timeUnit;
+            this.leaseRefreshFraction = refreshFraction;
+            return this;
+        }
+
+        /**
+         * Retry jobs whose handler throws an exception with an exponential backoff instead of returning them to their queue
+         * using {@code NACK}. The failed job is added again to its queue with a {@code DELAY} and acknowledged with the next
+         * batch of acknowledgements once it was added, so retries do not compete with fresh jobs. The delay of attempt
+         * {@code n} is {@code min(base * 2^(n-1), max)} with half of it randomized. Attempts are derived from the
+         * {@code nacks} and {@code additional-deliveries} counters of the job, which requires jobs fetched with counters (see
+         * {@link QueueListenerFactory#withCounters()}), and from the attempts of the jobs this worker added again. The
+         * default jobs of the worker are fetched with counters. The retried jobs are added with the server defaults for
+         * {@code TTL}, {@code RETRY}, {@code REPLICATE} and {@code MAXLEN}, use
+         * {@link #withRetryBackoff(long, long, TimeUnit, AddJobArgs)} to configure them.
+         *
+         * @param base delay of the first retry, must be greater 0. {@code DELAY} has a resolution of seconds.
+         * @param max maximal delay, must not be less than {@code base}
+         * @param timeUnit the delay unit
+         * @return the builder
+         */
+        public Builder<K, V> withRetryBackoff(long base, long max, TimeUnit timeUnit) {
+
+            this.retryBackoff = new RetryBackoff(base, max, timeUnit);
+            return this;
+        }
+
+        /**
+         * Retry jobs whose handler throws an exception with an exponential backoff and add the retried jobs with the
+         * {@code retryArgs}. The {@code DELAY} of the {@code retryArgs} is replaced by the backoff delay, a {@code TTL} must
+         * exceed the maximal delay.
+         *
+         * @param base delay of the first retry, must be greater 0. {@code DELAY} has a resolution of seconds.
+         * @param max maximal delay, must not be less than {@code base}
+         * @param timeUnit the delay unit
+         * @param retryArgs the {@code ADDJOB} arguments of the retried jobs, must not be {@literal null}
+         * @return the builder
+         * @see #withRetryBackoff(long, long, TimeUnit)
+         */
+        public Builder<K, V> withRetryBackoff(long base, long max, TimeUnit timeUnit, AddJobArgs retryArgs) {
+
+            LettuceAssert.notNull(retryArgs, "AddJobArgs must not be null");
+
+            this.retryBackoff = new RetryBackoff(base, max, timeUnit);
+            this.retryArgs = retryArgs;
+            return this;
+        }
+
+        /**
+         * Move jobs that failed at least {@code maxFailures} times to the {@code deadLetterQueue} instead of handling them.
+         * The failures of a job are its {@code nacks} and {@code additional-deliveries} counters, which requires jobs fetched
+         * with counters (see {@link QueueListenerFactory#withCounters()}), or its attempts with
+         * {@link #withRetryBackoff(long, long, TimeUnit) retry backoff}. A poison job is added to the dead-letter queue and
+         * acknowledged with the next batch of acknowledgements once it was added, it never reaches the handler or the
+         * executor. The default jobs of the worker are fetched with counters. The jobs are added to the dead-letter queue with
+         * the server defaults for {@code TTL}, {@code RETRY}, {@code REPLICATE} and {@code MAXLEN}, use
+         * {@link #withDeadLetterQueue(Object, long, AddJobArgs)} to configure them.
+         *
+         * @param deadLetterQueue the dead-letter queue, must not be {@literal null}
+         * @param maxFailures number of failures after which a job is moved, must be greater 0
+         * @return the builder
+         */
+        public Builder<K, V> withDeadLetterQueue(K deadLetterQueue, long maxFailures) {
+
+            LettuceAssert.notNull(deadLetterQueue, "Dead-letter queue must not be null");
+            LettuceAssert.isTrue(maxFailures > 0, "Max failures must be greater 0");
+
+            this.deadLetterQueue = deadLetterQueue;
+            this.maxFailures = maxFailures;
+            return this;
+        }
+
+        /**
+         * Move jobs that failed at least {@code maxFailures} times to the {@code deadLetterQueue} and add them with the
+         * {@code deadLetterArgs}, e.g. a long {@code TTL} to keep them for inspection.
+         *
+         * @param deadLetterQueue the dead-letter queue, must not be {@literal null}
+         * @param maxFailures number of failures after which a job is moved, must be greater 0
+         * @param deadLetterArgs the {@code ADDJOB} arguments of the dead-letter jobs, must not be {@literal null}
+         * @return the builder
+         * @see #withDeadLetterQueue(Object, long)
+         */
+        public Builder<K, V> withDeadLetterQueue(K deadLetterQueue, long maxFailures, AddJobArgs deadLetterArgs) {
+
+            LettuceAssert.notNull(deadLetterArgs, "AddJobArgs must not be null");
+
+            withDeadLetterQueue(deadLetterQueue, maxFailures);
+            this.deadLetterArgs = deadLetterArgs;
+            return this;
+        }
+
+        /**
+         * Acknowledge redeliveries of recently acknowledged jobs without running the handler. Disque delivers jobs at least
+         * once, a job may be delivered again after a failover or when its {@code RETRY} expires before it was acknowledged.
+         * The ids of the acknowledged jobs are kept as 128 bit hashes in primitive arrays, each tracked id costs 32 to 40 bytes
+         * and a lookup neither allocates nor retains a {@link String}. The oldest ids are evicted once {@code capacity} ids
+         * are tracked, ids acknowledged before the {@code window} are not considered.
+         *
+         * @param capacity maximal number of tracked job ids, must be greater 0
+         * @param window time window after the acknowledgement in which a delivery is considered a redelivery, must be greater
+         *        0
+         * @param timeUnit the window unit
+         * @return the builder
+         */
+        public Builder<K, V> withDeduplication(int capacity, long window, TimeUnit timeUnit) {
+
+            CompletedJobs.validate(capacity, window, timeUnit);
+
+            this.deduplicationCapacity = capacity;
+            this.deduplicationWindow = window;
+            this.deduplicationUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Process jobs from the {@code jobs} {@link Observable}, e.g. a listener with prefetch or adaptive polling created by
+         * the {@link QueueListenerFactory}. Defaults to {@link QueueListenerFactory#getjobs()}. The jobs are processed
+         * asynchronously, the worker returns recycled jobs ({@link QueueListenerFactory#withJobRecycling()}) to their queue and
+         * stops with an {@link IllegalStateException}.
+         *
+         * @param jobs the jobs, must not be {@literal null}
+         * @return the builder
+         */
+        public Builder<K, V> withJobs(Observable<Job<K, V>> jobs) {
+
+            LettuceAssert.notNull(jobs, "Jobs must not be null");
+
+            this.jobs = jobs;
+            return this;
+        }
+
+        /**
+         * Create and start the {@link JobWorker}.
+         *
+         * @return the started {@link JobWorker}
+         */
+        public JobWorker<K, V> start() {
+
+            JobWorker<K, V> worker = new JobWorker<K, V>(this);
+            onStart.accept(worker);
+            worker.start(jobs != null ? jobs : defaultJobs.apply(retryBackoff != null || deadLetterQueue != null));
+            return worker;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Decaying statistics of the nodes that created the received jobs. Disque job ids embed the first
+ * {@link #PREFIX_LENGTH} characters of the id of the creating node, which are packed into a {@code long} to identify the
+ * node. Each node uses a slot of primitive arrays, so recording a job allocates nothing. Received jobs are counted per check
+ * interval and folded into an exponentially decayed score on each {@link #update() update}: the score of a node is halved
+ * (see {@link #DECAY}) and the jobs received since the last update are added. A node that stops producing fades out over a
+ * few intervals instead of being forgotten at once, and a single interval can't flip the preferred node.
+ * <p>
+ * A switch to the best node is only {@link #isSwitchBeneficial(String, String) beneficial} if its score exceeds the score of
+ * the current node by the margin. The margin acts as hysteresis and keeps consumers from oscillating between nodes that
+ * produce a similar number of jobs. The statistics track up to {@link #MAX_NODES} nodes, the node with the lowest score gives
+ * up its slot to a new node. Instances are stateful and bound to a single subscription.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class NodeLocality {
+
+    /**
+     * Default margin by which the score of a node must exceed the score of the current node to switch.
+     */
+    static final double DEFAULT_MARGIN = 0.25;
+
+    /**
+     * Factor applied to the scores on each update.
+     */
+    static final double DECAY = 0.5;
+
+    /**
+     * Maximal number of tracked nodes.
+     */
+    static final int MAX_NODES = 64;
+
+    /**
+     * Number of node id characters embedded in a job id.
+     */
+    static final int PREFIX_LENGTH = 8;
+
+    private static final int PREFIX_OFFSET = QueueListener.JOB_ID_PREFIX.length();
+
+    private final double margin;
+    private final long[] nodes = new long[MAX_NODES];
+    private final long[] received = new long[MAX_NODES];
+    private final double[] scores = new double[MAX_NODES];
+
+    private int size;
+
+    /**
+     * @param margin the relative margin, must be greater or equal to 0
+     */
+    NodeLocality(double margin) {
+
+        validate(margin);
+        this.margin = margin;
+    }
+
+    /**
+     * Validate the margin.
+     *
+     * @param margin the relative margin
+     */
+    static void validate(double margin) {
+        LettuceAssert.isTrue(margin >= 0 && !Double.isNaN(margin) && !Double.isInfinite(margin),
+                "Margin must be greater or equal to 0");
+    }
+
+    /**
+     * Record a received job. Ids that don't follow the Disque job id format are ignored.
+     *
+     * @param jobId the job id
+     */
+    synchronized void onReceived(String jobId) {
+
+        if (jobId.length() < QueueListener.MIN_DISQUE_JOB_ID_LENGTH || !jobId.startsWith(QueueListener.JOB_ID_PREFIX)) {
+            return;
+        }
+
+        received[slotOf(pack(jobId, PREFIX_OFFSET))]++;
+    }
+
+    /**
+     * Fold the jobs received since the last update into the decayed scores.
+     */
+    synchronized void update() {
+
+        for (int i = 0; i < size; i++) {
+            scores[i] = scores[i] * DECAY + received[i];
+            received[i] = 0;
+        }
+    }
+
+    /**
+     * Forget the statistics of a node, e.g. because it is leaving the cluster.
+     *
+     * @param nodeId the node id or its prefix, must not be shorter than {@link #PREFIX_LENGTH}
+     */
+    synchronized void remove(String nodeId) {
+
+        int slot = indexOf(pack(nodeId, 0));
+        if (slot == -1) {
+            return;
+        }
+
+        size--;
+        nodes[slot] = nodes[size];
+        received[slot] = received[size];
+        scores[slot] = scores[size];
+        received[size] = 0;
+        scores[size] = 0;
+    }
+
+    /**
+     *
+     * @return the id prefix of the node with the highest score or {@literal null} if no jobs were recorded
+     */
+    synchronized String getBestNodeIdPrefix() {
+
+        int best = getBest();
+        return best == -1 ? null : unpack(nodes[best]);
+    }
+
+    /**
+     * Check whether switching to {@code nodeIdPrefix} improves the locality: the score of {@code nodeIdPrefix} must exceed
+     * the score of the current node by the margin.
+     *
+     * @param nodeIdPrefix the id prefix of the candidate node
+     * @param currentNodeId the id of the current node, may be {@literal null} if not known
+     * @return {@literal true} if the switch is beneficial
+     */
+    synchronized boolean isSwitchBeneficial(String nodeIdPrefix, String currentNodeId) {
+
+        double candidate = getScore(nodeIdPrefix);
+        double current = currentNodeId != null ? getScore(currentNodeId) : 0;
+        return candidate > 0 && candidate > current * (1 + margin);
+    }
+
+    /**
+     *
+     * @param nodeId the node id or its prefix
+     * @return the decayed score of the node
+     */
+    synchronized double getScore(String nodeId) {
+
+        if (nodeId.length() < PREFIX_LENGTH) {
+            return 0;
+        }
+
+        int slot = indexOf(pack(nodeId, 0));
+        return slot == -1 ? 0 : scores[slot];
+    }
+
+    private int getBest() {
+
+        int best = -1;
+        for (int i = 0; i < size; i++) {
+            if (scores[i] > 0 && (best == -1 || scores[i] > scores[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int slotOf(long node) {
+
+        int slot = indexOf(node);
+        if (slot != -1) {
+            return slot;
+        }
+
+        if (size < MAX_NODES) {
+            slot = size++;
+        } else {
+            // replace the node with the lowest score
+            slot = 0;
+            for (int i = 1; i < size; i++) {
+                if (scores[i] + received[i] < scores[slot] + received[slot]) {
+                    slot = i;
+                }
+            }
+        }
+
+        nodes[slot] = node;
+        received[slot] = 0;
+        scores[slot] = 0;
+        return slot;
+    }
+
+    private int indexOf(long node) {
+
+        for (int i = 0; i < size; i++) {
+            if (nodes[i] == node) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Pack {@link #PREFIX_LENGTH} ASCII characters starting at {@code offset} into a {@code long}.
+     */
+    static long pack(String value, int offset) {
+
+        LettuceAssert.isTrue(value.length() >= offset + PREFIX_LENGTH, "Value must contain a node id prefix");
+
+        long packed = 0;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            packed = packed << 8 | (value.charAt(offset + i) & 0xff);
+        }
+        return packed;
+    }
+
+    static String unpack(long packed) {
+
+        char[] chars = new char[PREFIX_LENGTH];
+        for (int i = PREFIX_LENGTH - 1; i >= 0; i--) {
+            chars[i] = (char) (packed & 0xff);
+            packed >>>= 8;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.net.InetSocketAddress;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * {@link NodeIdAwareSocketAddressSupplier} that is pinned to a single cluster node. The {@code HELLO} node list is reduced to
+ * the pinned node so reconnects always target the same node. Subscriptions on a pinned connection do not reconnect when the
+ * node is leaving the cluster, they complete and leave it to their owner to drop the node.
+ *
+ * @author Mark Paluch
+ */
+class NodePinnedSocketAddressSupplier extends NodeIdAwareSocketAddressSupplier {
+
+    private final String nodeId;
+
+    /**
+     *
+     * @param disqueNode the node to connect to, must not be {@literal null}
+     */
+    NodePinnedSocketAddressSupplier(DisqueNode disqueNode) {
+        super(() -> InetSocketAddress.createUnresolved(disqueNode.getAddr(), disqueNode.getPort()));
+
+        LettuceAssert.notNull(disqueNode.getNodeId(), "NodeId must not be null");
+        this.nodeId = disqueNode.getNodeId();
+    }
+
+    @Override
+    public void reloadNodes() {
+        super.reloadNodes();
+        getNodes().removeIf(disqueNode -> !nodeId.equals(disqueNode.getNodeId()));
+    }
+
+    /**
+     *
+     * @return the id of the pinned node
+     */
+    String getNodeId() {
+        return nodeId;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.observers.SafeSubscriber;
+
+/**
+ * Operator that invokes a callback after the downstream {@link Subscriber} returns from {@link Subscriber#onNext(Object)}.
+ * The callback is invoked on the thread of the {@link Subscriber} once the handler is finished with the element. An optional
+ * gate decides right before the emission whether an element is still emitted or dropped, and an optional callback is invoked
+ * for elements whose handler failed.
+ * <p>
+ * A handler fails if its {@link Subscriber#onNext(Object)} throws. The handler of a {@link SafeSubscriber} is invoked
+ * directly so its exception is visible to the operator. The failure callback runs before the exception is propagated to
+ * {@link Subscriber#onError(Throwable)}, which unsubscribes the subscriber. An unsubscription without a failure, e.g. by
+ * {@link Observable#take(int)}, leaves the element handled.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class OnHandledOperator<T> implements Observable.Operator<T, T> {
+
+    private final Func1<? super T, Boolean> onEmit;
+    private final Action1<? super T> onHandled;
+    private final Action1<? super T> onFailed;
+
+    OnHandledOperator(Action1<? super T> onHandled) {
+        this(null, onHandled, null);
+    }
+
+    /**
+     * @param onEmit gate invoked before the emission, the element is dropped if it returns {@literal false}, may be
+     *        {@literal null}
+     * @param onHandled invoked after the handler is finished with the element
+     * @param onFailed invoked if the handler of the element failed, may be {@literal null}
+     */
+    OnHandledOperator(Func1<? super T, Boolean> onEmit, Action1<? super T> onHandled, Action1<? super T> onFailed) {
+        this.onEmit = onEmit;
+        this.onHandled = onHandled;
+        this.onFailed = onFailed;
+    }
+
+    @Override
+    public Subscriber<? super T> call(final Subscriber<? super T> child) {
+
+        // a SafeSubscriber swallows the exception of its handler
+        final Subscriber<? super T> handler = child instanceof SafeSubscriber ? ((SafeSubscriber<? super T>) child).getActual()
+                : child;
+
+        return new Subscriber<T>(child) {
+
+            @Override
+            public void onCompleted() {
+                child.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                child.onError(e);
+            }
+
+            @Override
+            public void onNext(T t) {
+
+                if (child.isUnsubscribed() || (onEmit != null && !onEmit.call(t))) {
+                    return;
+                }
+
+                try {
+                    handler.onNext(t);
+                } catch (Throwable e) {
+
+                    // release the element before onError unsubscribes and releases the remaining elements
+                    if (onFailed != null) {
+                        onFailed.call(t);
+                    }
+                    Exceptions.throwOrReport(e, child, t);
+                    return;
+                }
+
+                onHandled.call(t);
+            }
+        };
+    }
+}
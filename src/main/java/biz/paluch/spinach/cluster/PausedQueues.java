@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Scheduler;
+
+/**
+ * Detection of queues that are paused for consumers ({@code PAUSE OUT} respective {@code ALL}). A paused queue always yields
+ * an empty {@code GETJOB} reply, so a listener that keeps polling it wastes a roundtrip per poll. Empty replies trigger a
+ * {@code QSTAT} of the polled queues, at most once per check interval. Queues reported as paused are left out of the
+ * {@code GETJOB} commands and re-checked every check interval. Listeners resume polling a queue as soon as the re-check reports
+ * the queue is no longer paused.
+ * <p>
+ * The checks use their own connection and the asynchronous API. The pause state is node-local unless the pause was
+ * broadcasted, so the state is the one of the node the check connection is connected to. Instances are shared by the
+ * subscriptions of a {@link QueueListener}.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class PausedQueues<K, V> {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(PausedQueues.class);
+
+    private final Supplier<LocalityAwareConnection<K, V>> connectionSupplier;
+    private final Supplier<K[]> queues;
+    private final Runnable onResumed;
+    private final long checkInterval;
+    private final TimeUnit timeUnit;
+    private final Scheduler.Worker worker;
+    private final Set<K> paused = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private final AtomicBoolean recheckScheduled = new AtomicBoolean();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    private volatile LocalityAwareConnection<K, V> connection;
+    private volatile long lastCheck;
+
+    /**
+     * @param scheduler the scheduler for the checks
+     * @param connectionSupplier supplier for the connection used to check the queues
+     * @param queues supplier for the current queues of the listener
+     * @param onResumed callback invoked when a paused queue was resumed
+     * @param checkInterval minimal interval between checks of the polled queues and interval between re-checks of paused
+     *        queues
+     * @param timeUnit the interval unit
+     */
+    PausedQueues(Scheduler scheduler, Supplier<LocalityAwareConnection<K, V>> connectionSupplier, Supplier<K[]> queues,
+            Runnable onResumed, long checkInterval, TimeUnit timeUnit) {
+
+        LettuceAssert.isTrue(checkInterval > 0, "Check interval must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+        this.connectionSupplier = connectionSupplier;
+        this.queues = queues;
+        this.onResumed = onResumed;
+        this.checkInterval = checkInterval;
+        this.timeUnit = timeUnit;
+        this.worker = scheduler.createWorker();
+        this.lastCheck = System.nanoTime() - timeUnit.toNanos(checkInterval);
+    }
+
+    /**
+     *
+     * @param qstat the {@code QSTAT} reply of a queue
+     * @return {@literal true} if the queue is paused for consumers
+     */
+    static boolean isPaused(Map<String, Object> qstat) {
+
+        Object pause = qstat.get("pause");
+        return "out".equals(pause) || "all".equals(pause);
+    }
+
+    /**
+     * Retrieve the {@code queues} that are not paused. Returns {@code queues} if no queue is paused.
+     *
+     * @param queues the current queues of the listener
+     * @return the queues that are not paused, may be empty
+     */
+    K[] getActiveQueues(K[] queues) {
+
+        if (paused.isEmpty()) {
+            return queues;
+        }
+
+        K[] result = Arrays.copyOf(queues, queues.length);
+        int size = 0;
+        for (K queue : queues) {
+            if (!paused.contains(queue)) {
+                result[size++] = queue;
+            }
+        }
+        return size == queues.length ? queues : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Record an empty {@code GETJOB} reply. Checks the polled queues for a pause unless they were checked within the check
+     * interval.
+     */
+    void onEmptyReply() {
+
+        long now = System.nanoTime();
+        if (!open.get() || now - lastCheck < timeUnit.toNanos(checkInterval) || !checking.compareAndSet(false, true)) {
+            return;
+        }
+
+        lastCheck = now;
+        worker.schedule(() -> check(getActiveQueues(queues.get())));
+    }
+
+    /**
+     * Update the pause state of the {@code queue}.
+     *
+     * @param queue the queue
+     * @param pausedState {@literal true} if the queue is paused for consumers
+     * @return {@literal true} if the queue was paused and is no longer paused
+     */
+    boolean update(K queue, boolean pausedState) {
+
+        if (pausedState) {
+            if (paused.add(queue)) {
+                log.debug("Queue {} is paused, suspending polling", queue);
+            }
+            return false;
+        }
+
+        if (paused.remove(queue)) {
+            log.debug("Queue {} is no longer paused, resuming polling", queue);
+            return true;
+        }
+        return false;
+    }
+
+    private void recheck() {
+
+        // forget queues that were removed from the listener
+        paused.retainAll(Arrays.asList(queues.get()));
+
+        if (!open.get() || paused.isEmpty()) {
+            recheckScheduled.set(false);
+            return;
+        }
+
+        if (checking.compareAndSet(false, true)) {
+            check(paused.toArray(Arrays.copyOf(queues.get(), 0)));
+        }
+
+        worker.schedule(this::recheck, checkInterval, timeUnit);
+    }
+
+    private void check(K[] queues) {
+
+        if (!open.get() || queues.length == 0) {
+            checking.set(false);
+            return;
+        }
+
+        try {
+            if (connection == null) {
+                connection = connectionSupplier.get();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot connect to check for paused queues: " + e.toString(), e);
+            checking.set(false);
+            return;
+        }
+
+        List<CompletableFuture<Map<String, Object>>> futures = new ArrayList<>(queues.length);
+        for (K queue : queues) {
+            futures.add(connection.getConnection().async().qstat(queue).toCompletableFuture());
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignore, throwable) -> {
+
+                    boolean resumed = false;
+                    for (int i = 0; i < queues.length; i++) {
+
+                        // a failed check keeps the state of the queue
+                        if (!futures.get(i).isCompletedExceptionally()) {
+                            resumed |= update(queues[i], isPaused(futures.get(i).join()));
+                        }
+                    }
+
+                    if (throwable != null) {
+                        log.warn("Cannot check for paused queues: " + throwable.toString());
+                    }
+
+                    checking.set(false);
+
+                    if (!paused.isEmpty() && recheckScheduled.compareAndSet(false, true)) {
+                        worker.schedule(this::recheck, checkInterval, timeUnit);
+                    }
+
+                    if (resumed) {
+                        onResumed.run();
+                    }
+                });
+    }
+
+    /**
+     * Stop checking and close the check connection.
+     */
+    void close() {
+
+        if (!open.compareAndSet(true, false)) {
+            return;
+        }
+
+        // closing the connection blocks, so run it outside of the calling thread
+        worker.schedule(() -> {
+            try {
+                if (connection != null) {
+                    connection.getConnection().close();
+                }
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer for prefetched {@link Job jobs}. The buffer tracks the number of jobs
+ * and the size of the job bodies in bytes. Fetching should stop once the buffer is {@link #isAboveHighWatermark() above the
+ * high watermark} and resume once the buffer is {@link #isBelowLowWatermark() below the low watermark}.
+ * <p>
+ * {@link #offer(Job)} must be called by a single producer and {@link #poll()} by a single consumer at a time.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class PrefetchBuffer<K, V> {
+
+    private final Job<K, V>[] buffer;
+    private final int mask;
+    private final int lowJobs;
+    private final int highJobs;
+    private final long lowBytes;
+    private final long highBytes;
+    private final ToIntFunction<? super V> bodySize;
+
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param lowJobs low watermark of the number of buffered jobs
+     * @param highJobs high watermark of the number of buffered jobs, the buffer capacity
+     * @param lowBytes low watermark of the buffered body bytes
+     * @param highBytes high watermark of the buffered body bytes
+     * @param bodySize function to determine the size of a job body in bytes
+     */
+    @SuppressWarnings("unchecked")
+    PrefetchBuffer(int lowJobs, int highJobs, long lowBytes, long highBytes, ToIntFunction<? super V> bodySize) {
+
+        validate(lowJobs, highJobs, lowBytes, highBytes);
+        LettuceAssert.notNull(bodySize, "Body size function must not be null");
+
+        int capacity = Integer.highestOneBit(highJobs - 1) << 1;
+        this.buffer = (Job<K, V>[]) new Job<?, ?>[Math.max(capacity, 1)];
+        this.mask = buffer.length - 1;
+        this.lowJobs = lowJobs;
+        this.highJobs = highJobs;
+        this.lowBytes = lowBytes;
+        this.highBytes = highBytes;
+        this.bodySize = bodySize;
+    }
+
+    /**
+     * Validate the watermarks.
+     *
+     * @param lowJobs low watermark of the number of buffered jobs
+     * @param highJobs high watermark of the number of buffered jobs
+     * @param lowBytes low watermark of the buffered body bytes
+     * @param highBytes high watermark of the buffered body bytes
+     */
+    static void validate(int lowJobs, int highJobs, long lowBytes, long highBytes) {
+
+        LettuceAssert.isTrue(highJobs > 0, "High watermark of jobs must be greater 0");
+        LettuceAssert.isTrue(lowJobs >= 0 && lowJobs < highJobs,
+                "Low watermark of jobs must be greater or equal 0 and less than the high watermark");
+        LettuceAssert.isTrue(highBytes > 0, "High watermark of bytes must be greater 0");
+        LettuceAssert.isTrue(lowBytes >= 0 && lowBytes < highBytes,
+                "Low watermark of bytes must be greater or equal 0 and less than the high watermark");
+    }
+
+    /**
+     * Estimate the size of a job body. Supports {@code byte[]}, {@link ByteBuffer} and {@link CharSequence} (one byte per
+     * character). Other bodies are not accounted.
+     *
+     * @param body the job body
+     * @return the estimated size in bytes
+     */
+    static int estimateBodySize(Object body) {
+
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+
+        if (body instanceof ByteBuffer) {
+            return ((ByteBuffer) body).remaining();
+        }
+
+        if (body instanceof CharSequence) {
+            return ((CharSequence) body).length();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Add a job to the buffer.
+     *
+     * @param job the job
+     * @return {@literal true} if the job was added, {@literal false} if the buffer is full
+     */
+    boolean offer(Job<K, V> job) {
+
+        long index = producerIndex.get();
+        if (index - consumerIndex.get() >= highJobs) {
+            return false;
+        }
+
+        bytes.addAndGet(bodySize.applyAsInt(job.getBody()));
+        buffer[(int) index & mask] = job;
+        producerIndex.lazySet(index + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest job from the buffer.
+     *
+     * @return the job or {@literal null} if the buffer is empty
+     */
+    Job<K, V> poll() {
+
+        long index = consumerIndex.get();
+        if (index >= producerIndex.get()) {
+            return null;
+        }
+
+        int offset = (int) index & mask;
+        Job<K, V> job = buffer[offset];
+        buffer[offset] = null;
+        consumerIndex.lazySet(index + 1);
+        bytes.addAndGet(-bodySize.applyAsInt(job.getBody()));
+        return job;
+    }
+
+    /**
+     *
+     * @return the number of buffered jobs
+     */
+    int size() {
+        return (int) (producerIndex.get() - consumerIndex.get());
+    }
+
+    /**
+     *
+     * @return the size of the buffered job bodies in bytes
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     *
+     * @return the number of jobs that can be added until the high watermark of jobs is reached
+     */
+    int remainingCapacity() {
+        return Math.max(0, highJobs - size());
+    }
+
+    /**
+     *
+     * @return {@literal true} if the number of jobs or the body bytes reached the high watermark
+     */
+    boolean isAboveHighWatermark() {
+        return size() >= highJobs || bytes() >= highBytes;
+    }
+
+    /**
+     *
+     * @return {@literal true} if the number of jobs and the body bytes are at or below the low watermark
+     */
+    boolean isBelowLowWatermark() {
+        return size() <= lowJobs && bytes() <= lowBytes;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import com.lambdaworks.redis.KeyScanCursor;
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.QScanArgs;
+import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Scheduler;
+
+/**
+ * Discovery of non-empty queues matching a pattern. Disque has no server-side filter for queue names, so the discovery
+ * iterates the queues using {@code QSCAN} with {@code MINLEN 1} and filters the queue names on the client side. Each scan cycle
+ * walks the cursor one page at a time using the asynchronous API: the next page is requested on the
+ * {@link rx.Scheduler.Worker worker} once the previous page is received, so a large number of queues never blocks a thread or
+ * the {@code GETJOB} commands of the listener. The matching queues are published once a scan cycle is complete and the next
+ * cycle starts after the discovery interval.
+ * <p>
+ * The discovery uses its own connection. Queues are node-local, so the discovered queues are the non-empty queues of the node
+ * the discovery connection is connected to.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class QueueDiscovery<K, V> {
+
+    /**
+     * Number of queues requested per {@code QSCAN} page.
+     */
+    static final long SCAN_COUNT = 100;
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(QueueDiscovery.class);
+
+    private final Supplier<LocalityAwareConnection<K, V>> connectionSupplier;
+    private final Predicate<? super K> filter;
+    private final Consumer<Set<K>> onDiscovered;
+    private final long interval;
+    private final TimeUnit timeUnit;
+    private final Scheduler.Worker worker;
+    private final QScanArgs scanArgs = QScanArgs.builder().minlen(1).count(SCAN_COUNT).build();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    private volatile LocalityAwareConnection<K, V> connection;
+    private Set<K> discovered = new LinkedHashSet<>();
+
+    /**
+     * @param scheduler the scheduler for the scan cycles
+     * @param connectionSupplier supplier for the connection used to scan the queues
+     * @param filter the queue name filter, must not be {@literal null}
+     * @param onDiscovered callback receiving the matching non-empty queues after each scan cycle
+     * @param interval interval between scan cycles
+     * @param timeUnit the interval unit
+     */
+    QueueDiscovery(Scheduler scheduler, Supplier<LocalityAwareConnection<K, V>> connectionSupplier, Predicate<? super K> filter,
+            Consumer<Set<K>> onDiscovered, long interval, TimeUnit timeUnit) {
+
+        LettuceAssert.notNull(filter, "Filter must not be null");
+        LettuceAssert.isTrue(interval > 0, "Discovery interval must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+        this.connectionSupplier = connectionSupplier;
+        this.filter = filter;
+        this.onDiscovered = onDiscovered;
+        this.interval = interval;
+        this.timeUnit = timeUnit;
+        this.worker = scheduler.createWorker();
+    }
+
+    /**
+     * Create a filter matching queue names against a glob-style {@code pattern}. {@code *} matches any sequence of characters,
+     * {@code ?} matches a single character. All other characters match literally. Queue names are compared using their
+     * {@link Object#toString() string representation}.
+     *
+     * @param pattern the pattern, must not be {@literal null}
+     * @return the filter
+     */
+    static Predicate<Object> glob(String pattern) {
+
+        LettuceAssert.notNull(pattern, "Pattern must not be null");
+
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+
+            if (c != '*' && c != '?') {
+                literal.append(c);
+                continue;
+            }
+
+            if (literal.length() != 0) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+            }
+            regex.append(c == '*' ? ".*" : ".");
+        }
+
+        if (literal.length() != 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+
+        Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        return queue -> compiled.matcher(queue.toString()).matches();
+    }
+
+    /**
+     * Start the first scan cycle unless the discovery is already started.
+     */
+    void start() {
+        if (started.compareAndSet(false, true)) {
+            worker.schedule(this::scan);
+        }
+    }
+
+    private void scan() {
+
+        if (!open.get()) {
+            return;
+        }
+
+        try {
+            if (connection == null) {
+                connection = connectionSupplier.get();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot connect for queue discovery: " + e.toString(), e);
+            worker.schedule(this::scan, interval, timeUnit);
+            return;
+        }
+
+        scanPage(null);
+    }
+
+    private void scanPage(KeyScanCursor<K> cursor) {
+
+        if (!open.get()) {
+            return;
+        }
+
+        RedisFuture<KeyScanCursor<K>> future = cursor == null ? connection.getConnection().async().qscan(scanArgs)
+                : connection.getConnection().async().qscan(cursor, scanArgs);
+
+        future.whenComplete((result, throwable) -> {
+
+            if (throwable != null) {
+                log.warn("Queue discovery failed: " + throwable.toString(), throwable);
+                discovered = new LinkedHashSet<>();
+                worker.schedule(this::scan, interval, timeUnit);
+                return;
+            }
+
+            for (K queue : result.getKeys()) {
+                if (filter.test(queue)) {
+                    discovered.add(queue);
+                }
+            }
+
+            if (!result.isFinished()) {
+                // continue on the worker to not hold up the I/O thread with the callbacks of large scans
+                worker.schedule(() -> scanPage(result));
+                return;
+            }
+
+            Set<K> queues = discovered;
+            discovered = new LinkedHashSet<>();
+
+            try {
+                onDiscovered.accept(queues);
+            } catch (RuntimeException e) {
+                log.warn("Cannot apply discovered queues: " + e.toString(), e);
+            }
+
+            worker.schedule(this::scan, interval, timeUnit);
+        });
+    }
+
+    /**
+     * Stop scanning and close the discovery connection.
+     */
+    void close() {
+
+        if (!open.compareAndSet(true, false)) {
+            return;
+        }
+
+        // closing the connection blocks, so run it outside of the calling thread
+        worker.schedule(() -> {
+            try {
+                if (connection != null) {
+                    connection.getConnection().close();
+                }
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+    }
+}
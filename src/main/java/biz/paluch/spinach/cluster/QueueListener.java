@@ -15,13 +15,23 @@
  */
 package biz.paluch.spinach.cluster;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import com.lambdaworks.redis.internal.LettuceAssert;
+
 import biz.paluch.spinach.api.DisqueConnection;
 import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.output.JobPool;
 import io.netty.util.internal.ConcurrentSet;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
@@ -30,10 +40,12 @@ import rx.Scheduler;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 
 /**
  * Queue listener create an {@link Observable}. This class creates a connection upon subscription and receives jobs from Disque.
- * Jobs are passed to the {@link Subscriber}. The connection and the used resources are freed upon unsubscription.
+ * Jobs are passed to the {@link Subscriber} according to its demand. The connection and the used resources are freed upon
+ * unsubscription.
  * <p>
  * A {@link QueueListener} can track locality and check periodically whether the connected node is the one which produces the
  * most jobs. If the majority of received jobs originate from a different node, the listener is able to switch nodes.
@@ -60,7 +72,28 @@ class QueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
     private long improveLocalityInterval = 0;
     private TimeUnit improveLocalityTimeUnit = null;
     private boolean jobLocalityTracking;
+    private double localityMargin = NodeLocality.DEFAULT_MARGIN;
+    private AdaptivePolling adaptivePolling;
+    private AdaptiveCount adaptiveCount;
+    private InFlightLimits<K> inFlightLimits;
+    private boolean inFlightTracking;
+    private InFlightJournal journal;
+    private JobPool<K, V> jobPool;
+    private Function<DisqueNode, LocalityAwareConnection<K, V>> controlChannelFactory;
+    private WeightedFairness<K> fairness;
+    private Supplier<PrefetchBuffer<K, V>> prefetchBufferSupplier;
+    private Predicate<? super K> discoveryFilter;
+    private long discoveryInterval;
+    private TimeUnit discoveryUnit;
+    private long pauseCheckInterval;
+    private TimeUnit pauseCheckUnit;
+    private Consumer<QueueListener<K, V>> onActive;
+    private Consumer<QueueListener<K, V>> onIdle;
 
+    private int subscriptions;
+    private volatile QueueDiscovery<K, V> discovery;
+    private volatile PausedQueues<K, V> pausedQueues;
+    private volatile Scheduler.Worker reconnectWorker;
     private volatile Subscription reconnectTrigger;
 
     QueueListener(Scheduler scheduler, Supplier<LocalityAwareConnection<K, V>> disqueConnectionSupplier,
@@ -71,6 +104,104 @@ class QueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
         this.getJobsArgs = getJobsArgs;
     }
 
+    /**
+     * Create an {@link Observable} that emits jobs on the {@link Scheduler}. Each subscription uses its own
+     * {@link AdaptiveCount}, {@link InFlightLimits} and {@link InFlightJobs} state if enabled. Recycled jobs are released
+     * once the subscriber has handled them. Jobs that were not emitted when the in-flight jobs are released on close are
+     * dropped, they are returned to Disque instead.
+     *
+     * @return the {@link Observable}
+     */
+    Observable<Job<K, V>> toObservable() {
+
+        if (adaptiveCount == null && inFlightLimits == null && !inFlightTracking && jobPool == null) {
+            return observeOn(Observable.create(this));
+        }
+
+        return Observable.defer(() -> {
+
+            AdaptiveCount countState = adaptiveCount != null ? adaptiveCount.newInstance() : null;
+            InFlightLimits<K> limitsState = inFlightLimits != null ? inFlightLimits.newInstance() : null;
+            InFlightJobs jobsState = inFlightTracking ? new InFlightJobs(journal) : null;
+            return observeOn(Observable.create((Observable.OnSubscribe<Job<K, V>>) subscriber -> call(subscriber, countState,
+                    limitsState, jobsState, false)))
+                            .lift(new OnHandledOperator<Job<K, V>>(jobsState != null ? job -> jobsState.emit(job.getId()) : null,
+                                    job -> onHandled(job, countState, limitsState, jobsState, jobPool),
+                                    jobsState != null ? job -> jobsState.failed(job.getId()) : null));
+        });
+    }
+
+    /**
+     * Create an {@link Observable} that emits the jobs of each {@code GETJOB} reply as one batch on the {@link Scheduler}. The
+     * demand of the subscriber is counted in batches. Each subscription uses its own {@link AdaptiveCount},
+     * {@link InFlightLimits} and {@link InFlightJobs} state if enabled.
+     *
+     * @return the {@link Observable}
+     */
+    Observable<List<Job<K, V>>> toBatchObservable() {
+
+        LettuceAssert.assertState(prefetchBufferSupplier == null, "Batch emission does not support a prefetch buffer");
+
+        return Observable.defer(() -> {
+
+            AdaptiveCount countState = adaptiveCount != null ? adaptiveCount.newInstance() : null;
+            InFlightLimits<K> limitsState = inFlightLimits != null ? inFlightLimits.newInstance() : null;
+            InFlightJobs jobsState = inFlightTracking ? new InFlightJobs(journal) : null;
+            Observable<List<Job<K, V>>> observable = Observable
+                    .create((Observable.OnSubscribe<List<Job<K, V>>>) subscriber -> call(subscriber, countState, limitsState,
+                            jobsState, true))
+                    .observeOn(scheduler);
+
+            if (countState == null && limitsState == null && jobsState == null && jobPool == null) {
+                return observable;
+            }
+
+            return observable.lift(new OnHandledOperator<List<Job<K, V>>>(jobsState != null ? jobsState::emit : null, batch -> {
+                for (Job<K, V> job : batch) {
+                    onHandled(job, countState, limitsState, jobsState, jobPool);
+                }
+            }, jobsState != null ? batch -> {
+                for (Job<K, V> job : batch) {
+                    jobsState.failed(job.getId());
+                }
+            } : null));
+        });
+    }
+
+    private static <K, V> void onHandled(Job<K, V> job, AdaptiveCount adaptiveCount, InFlightLimits<K> inFlightLimits,
+            InFlightJobs inFlightJobs, JobPool<K, V> jobPool) {
+
+        if (adaptiveCount != null) {
+            adaptiveCount.onHandled();
+        }
+
+        if (inFlightLimits != null) {
+            inFlightLimits.onHandled(job.getQueue());
+        }
+
+        if (inFlightJobs != null) {
+            inFlightJobs.remove(job.getId());
+        }
+
+        // release last, the job is reused for a later job
+        if (jobPool != null) {
+            jobPool.release(job);
+        }
+    }
+
+    /**
+     * Emit jobs on the {@link Scheduler}. The prefetch buffer emits its jobs on the {@link Scheduler} itself and replaces the
+     * buffer of {@link Observable#observeOn(Scheduler)}.
+     */
+    private Observable<Job<K, V>> observeOn(Observable<Job<K, V>> observable) {
+
+        if (prefetchBufferSupplier != null) {
+            return observable;
+        }
+
+        return observable.observeOn(scheduler);
+    }
+
     /**
      * Setup subscriptions when the Observable subscription is set up.
      * 
@@ -78,6 +209,11 @@ class QueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
      */
     @Override
     public void call(Subscriber<? super Job<K, V>> subscriber) {
+        call(subscriber, null, null, null, false);
+    }
+
+    private void call(Subscriber<?> subscriber, AdaptiveCount adaptiveCount, InFlightLimits<K> inFlightLimits,
+            InFlightJobs inFlightJobs, boolean batches) {
 
         log.debug("onSubscribe()");
         if (subscriber.isUnsubscribed()) {
@@ -87,32 +223,122 @@ class QueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
         String subscriberId = getClass().getSimpleName() + "-" + id + "-" + subscriberIds.incrementAndGet();
         subscriber.onStart();
 
+        PausedQueues<K, V> pausedQueues = activate();
+
         try {
-            Scheduler.Worker worker = scheduler.createWorker();
+            GetJobsSettings<K, V> settings = new GetJobsSettings<K, V>().withBatches(batches)
+                    .withLocality(jobLocalityTracking ? new NodeLocality(localityMargin) : null)
+                    .withAdaptivePolling(adaptivePolling).withAdaptiveCount(adaptiveCount).withInFlightLimits(inFlightLimits)
+                    .withFairness(fairness != null ? fairness.newInstance() : null).withPausedQueues(pausedQueues)
+                    .withInFlightJobs(inFlightJobs).withJobPool(jobPool)
+                    .withPrefetch(prefetchBufferSupplier != null ? prefetchBufferSupplier.get() : null)
+                    .withControlChannel(controlChannelFactory);
 
-            GetJobsAction<K, V> getJobsAction = new GetJobsAction<K, V>(disqueConnectionSupplier, subscriberId, subscriber,
-                    jobLocalityTracking, getJobsArgs);
+            final GetJobsAction<K, V> getJobsAction = new GetJobsAction<K, V>(disqueConnectionSupplier, subscriberId,
+                    subscriber, getJobsArgs, settings, scheduler);
 
             actions.add(getJobsAction);
-            Subscription subscription = worker.schedulePeriodically(getJobsAction, 0, 10, TimeUnit.MILLISECONDS);
-            getJobsAction.setSelfSubscription(subscription);
-
-            if (improveLocalityTimeUnit != null && improveLocalityInterval > 0 && reconnectTrigger == null) {
-                reconnectTrigger = worker.schedulePeriodically(new Action0() {
-                    @Override
-                    public void call() {
-                        switchNodes();
-                    }
-                }, improveLocalityInterval, improveLocalityInterval, improveLocalityTimeUnit);
+            if (onActive != null) {
+                onActive.accept(this);
             }
+
+            // forget closed subscriptions to not retain them for the lifetime of the listener
+            getJobsAction.getClosed().whenComplete((ignore, throwable) -> {
+                actions.remove(getJobsAction);
+                deactivate();
+            });
+            subscriber.add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    getJobsAction.scheduleClose();
+                }
+            }));
+            subscriber.setProducer(getJobsAction);
         } catch (Exception e) {
             if (log.isDebugEnabled()) {
                 log.debug("QueueListener.call caught an exception: {}", e.getMessage(), e);
             }
+            deactivate();
             subscriber.onError(e);
         }
     }
 
+    /**
+     * Register a subscription and start the shared resources of the subscriptions with the first subscription.
+     *
+     * @return the {@link PausedQueues} to use by the subscription, may be {@literal null}
+     */
+    private synchronized PausedQueues<K, V> activate() {
+
+        if (subscriptions++ != 0) {
+            return pausedQueues;
+        }
+
+        if (discoveryFilter != null) {
+            discovery = new QueueDiscovery<K, V>(scheduler, disqueConnectionSupplier, discoveryFilter, this::onDiscovered,
+                    discoveryInterval, discoveryUnit);
+            discovery.start();
+        }
+
+        if (pauseCheckUnit != null) {
+            pausedQueues = new PausedQueues<K, V>(scheduler, disqueConnectionSupplier, getJobsArgs::getQueues, this::resume,
+                    pauseCheckInterval, pauseCheckUnit);
+        }
+
+        if (improveLocalityTimeUnit != null && improveLocalityInterval > 0) {
+            reconnectWorker = scheduler.createWorker();
+            reconnectTrigger = reconnectWorker.schedulePeriodically(new Action0() {
+                @Override
+                public void call() {
+                    switchNodes();
+                }
+            }, improveLocalityInterval, improveLocalityInterval, improveLocalityTimeUnit);
+        }
+
+        return pausedQueues;
+    }
+
+    /**
+     * Unregister a subscription and stop the shared resources of the subscriptions once the last subscription is closed.
+     */
+    private void deactivate() {
+
+        synchronized (this) {
+            if (subscriptions == 0 || --subscriptions != 0) {
+                return;
+            }
+
+            stopSharedResources();
+        }
+
+        if (onIdle != null) {
+            onIdle.accept(this);
+        }
+    }
+
+    private void stopSharedResources() {
+
+        if (discovery != null) {
+            discovery.close();
+            discovery = null;
+        }
+
+        if (pausedQueues != null) {
+            pausedQueues.close();
+            pausedQueues = null;
+        }
+
+        if (reconnectTrigger != null) {
+            reconnectTrigger.unsubscribe();
+            reconnectTrigger = null;
+        }
+
+        if (reconnectWorker != null) {
+            reconnectWorker.unsubscribe();
+            reconnectWorker = null;
+        }
+    }
+
     /**
      * Disable the queue listeners.
      */
@@ -123,22 +349,136 @@ class QueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
     }
 
     /**
-     * Unsubscribe and close the resources.
+     * Unsubscribe and close the resources. Blocks until the resources are closed.
      * 
      * @param timeout
      * @param timeUnit
      */
     public void close(long timeout, TimeUnit timeUnit) {
+        closeAsync(timeout, timeUnit).join();
+    }
+
+    /**
+     * Unsubscribe and close the resources of all subscriptions in parallel without blocking the calling thread.
+     *
+     * @param timeout
+     * @param timeUnit
+     * @return a future that completes once the connections of all subscriptions are closed
+     */
+    CompletableFuture<Void> closeAsync(long timeout, TimeUnit timeUnit) {
 
         disable();
 
-        for (GetJobsAction<K, V> getJobsAction : actions) {
-            getJobsAction.close(timeout, timeUnit);
+        synchronized (this) {
+            stopSharedResources();
         }
 
-        if (reconnectTrigger != null) {
-            reconnectTrigger.unsubscribe();
-            reconnectTrigger = null;
+        return CompletableFuture.allOf(actions.stream().map(action -> action.closeAsync(timeout, timeUnit))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     *
+     * @return {@literal true} if the listener has no open subscription
+     */
+    synchronized boolean isIdle() {
+        return subscriptions == 0;
+    }
+
+    /**
+     * Register callbacks for the subscription lifecycle.
+     *
+     * @param onActive invoked when a subscription is started
+     * @param onIdle invoked when the last subscription is closed, the shared resources of the subscriptions are stopped at
+     *        this point
+     */
+    void withLifecycle(Consumer<QueueListener<K, V>> onActive, Consumer<QueueListener<K, V>> onIdle) {
+        this.onActive = onActive;
+        this.onIdle = onIdle;
+    }
+
+    /**
+     *
+     * @return the current queues of the listener
+     */
+    K[] getQueues() {
+        return getJobsArgs.getQueues();
+    }
+
+    /**
+     * Add queues to the running subscriptions. Takes effect with the next {@code GETJOB} command without reconnecting. Has no
+     * effect if the queues are discovered.
+     *
+     * @param queues the queues to add
+     */
+    void addQueues(K[] queues) {
+
+        if (discoveryFilter != null) {
+            return;
+        }
+
+        getJobsArgs.addQueues(queues);
+
+        // resume subscriptions that paused because all queues reached their in-flight limit
+        resume();
+    }
+
+    /**
+     * Remove queues from the running subscriptions. Takes effect with the next {@code GETJOB} command without reconnecting.
+     * Jobs of the removed queues that were already received are still emitted. Has no effect if the queues are discovered.
+     *
+     * @param queues the queues to remove
+     */
+    void removeQueues(K[] queues) {
+
+        if (discoveryFilter != null) {
+            return;
+        }
+
+        getJobsArgs.removeQueues(queues);
+    }
+
+    /**
+     * Replace the queues of the listener. Used to catch up with queue changes while the listener was idle. Has no effect if
+     * the queues are discovered.
+     *
+     * @param queues the queues
+     */
+    void setQueues(K[] queues) {
+
+        if (discoveryFilter != null) {
+            return;
+        }
+
+        getJobsArgs.setQueues(queues);
+    }
+
+    /**
+     * Replace the queues of the running subscriptions with the discovered queues.
+     *
+     * @param queues the discovered queues
+     */
+    private void onDiscovered(Set<K> queues) {
+
+        K[] current = getJobsArgs.getQueues();
+        K[] discovered = queues.toArray(Arrays.copyOf(current, 0));
+        if (Arrays.equals(current, discovered)) {
+            return;
+        }
+
+        log.debug("Discovered queues {}", queues);
+        getJobsArgs.setQueues(discovered);
+
+        // resume subscriptions that paused without queues
+        resume();
+    }
+
+    /**
+     * Resume polling of subscriptions that paused.
+     */
+    private void resume() {
+        for (GetJobsAction<K, V> action : actions) {
+            action.call();
         }
     }
 
@@ -149,11 +489,165 @@ class QueueListener<K, V> implements Observable.OnSubscribe<Job<K, V>> {
         this.jobLocalityTracking = true;
     }
 
+    /**
+     * Enable adaptive polling.
+     *
+     * @param adaptivePolling the adaptive polling settings
+     */
+    void withAdaptivePolling(AdaptivePolling adaptivePolling) {
+        this.adaptivePolling = adaptivePolling;
+    }
+
+    /**
+     * Enable the adaptive {@code COUNT}.
+     *
+     * @param adaptiveCount the adaptive count template, each subscription uses a {@link AdaptiveCount#newInstance() new
+     *        instance}
+     */
+    void withAdaptiveCount(AdaptiveCount adaptiveCount) {
+        this.adaptiveCount = adaptiveCount;
+    }
+
+    /**
+     * Enable per-queue in-flight limits.
+     *
+     * @param limits the limits per queue, each subscription uses its own state
+     */
+    void withInFlightLimits(Map<K, Integer> limits) {
+        this.inFlightLimits = new InFlightLimits<K>(getJobsArgs.getQueues(), limits);
+    }
+
+    /**
+     * Enable tracking of in-flight jobs. Jobs that were received but not handled by the subscriber are released using a single
+     * {@code NACK} when the subscription ends, including subscriber errors and shutdown.
+     */
+    void withInFlightTracking() {
+        this.inFlightTracking = true;
+    }
+
+    /**
+     * Enable tracking of in-flight jobs and record the in-flight jobs in the {@code journal}.
+     *
+     * @param journal the journal
+     */
+    void withInFlightJournal(InFlightJournal journal) {
+        this.inFlightTracking = true;
+        this.journal = journal;
+    }
+
+    /**
+     * Recycle the emitted jobs using the {@code jobPool}. Jobs are released once the subscriber has handled them.
+     *
+     * @param jobPool the job pool
+     */
+    void withJobRecycling(JobPool<K, V> jobPool) {
+        this.jobPool = jobPool;
+    }
+
+    /**
+     * Send control commands of the subscriptions on a second connection to the polled node.
+     *
+     * @param controlChannelFactory factory for a connection to the given node
+     * @see DualChannelConnection
+     */
+    void withControlChannel(Function<DisqueNode, LocalityAwareConnection<K, V>> controlChannelFactory) {
+        this.controlChannelFactory = controlChannelFactory;
+    }
+
+    /**
+     * Request the counters of the jobs ({@code WITHCOUNTERS}).
+     */
+    void withCounters() {
+        getJobsArgs.setWithCounters(true);
+    }
+
+    /**
+     * Enable weighted fairness across the queues.
+     *
+     * @param weights the weights per queue, queues without a weight use a weight of {@literal 1}
+     */
+    void withWeightedFairness(Map<K, Integer> weights) {
+        this.fairness = new WeightedFairness<K>(getJobsArgs.getQueues(), weights);
+    }
+
+    /**
+     * Enable queue discovery. The listener polls only the non-empty queues that match the {@code filter} instead of its
+     * configured queues and pauses until the first queues are discovered.
+     *
+     * @param filter the queue name filter
+     * @param interval interval between discovery scan cycles
+     * @param timeUnit the interval unit
+     */
+    void withQueueDiscovery(Predicate<? super K> filter, long interval, TimeUnit timeUnit) {
+
+        this.discoveryFilter = filter;
+        this.discoveryInterval = interval;
+        this.discoveryUnit = timeUnit;
+        getJobsArgs.setQueues(Arrays.copyOf(getJobsArgs.getQueues(), 0));
+    }
+
+    /**
+     * Enable the detection of paused queues. Paused queues are left out of the {@code GETJOB} commands until they are resumed.
+     *
+     * @param checkInterval minimal interval between pause checks respective re-checks of paused queues
+     * @param timeUnit the interval unit
+     */
+    void withPauseDetection(long checkInterval, TimeUnit timeUnit) {
+        this.pauseCheckInterval = checkInterval;
+        this.pauseCheckUnit = timeUnit;
+    }
+
+    /**
+     * Enable the prefetch buffer.
+     *
+     * @param prefetchBufferSupplier supplier for a new {@link PrefetchBuffer} per subscription
+     */
+    void withPrefetch(Supplier<PrefetchBuffer<K, V>> prefetchBufferSupplier) {
+        this.prefetchBufferSupplier = prefetchBufferSupplier;
+    }
+
+    /**
+     * Collect the current {@code COUNT} of the open subscriptions.
+     *
+     * @param target the target map, subscription id to count
+     */
+    void collectCounts(Map<String, Long> target) {
+        for (GetJobsAction<K, V> action : actions) {
+            if (action.isOpen()) {
+                target.put(action.getSubscriptionId(), action.getCount());
+            }
+        }
+    }
+
+    /**
+     * Collect the achieved queue shares of the open subscriptions that use weighted fairness.
+     *
+     * @param target the target map, subscription id to the shares per queue
+     */
+    void collectShares(Map<String, Map<K, Double>> target) {
+        for (GetJobsAction<K, V> action : actions) {
+            Map<K, Double> shares = action.getShares();
+            if (action.isOpen() && shares != null) {
+                target.put(action.getSubscriptionId(), shares);
+            }
+        }
+    }
+
     void withNodeSwitching(long nodeReconnectCheckInterval, TimeUnit nodeReconnectCheckTimeUnit) {
         this.improveLocalityInterval = nodeReconnectCheckInterval;
         this.improveLocalityTimeUnit = nodeReconnectCheckTimeUnit;
     }
 
+    /**
+     * Set the margin by which the decayed score of a node must exceed the score of the current node to switch nodes.
+     *
+     * @param margin the relative margin
+     * @see NodeLocality
+     */
+    void withLocalityMargin(double margin) {
+        this.localityMargin = margin;
+    }
+
     /**
      * Initiate the switch nodes check.
      */
@@ -15,11 +15,23 @@
  */
 package biz.paluch.spinach.cluster;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
+import com.lambdaworks.redis.RedisException;
 import com.lambdaworks.redis.codec.RedisCodec;
 import com.lambdaworks.redis.internal.LettuceAssert;
 
@@ -30,6 +42,7 @@ import biz.paluch.spinach.api.Job;
 import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
 import biz.paluch.spinach.impl.SocketAddressSupplier;
 import biz.paluch.spinach.impl.SocketAddressSupplierFactory;
+import biz.paluch.spinach.output.JobPool;
 import rx.Observable;
 import rx.Scheduler;
 import rx.schedulers.Schedulers;
@@ -47,6 +60,19 @@ public class QueueListenerFactory<K, V> {
     public static final int DEFAULT_TIMEOUT = 10;
     public static final TimeUnit DEFAULT_TIMEOUT_UNIT = TimeUnit.MILLISECONDS;
     public static final int DEFAULT_COUNT = 1;
+    public static final int DEFAULT_DRAIN_COUNT = 100;
+    public static final int DEFAULT_MULTIPLEXED_CONNECTIONS = 2;
+    public static final int DEFAULT_TOPOLOGY_REFRESH_INTERVAL = 60;
+    public static final TimeUnit DEFAULT_TOPOLOGY_REFRESH_UNIT = TimeUnit.SECONDS;
+    public static final int DEFAULT_DISCOVERY_INTERVAL = 1;
+    public static final TimeUnit DEFAULT_DISCOVERY_UNIT = TimeUnit.SECONDS;
+    public static final int DEFAULT_PAUSE_CHECK_INTERVAL = 1;
+    public static final TimeUnit DEFAULT_PAUSE_CHECK_UNIT = TimeUnit.SECONDS;
+    public static final int DEFAULT_SCALE_UP_BACKLOG = 100;
+    public static final int DEFAULT_SCALE_DOWN_BACKLOG = 10;
+    public static final int DEFAULT_SCALING_INTERVAL = 1;
+    public static final TimeUnit DEFAULT_SCALING_UNIT = TimeUnit.SECONDS;
+    public static final int DEFAULT_JOURNAL_REPLAY_BATCH = 100;
 
     private final Scheduler scheduler;
     private final DisqueClient disqueClient;
@@ -54,7 +80,12 @@ public class QueueListenerFactory<K, V> {
     private final DisqueURI disqueURI;
     private final RedisCodec<K, V> codec;
     private final List<QueueListener<K, V>> resources = new CopyOnWriteArrayList<>();
-    private final K[] queues;
+    private final List<ClusterQueueListener<K, V>> clusterResources = new CopyOnWriteArrayList<>();
+    private final List<ScalingQueueListener<K, V>> scalingResources = new CopyOnWriteArrayList<>();
+    private final List<JobWorker<K, V>> workers = new CopyOnWriteArrayList<>();
+    private final Map<File, InFlightJournal> journals = new HashMap<>();
+    private volatile K[] queues;
+    private QueueMultiplexer<K, V> multiplexer;
 
     /**
      * @param scheduler the scheduler for blocking operations, must not be {@literal null}
@@ -154,7 +185,8 @@ public class QueueListenerFactory<K, V> {
      * </p>
      * <p>
      * The {@link Observable} emits {@link Job} objects as soon as a job is received from Disque. The terminal event is emitted
-     * as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}.
+     * as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}. Jobs are only fetched while the
+     * {@link rx.Subscriber subscriber} signals demand.
      * </p>
      *
      * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
@@ -173,168 +205,1346 @@ public class QueueListenerFactory<K, V> {
      * </p>
      * <p>
      * The {@link Observable} emits {@link Job} objects as soon as a job is received from Disque. The terminal event is emitted
-     * as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}.
+     * as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}. Jobs are only fetched while the
+     * {@link rx.Subscriber subscriber} signals demand.
      * </p>
      *
      * @param timeout timeout to wait
      * @param timeUnit timeout unit
-     * @param count count of jobs to return
+     * @param count count of jobs to return, limited by the demand of the subscriber
      * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
      */
     public Observable<Job<K, V>> getjobs(long timeout, TimeUnit timeUnit, long count) {
         return new GetJobsBuilder().getjobs(timeout, timeUnit, count);
     }
 
-    private QueueListener<K, V> newOnSubscribe(long timeout, TimeUnit timeUnit, long count) {
-        Supplier<LocalityAwareConnection<K, V>> connectionSupplier = createDisqueConnectionSupplier();
+    /**
+     * Get jobs from the specified queues in batches using a COUNT of {@link #DEFAULT_DRAIN_COUNT}.
+     *
+     * @return an Observable that emits batches of {@link Job} elements until the subscriber terminates the subscription
+     * @see GetJobsBuilder#getjobBatches()
+     */
+    public Observable<List<Job<K, V>>> getjobBatches() {
+        return new GetJobsBuilder().getjobBatches();
+    }
+
+    /**
+     * Get jobs from the specified queues in batches.
+     *
+     * @param timeout timeout to wait
+     * @param timeUnit timeout unit
+     * @param count maximal count of jobs per batch
+     * @return an Observable that emits batches of {@link Job} elements until the subscriber terminates the subscription
+     * @see GetJobsBuilder#getjobBatches(long, TimeUnit, long)
+     */
+    public Observable<List<Job<K, V>>> getjobBatches(long timeout, TimeUnit timeUnit, long count) {
+        return new GetJobsBuilder().getjobBatches(timeout, timeUnit, count);
+    }
+
+    private synchronized QueueListener<K, V> newOnSubscribe(Supplier<LocalityAwareConnection<K, V>> connectionSupplier,
+            long timeout, TimeUnit timeUnit, long count) {
         QueueListener<K, V> onSubscribe = new QueueListener<K, V>(scheduler, connectionSupplier,
                 GetJobsArgs.create(timeout, timeUnit, count, queues));
+        onSubscribe.withLifecycle(this::onActive, this::onIdle);
         resources.add(onSubscribe);
         return onSubscribe;
     }
 
-    /**
-     * Create a new GetJobsBuilder with enabled locality tracking.
-     * <p>
-     * Locality tracking records statistics about the creating node of a job. If the majority of received jobs originate from a
-     * different node, the client should consider moving off the current node to the node which created the jobs. This makes a
-     * good use of locality.
-     * </p>
-     *
-     * @return the LocalityTrackingGetJobsBuilder.
-     */
-    public LocalityTrackingGetJobsBuilder withLocalityTracking() {
-        return new LocalityTrackingGetJobsBuilder();
-    }
+    /**
+     * Track a listener that was resubscribed after it was idle. Queue changes made in the meantime are applied.
+     */
+    private synchronized void onActive(QueueListener<K, V> resource) {
+
+        if (!resources.contains(resource)) {
+            resource.setQueues(queues);
+            resources.add(resource);
+        }
+    }
+
+    /**
+     * Stop tracking a listener without open subscriptions to not retain terminated listeners.
+     */
+    private synchronized void onIdle(QueueListener<K, V> resource) {
+
+        if (resource.isIdle()) {
+            resources.remove(resource);
+        }
+    }
+
+    private synchronized void onActive(ClusterQueueListener<K, V> resource) {
+
+        if (!clusterResources.contains(resource)) {
+            clusterResources.add(resource);
+        }
+    }
+
+    private synchronized void onIdle(ClusterQueueListener<K, V> resource) {
+
+        if (resource.isIdle()) {
+            clusterResources.remove(resource);
+        }
+    }
+
+    private synchronized void onActive(ScalingQueueListener<K, V> resource) {
+
+        if (!scalingResources.contains(resource)) {
+            scalingResources.add(resource);
+        }
+    }
+
+    private synchronized void onIdle(ScalingQueueListener<K, V> resource) {
+
+        if (resource.isIdle()) {
+            scalingResources.remove(resource);
+        }
+    }
+
+    /**
+     * Create a new GetJobsBuilder with enabled locality tracking.
+     * <p>
+     * Locality tracking records statistics about the creating node of a job. If the majority of received jobs originate from a
+     * different node, the client should consider moving off the current node to the node which created the jobs. This makes a
+     * good use of locality.
+     * </p>
+     *
+     * @return the LocalityTrackingGetJobsBuilder.
+     */
+    public LocalityTrackingGetJobsBuilder withLocalityTracking() {
+        return new LocalityTrackingGetJobsBuilder();
+    }
+
+    /**
+     * Create a new GetJobsBuilder with enabled adaptive polling using a {@code COUNT} of {@link #DEFAULT_DRAIN_COUNT}.
+     * <p>
+     * Adaptive polling drains the queues without delay by using {@code NOHANG} as long as the replies are full. Once the
+     * queues run dry, the listener switches to a blocking {@code GETJOB} with a long server-side {@code TIMEOUT} and returns
+     * to draining as soon as jobs arrive.
+     * </p>
+     *
+     * @param longPollTimeout the server-side timeout for blocking {@code GETJOB} commands while the queues are empty
+     * @param timeUnit the timeout unit
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withAdaptivePolling(long longPollTimeout, TimeUnit timeUnit) {
+        return new GetJobsBuilder().withAdaptivePolling(longPollTimeout, timeUnit);
+    }
+
+    /**
+     * Create a new GetJobsBuilder with enabled adaptive polling.
+     *
+     * @param longPollTimeout the server-side timeout for blocking {@code GETJOB} commands while the queues are empty
+     * @param timeUnit the timeout unit
+     * @param drainCount the {@code COUNT} of jobs to fetch with a single {@code GETJOB} command
+     * @return the GetJobsBuilder.
+     * @see #withAdaptivePolling(long, TimeUnit)
+     */
+    public GetJobsBuilder withAdaptivePolling(long longPollTimeout, TimeUnit timeUnit, long drainCount) {
+        return new GetJobsBuilder().withAdaptivePolling(longPollTimeout, timeUnit, drainCount);
+    }
+
+    /**
+     * Create a new GetJobsBuilder with an adaptive {@code COUNT}.
+     * <p>
+     * The {@code COUNT} starts at {@code minCount} and is increased additively while the jobs of a batch are handled within
+     * the {@code RETRY} budget. If the time until the last job of a batch is handled approaches the {@code RETRY} period, the
+     * {@code COUNT} is halved. The current {@code COUNT} per subscription is available through {@link #getCounts()}.
+     * </p>
+     *
+     * @param minCount the minimal {@code COUNT}, must be greater 0
+     * @param maxCount the maximal {@code COUNT}, must be greater or equal to {@code minCount}
+     * @param retry the {@code RETRY} period of the consumed jobs
+     * @param timeUnit the retry unit
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withAdaptiveCount(long minCount, long maxCount, long retry, TimeUnit timeUnit) {
+        return new GetJobsBuilder().withAdaptiveCount(minCount, maxCount, retry, timeUnit);
+    }
+
+    /**
+     * Create a new GetJobsBuilder with a prefetch buffer. The size of job bodies is estimated for {@code byte[]},
+     * {@link java.nio.ByteBuffer} and {@link CharSequence} bodies.
+     * <p>
+     * The prefetch buffer decouples fetching jobs from processing. Jobs are fetched until the buffer reaches one of its high
+     * watermarks, either by number of jobs or by the size of the job bodies. Fetching resumes once the buffer drains below
+     * both low watermarks. Jobs that are still buffered when the subscription is closed are returned to Disque using a single
+     * {@code NACK}.
+     * </p>
+     *
+     * @param lowJobs low watermark of the number of buffered jobs
+     * @param highJobs high watermark of the number of buffered jobs
+     * @param lowBytes low watermark of the buffered body bytes
+     * @param highBytes high watermark of the buffered body bytes
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withPrefetch(int lowJobs, int highJobs, long lowBytes, long highBytes) {
+        return new GetJobsBuilder().withPrefetch(lowJobs, highJobs, lowBytes, highBytes);
+    }
+
+    /**
+     * Create a new GetJobsBuilder with weighted fairness across the queues.
+     * <p>
+     * Disque drains the queues of a {@code GETJOB} command strictly in the given order, so a busy first queue starves the
+     * other queues. Weighted fairness orders the queues of each {@code GETJOB} command so that the queue with the smallest
+     * share of received jobs relative to its weight is drained first. Queues without a weight use a weight of {@literal 1}, so
+     * an empty map results in equal shares. The achieved shares are available through {@link #getShares()}.
+     * </p>
+     *
+     * @param weights the weights per queue, must not be {@literal null}
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withWeightedFairness(Map<K, Integer> weights) {
+        return new GetJobsBuilder().withWeightedFairness(weights);
+    }
+
+    /**
+     * Create a new GetJobsBuilder with an in-flight limit for the {@code queue}.
+     * <p>
+     * A job is in flight from its reception until the subscriber returns from handling it. A queue that reached its limit is
+     * left out of the {@code GETJOB} command until one of its jobs is handled, so slow jobs of one queue cannot occupy all
+     * handler slots while jobs of other queues back up. The {@code COUNT} is limited to the remaining capacity of the polled
+     * queues.
+     * </p>
+     *
+     * @param queue the queue, must be one of the queues of this {@link QueueListenerFactory}
+     * @param limit the maximal number of in-flight jobs of the {@code queue}, must be greater 0
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withInFlightLimit(K queue, int limit) {
+        return new GetJobsBuilder().withInFlightLimit(queue, limit);
+    }
+
+    /**
+     * Create a new GetJobsBuilder that requests the counters of the jobs ({@code WITHCOUNTERS}). The counters are available
+     * through {@link Job#getCounters()}, e.g. the {@code nacks} and {@code additional-deliveries} of a job.
+     *
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withCounters() {
+        return new GetJobsBuilder().withCounters();
+    }
+
+    /**
+     * Create a new GetJobsBuilder that recycles the emitted jobs.
+     * <p>
+     * Each job allocates a {@link Job}, its counters map and the decoded queue name. With recycling, the jobs are taken from a
+     * {@link JobPool} per listener and released to the pool once the subscriber returns from handling them, queue names are
+     * decoded once and the known counter names are not decoded at all. The job id and the body decoded by the codec are still
+     * allocated per job. Subscribers must not retain a job or its counters beyond handling it, a released job is reused for a
+     * later job. Copy the fields of a job that is processed asynchronously. Recycling is not available for cluster-wide
+     * consumption and auto-scaling because their jobs are buffered, a {@link JobWorker} refuses recycled jobs.
+     * </p>
+     *
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withJobRecycling() {
+        return new GetJobsBuilder().withJobRecycling();
+    }
+
+    /**
+     * Create a new GetJobsBuilder that sends control commands on a separate control channel.
+     * <p>
+     * Commands of a connection are processed in order, so a {@code NACK} on the connection of a listener waits behind the
+     * outstanding {@code GETJOB} command for up to its timeout. With a control channel, the {@code NACK} commands releasing
+     * prefetched and in-flight jobs are sent on a second connection to the node the subscription polls. The control channel is
+     * opened with the first control command and follows the subscription when it switches to another node.
+     * </p>
+     *
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withControlChannel() {
+        return new GetJobsBuilder().withControlChannel();
+    }
+
+    /**
+     * Create a new GetJobsBuilder that tracks in-flight jobs.
+     * <p>
+     * A job is in flight from its reception until the subscriber returns from handling it. Without tracking, jobs that were
+     * received but not handled when the subscriber fails, unsubscribes or the factory shuts down stay with the listener until
+     * their retry time passes. With tracking, the ids of the in-flight jobs are kept in a compact hash set per subscription and
+     * released using a single {@code NACK} when the subscription ends, so the jobs are re-queued right away. A job whose
+     * handler throws an exception is not handled and is released as well.
+     * </p>
+     *
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withInFlightTracking() {
+        return new GetJobsBuilder().withInFlightTracking();
+    }
+
+    /**
+     * Create a new GetJobsBuilder that tracks in-flight jobs and records them in a journal.
+     * <p>
+     * Jobs that were received by a JVM that dies stay with the dead consumer until their retry time passes. The journal
+     * records the deliveries and releases of the in-flight jobs (see {@link #withInFlightTracking()}) in an append-only
+     * memory-mapped {@code file}. Recording a job copies its id into a mapped page, without allocation or system call. Mapped
+     * pages are written back even if the JVM dies. When the journal is opened, typically on startup of the next JVM, the
+     * jobs that were delivered but never released are released using {@code NACK} in batches of
+     * {@link #DEFAULT_JOURNAL_REPLAY_BATCH} jobs, so they are re-queued right away. {@code NACK} counts the failed delivery
+     * of the job, unlike {@code ENQUEUE}. The journal is opened once per {@link QueueListenerFactory} and file and is shared by
+     * its listeners.
+     * </p>
+     *
+     * @param file the journal file, must not be {@literal null}
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withInFlightJournal(File file) {
+        return new GetJobsBuilder().withInFlightJournal(file);
+    }
+
+    /**
+     * Create a new GetJobsBuilder that discovers its queues every {@link #DEFAULT_DISCOVERY_INTERVAL}
+     * {@link #DEFAULT_DISCOVERY_UNIT}.
+     *
+     * @param pattern the queue name pattern, must not be {@literal null}
+     * @return the GetJobsBuilder.
+     * @see #withQueueDiscovery(String, long, TimeUnit)
+     */
+    public GetJobsBuilder withQueueDiscovery(String pattern) {
+        return new GetJobsBuilder().withQueueDiscovery(pattern);
+    }
+
+    /**
+     * Create a new GetJobsBuilder that discovers its queues.
+     * <p>
+     * Listing a large number of queues in each {@code GETJOB} command is expensive, and most of the queues are usually empty.
+     * With queue discovery, the listeners poll only the non-empty queues whose name matches the glob-style {@code pattern}
+     * ({@code *} and {@code ?} wildcards) instead of the queues of the {@link QueueListenerFactory}. The queues are discovered
+     * using {@code QSCAN} with {@code MINLEN 1} one page at a time, so a scan never blocks polling. The discovered queues
+     * replace the queues of the listener once a scan cycle is complete. Polling pauses while no queue is discovered.
+     * </p>
+     *
+     * @param pattern the queue name pattern, must not be {@literal null}
+     * @param interval interval between discovery scan cycles
+     * @param timeUnit the interval unit
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withQueueDiscovery(String pattern, long interval, TimeUnit timeUnit) {
+        return new GetJobsBuilder().withQueueDiscovery(pattern, interval, timeUnit);
+    }
+
+    /**
+     * Create a new GetJobsBuilder that detects paused queues using a check interval of {@link #DEFAULT_PAUSE_CHECK_INTERVAL}
+     * {@link #DEFAULT_PAUSE_CHECK_UNIT}.
+     *
+     * @return the GetJobsBuilder.
+     * @see #withPauseDetection(long, TimeUnit)
+     */
+    public GetJobsBuilder withPauseDetection() {
+        return new GetJobsBuilder().withPauseDetection();
+    }
+
+    /**
+     * Create a new GetJobsBuilder that detects paused queues.
+     * <p>
+     * A queue that is paused for consumers ({@code PAUSE OUT}) returns no jobs, so polling it is wasted work. With pause
+     * detection, empty {@code GETJOB} replies trigger a {@code QSTAT} check of the polled queues at most once per
+     * {@code checkInterval}. Paused queues are left out of the {@code GETJOB} commands and re-checked every
+     * {@code checkInterval}. Polling of a queue resumes right after the re-check reports it as no longer paused.
+     * </p>
+     *
+     * @param checkInterval minimal interval between pause checks respective re-checks of paused queues
+     * @param timeUnit the interval unit
+     * @return the GetJobsBuilder.
+     */
+    public GetJobsBuilder withPauseDetection(long checkInterval, TimeUnit timeUnit) {
+        return new GetJobsBuilder().withPauseDetection(checkInterval, timeUnit);
+    }
+
+    /**
+     * Create a new {@link JobWorker.Builder} to process jobs with the {@code handler}. The worker runs the handler on an
+     * executor, limits the number of in-flight jobs, acknowledges processed jobs in batches and returns failed jobs to their
+     * queue using {@code NACK} or retries them with a backoff. Workers are shut down before the listeners when the
+     * {@link QueueListenerFactory} is shut down.
+     *
+     * @param handler the job handler, must not be {@literal null}
+     * @return the JobWorker.Builder.
+     */
+    public JobWorker.Builder<K, V> newWorker(JobHandler<K, V> handler) {
+        return new JobWorker.Builder<K, V>(handler, scheduler, () -> createDisqueConnectionSupplier().get().getConnection(),
+                counters -> counters ? withCounters().getjobs() : getjobs(), workers::add, workers::remove);
+    }
+
+    /**
+     * Create a new ClusterGetJobsBuilder that refreshes the cluster topology every
+     * {@link #DEFAULT_TOPOLOGY_REFRESH_INTERVAL} {@link #DEFAULT_TOPOLOGY_REFRESH_UNIT}.
+     *
+     * @return the ClusterGetJobsBuilder.
+     * @see #withClusterWideConsumption(long, TimeUnit)
+     */
+    public ClusterGetJobsBuilder withClusterWideConsumption() {
+        return withClusterWideConsumption(DEFAULT_TOPOLOGY_REFRESH_INTERVAL, DEFAULT_TOPOLOGY_REFRESH_UNIT);
+    }
+
+    /**
+     * Create a new ClusterGetJobsBuilder.
+     * <p>
+     * Disque queues are node-local, so a listener connected to one node drains the backlog of other nodes only as fast as the
+     * cluster federates jobs. Cluster-wide consumption opens one connection per node reported by {@code HELLO} and merges the
+     * jobs of all nodes into one {@link Observable} taking jobs from the nodes in a round-robin fashion. Connections are added
+     * and removed as the topology changes.
+     * </p>
+     *
+     * @param topologyRefreshInterval interval between cluster topology refreshes
+     * @param timeUnit the interval unit
+     * @return the ClusterGetJobsBuilder.
+     */
+    public ClusterGetJobsBuilder withClusterWideConsumption(long topologyRefreshInterval, TimeUnit timeUnit) {
+        return new ClusterGetJobsBuilder(topologyRefreshInterval, timeUnit);
+    }
+
+    /**
+     * Create a new AutoScalingGetJobsBuilder that adds a subscription when the backlog per subscription exceeds
+     * {@link #DEFAULT_SCALE_UP_BACKLOG} and retires a subscription when it drops below {@link #DEFAULT_SCALE_DOWN_BACKLOG}.
+     * The backlog is sampled every {@link #DEFAULT_SCALING_INTERVAL} {@link #DEFAULT_SCALING_UNIT}.
+     *
+     * @param minSubscriptions the minimal number of subscriptions, must be greater 0
+     * @param maxSubscriptions the maximal number of subscriptions, must be greater or equal to {@code minSubscriptions}
+     * @return the AutoScalingGetJobsBuilder.
+     * @see #withAutoScaling(int, int, long, long, long, TimeUnit)
+     */
+    public AutoScalingGetJobsBuilder withAutoScaling(int minSubscriptions, int maxSubscriptions) {
+        return withAutoScaling(minSubscriptions, maxSubscriptions, DEFAULT_SCALE_UP_BACKLOG, DEFAULT_SCALE_DOWN_BACKLOG,
+                DEFAULT_SCALING_INTERVAL, DEFAULT_SCALING_UNIT);
+    }
+
+    /**
+     * Create a new AutoScalingGetJobsBuilder.
+     * <p>
+     * An auto-scaling {@link Observable} merges the jobs of a variable number of subscriptions, each of them using its own
+     * connection. The backlog of the queues is sampled using {@code QLEN}. A subscription is added when the backlog per
+     * subscription exceeds {@code scaleUpBacklog} and retired when it drops below {@code scaleDownBacklog}, in both cases
+     * only after {@value ScalingPolicy#SAMPLES} consecutive samples. Each decision is published as
+     * {@link SubscriptionScalingEvent} on the {@link com.lambdaworks.redis.event.EventBus} of the client.
+     * </p>
+     *
+     * @param minSubscriptions the minimal number of subscriptions, must be greater 0
+     * @param maxSubscriptions the maximal number of subscriptions, must be greater or equal to {@code minSubscriptions}
+     * @param scaleUpBacklog backlog per subscription above which subscriptions are added
+     * @param scaleDownBacklog backlog per subscription below which subscriptions are retired, must be less than
+     *        {@code scaleUpBacklog}
+     * @param sampleInterval interval between backlog samples
+     * @param timeUnit the interval unit
+     * @return the AutoScalingGetJobsBuilder.
+     */
+    public AutoScalingGetJobsBuilder withAutoScaling(int minSubscriptions, int maxSubscriptions, long scaleUpBacklog,
+            long scaleDownBacklog, long sampleInterval, TimeUnit timeUnit) {
+        return new AutoScalingGetJobsBuilder(minSubscriptions, maxSubscriptions, scaleUpBacklog, scaleDownBacklog,
+                sampleInterval, timeUnit);
+    }
+
+    /**
+     * Create a new MultiplexedGetJobsBuilder using {@link #DEFAULT_MULTIPLEXED_CONNECTIONS} shared connections and an idle
+     * delay of {@link #DEFAULT_TIMEOUT} {@link #DEFAULT_TIMEOUT_UNIT}.
+     *
+     * @return the MultiplexedGetJobsBuilder.
+     * @see #withMultiplexing(int, long, TimeUnit)
+     */
+    public MultiplexedGetJobsBuilder withMultiplexing() {
+        return withMultiplexing(DEFAULT_MULTIPLEXED_CONNECTIONS, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT);
+    }
+
+    /**
+     * Create a new MultiplexedGetJobsBuilder.
+     * <p>
+     * Multiplexed subscriptions share a small set of connections instead of opening a connection per subscription. Each
+     * connection polls with {@code NOHANG} across the union of the queues of its subscriptions and routes the received jobs to
+     * the subscriptions by queue name. A connection waits for the {@code idleDelay} after an empty reply. The shared
+     * connections are opened on demand and created once per {@link QueueListenerFactory}, so all calls must use the same
+     * settings.
+     * </p>
+     *
+     * @param connections maximal number of shared connections
+     * @param idleDelay delay between polls after an empty reply, must be greater 0
+     * @param timeUnit the delay unit
+     * @return the MultiplexedGetJobsBuilder.
+     */
+    public MultiplexedGetJobsBuilder withMultiplexing(int connections, long idleDelay, TimeUnit timeUnit) {
+        return new MultiplexedGetJobsBuilder(getMultiplexer(connections, idleDelay, timeUnit));
+    }
+
+    private synchronized QueueMultiplexer<K, V> getMultiplexer(int connections, long idleDelay, TimeUnit timeUnit) {
+
+        if (multiplexer == null) {
+            multiplexer = new QueueMultiplexer<K, V>(scheduler, createDisqueConnectionSupplier(), connections,
+                    idleDelay, timeUnit, DEFAULT_DRAIN_COUNT);
+        } else {
+            LettuceAssert.isTrue(multiplexer.hasSettings(connections, idleDelay, timeUnit),
+                    "Multiplexing is already configured with different settings");
+        }
+
+        return multiplexer;
+    }
+
+    /**
+     * Open the journal {@code file} and release the jobs that were delivered but never released. Opens the journal only once
+     * per file.
+     *
+     * @param file the journal file
+     * @return the journal
+     */
+    private synchronized InFlightJournal getJournal(File file) {
+
+        File key = file.getAbsoluteFile();
+        InFlightJournal journal = journals.get(key);
+        if (journal != null) {
+            return journal;
+        }
+
+        try {
+            journal = new InFlightJournal(key, InFlightJournal.DEFAULT_SIZE);
+        } catch (IOException e) {
+            throw new RedisException("Cannot open journal " + key, e);
+        }
+
+        try {
+            journal.replay(this::nack);
+        } catch (RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+
+        journals.put(key, journal);
+        return journal;
+    }
+
+    private void nack(String[] jobIds) {
+
+        DisqueConnection<K, V> connection = createDisqueConnectionSupplier().get().getConnection();
+        try {
+            for (int i = 0; i < jobIds.length; i += DEFAULT_JOURNAL_REPLAY_BATCH) {
+                connection.sync().nack(
+                        Arrays.copyOfRange(jobIds, i, Math.min(i + DEFAULT_JOURNAL_REPLAY_BATCH, jobIds.length)));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Supplier<LocalityAwareConnection<K, V>> createDisqueConnectionSupplier() {
+        return createDisqueConnectionSupplier(this::createSocketAddressSupplier);
+    }
+
+    private Supplier<LocalityAwareConnection<K, V>> createDisqueConnectionSupplier(final DisqueNode disqueNode) {
+        return createDisqueConnectionSupplier(() -> new NodePinnedSocketAddressSupplier(disqueNode));
+    }
+
+    private Supplier<LocalityAwareConnection<K, V>> createDisqueConnectionSupplier(
+            final Supplier<? extends NodeIdAwareSocketAddressSupplier> socketAddressSupplierFactory) {
+        return new Supplier<LocalityAwareConnection<K, V>>() {
+            @Override
+            public LocalityAwareConnection<K, V> get() {
+
+                final NodeIdAwareSocketAddressSupplier socketAddressSupplier = socketAddressSupplierFactory.get();
+                DisqueConnection<K, V> connection = disqueClient.connect(codec, disqueURI, new SocketAddressSupplierFactory() {
+                    @Override
+                    public SocketAddressSupplier newSupplier(DisqueURI disqueURI) {
+                        return socketAddressSupplier;
+                    }
+                });
+
+                return new LocalityAwareConnection<K, V>(socketAddressSupplier, connection);
+            }
+        };
+    }
+
+    private NodeIdAwareSocketAddressSupplier createSocketAddressSupplier() {
+        return new NodeIdAwareSocketAddressSupplier(SocketAddressSupplierFactory.Factories.ROUND_ROBIN.newSupplier(disqueURI));
+    }
+
+    /**
+     * Shut down the {@link QueueListenerFactory} and close all open connections. Shared clients are not shut down by this
+     * method. The instance should be discarded after calling shutdown.
+     */
+    public void shutdown() {
+        shutdown(2, 15, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Shut down the {@link QueueListenerFactory} and close all open connections. Shared clients are not shut down by this
+     * method. The instance should be discarded after calling shutdown.
+     *
+     * @param quietPeriod the quiet period as described in the documentation
+     * @param timeout the maximum amount of time to wait until the executor is shutdown regardless if a task was submitted
+     *        during the quiet period
+     * @param timeUnit the unit of {@code quietPeriod} and {@code timeout}
+     * @see #shutdownAsync(long, long, TimeUnit)
+     */
+    public void shutdown(long quietPeriod, long timeout, TimeUnit timeUnit) {
+        shutdownAsync(quietPeriod, timeout, timeUnit).join();
+    }
+
+    /**
+     * Shut down the {@link QueueListenerFactory} and close all open connections without blocking the calling thread. Workers
+     * are shut down first so they can acknowledge their jobs. Listeners are closed afterwards in parallel, each of them waits
+     * at most for the {@code timeout} for its outstanding {@code GETJOB} commands. Shared clients are not shut down by this
+     * method. The instance should be discarded after calling shutdown.
+     *
+     * @param quietPeriod the quiet period as described in the documentation
+     * @param timeout the maximum amount of time to wait until the executor is shutdown regardless if a task was submitted
+     *        during the quiet period
+     * @param timeUnit the unit of {@code quietPeriod} and {@code timeout}
+     * @return a future that completes once all connections are closed
+     */
+    public CompletableFuture<Void> shutdownAsync(long quietPeriod, long timeout, TimeUnit timeUnit) {
+
+        List<CompletableFuture<Void>> workerShutdowns = new ArrayList<>();
+        for (JobWorker<K, V> worker : workers) {
+            workerShutdowns.add(runOnWorker(() -> worker.shutdown(timeout, timeUnit)));
+        }
+        workers.clear();
+
+        return CompletableFuture.allOf(workerShutdowns.toArray(new CompletableFuture<?>[0]))
+                .handle((ignore, throwable) -> closeListeners(timeout, timeUnit)).thenCompose(closed -> closed)
+                .whenComplete((ignore, throwable) -> closeJournals())
+                .thenCompose(ignore -> sharedClient ? CompletableFuture.<Void> completedFuture(null)
+                        : runOnWorker(() -> disqueClient.shutdown(quietPeriod, timeout, timeUnit)));
+    }
+
+    private CompletableFuture<Void> closeListeners(long timeout, TimeUnit timeUnit) {
+
+        List<CompletableFuture<Void>> closed = new ArrayList<>();
+
+        for (ClusterQueueListener<K, V> clusterResource : clusterResources) {
+            closed.add(clusterResource.close());
+        }
+        clusterResources.clear();
+
+        for (ScalingQueueListener<K, V> scalingResource : scalingResources) {
+            scalingResource.close();
+        }
+        scalingResources.clear();
+
+        // disable all resources to benefit from concurrent shutdowns
+        for (QueueListener<K, V> resource : resources) {
+            resource.disable();
+        }
+
+        for (QueueListener<K, V> resource : resources) {
+            closed.add(resource.closeAsync(timeout, timeUnit));
+        }
+        resources.clear();
+
+        synchronized (this) {
+            if (multiplexer != null) {
+                QueueMultiplexer<K, V> toClose = multiplexer;
+                closed.add(runOnWorker(() -> toClose.close(timeout, timeUnit)));
+                multiplexer = null;
+            }
+        }
+
+        return CompletableFuture.allOf(closed.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Close the journals once the listeners are closed, so the releases of the listeners are recorded.
+     */
+    private synchronized void closeJournals() {
+
+        for (InFlightJournal journal : journals.values()) {
+            journal.close();
+        }
+        journals.clear();
+    }
+
+    /**
+     * Run a blocking {@code action} on a {@link rx.Scheduler.Worker worker} of the {@link Scheduler}.
+     *
+     * @param action the action
+     * @return a future that completes once the action completed
+     */
+    private CompletableFuture<Void> runOnWorker(Runnable action) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Scheduler.Worker worker = scheduler.createWorker();
+        worker.schedule(() -> {
+            try {
+                action.run();
+                future.complete(null);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Retrieve the {@code COUNT} used for the next {@code GETJOB} command of each open subscription. The count is not limited
+     * by the demand of the subscriber.
+     *
+     * @return map of the subscription id (client name) and the current {@code COUNT}
+     */
+    public Map<String, Long> getCounts() {
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (QueueListener<K, V> resource : resources) {
+            resource.collectCounts(counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Retrieve the achieved shares of the received jobs per queue of each open subscription that uses weighted fairness.
+     *
+     * @return map of the subscription id (client name) and the share per queue between {@literal 0} and {@literal 1}
+     * @see #withWeightedFairness(Map)
+     */
+    public Map<String, Map<K, Double>> getShares() {
+
+        Map<String, Map<K, Double>> shares = new LinkedHashMap<>();
+        for (QueueListener<K, V> resource : resources) {
+            resource.collectShares(shares);
+        }
+        return shares;
+    }
+
+    /**
+     * Add queues to this {@link QueueListenerFactory} and all of its running listeners. The change takes effect with the next
+     * {@code GETJOB} command of each subscription and does not require a reconnect. Listeners that are created afterwards
+     * listen on the added queues as well. Multiplexed subscriptions keep their queues.
+     *
+     * @param queues the queue names to add, must not be {@literal null}
+     */
+    public synchronized void addQueues(Collection<K> queues) {
+
+        LettuceAssert.notNull(queues, "Queues must not be null");
+
+        K[] additions = queues.toArray(Arrays.copyOf(this.queues, 0));
+        this.queues = GetJobsArgs.union(this.queues, additions);
+        for (QueueListener<K, V> resource : resources) {
+            resource.addQueues(additions);
+        }
+    }
+
+    /**
+     * Remove queues from this {@link QueueListenerFactory} and all of its running listeners. The change takes effect with the
+     * next {@code GETJOB} command of each subscription and does not require a reconnect. Jobs that were already received are
+     * still emitted. An outstanding blocking {@code GETJOB} command may still return jobs of the removed queues. Multiplexed
+     * subscriptions keep their queues.
+     *
+     * @param queues the queue names to remove, must not be {@literal null}. At least one queue must remain.
+     */
+    public synchronized void removeQueues(Collection<K> queues) {
+
+        LettuceAssert.notNull(queues, "Queues must not be null");
+
+        K[] removals = queues.toArray(Arrays.copyOf(this.queues, 0));
+        this.queues = GetJobsArgs.difference(this.queues, removals);
+        for (QueueListener<K, V> resource : resources) {
+            resource.removeQueues(removals);
+        }
+    }
+
+    /**
+     *
+     * @return the queue names of this {@link QueueListenerFactory}
+     */
+    public K[] getQueues() {
+        return queues.clone();
+    }
+
+    /**
+     * Initiates a node switch if neccessary for all produced listeners by this {@link QueueListenerFactory}.
+     */
+    public void switchNodes() {
+        for (QueueListener<K, V> resource : resources) {
+            resource.switchNodes();
+        }
+    }
+
+    /**
+     * Base builder for the getjobs Queue Listener {@link Observable}. The settings apply to each {@link QueueListener} created
+     * by the builder. Settings that track the handling of the emitted jobs, such as in-flight tracking, in-flight limits, the
+     * adaptive {@code COUNT} and job recycling, are only available on {@link GetJobsBuilder} because they require that the
+     * jobs of a {@link QueueListener} are emitted to the handler directly.
+     *
+     * @param <B> the builder type
+     */
+    public abstract class AbstractGetJobsBuilder<B extends AbstractGetJobsBuilder<B>> {
+
+        private AdaptivePolling adaptivePolling;
+        private Supplier<PrefetchBuffer<K, V>> prefetchBufferSupplier;
+        private boolean withCounters;
+        private boolean controlChannel;
+        private Map<K, Integer> weights;
+        private Predicate<Object> discoveryFilter;
+        private long discoveryInterval;
+        private TimeUnit discoveryUnit;
+        private long pauseCheckInterval;
+        private TimeUnit pauseCheckUnit;
+
+        protected QueueListener<K, V> newOnSubscribe(long timeout, TimeUnit timeUnit, long count) {
+            return newOnSubscribe(createDisqueConnectionSupplier(), timeout, timeUnit, count);
+        }
+
+        protected QueueListener<K, V> newOnSubscribe(Supplier<LocalityAwareConnection<K, V>> connectionSupplier, long timeout,
+                TimeUnit timeUnit, long count) {
+            QueueListener<K, V> onSubscribe = QueueListenerFactory.this.newOnSubscribe(connectionSupplier, timeout, timeUnit,
+                    count);
+            if (adaptivePolling != null) {
+                onSubscribe.withAdaptivePolling(adaptivePolling);
+            }
+            if (prefetchBufferSupplier != null) {
+                onSubscribe.withPrefetch(prefetchBufferSupplier);
+            }
+            if (withCounters) {
+                onSubscribe.withCounters();
+            }
+            if (controlChannel) {
+                onSubscribe.withControlChannel(disqueNode -> createDisqueConnectionSupplier(disqueNode).get());
+            }
+            if (weights != null) {
+                onSubscribe.withWeightedFairness(weights);
+            }
+            if (discoveryFilter != null) {
+                onSubscribe.withQueueDiscovery(discoveryFilter, discoveryInterval, discoveryUnit);
+            }
+            if (pauseCheckUnit != null) {
+                onSubscribe.withPauseDetection(pauseCheckInterval, pauseCheckUnit);
+            }
+            return onSubscribe;
+        }
+
+        /**
+         * Get jobs from the specified queues. By default COUNT is 1, so just one job will be returned. A default TIMEOUT of 10
+         * MILLISECONDS is used to enable graceful connection shutdown.
+         *
+         * <p>
+         * When there are jobs in more than one of the queues, the command guarantees to return jobs in the order the queues are
+         * specified. If COUNT allows more jobs to be returned, queues are scanned again and again in the same order popping
+         * more elements.
+         * </p>
+         * <p>
+         * The {@link Observable} emits {@link Job} objects as soon as a job is received from Disque. The terminal event is
+         * emitted as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}. Jobs are only
+         * fetched while the {@link rx.Subscriber subscriber} signals demand.
+         * </p>
+         *
+         * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
+         */
+        public Observable<Job<K, V>> getjobs() {
+            return newOnSubscribe(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_COUNT).toObservable();
+        }
+
+        /**
+         * Get jobs from the specified queues.
+         *
+         * <p>
+         * When there are jobs in more than one of the queues, the command guarantees to return jobs in the order the queues are
+         * specified. If COUNT allows more jobs to be returned, queues are scanned again and again in the same order popping
+         * more elements.
+         * </p>
+         * <p>
+         * The {@link Observable} emits {@link Job} objects as soon as a job is received from Disque. The terminal event is
+         * emitted as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}. Jobs are only
+         * fetched while the {@link rx.Subscriber subscriber} signals demand.
+         * </p>
+         *
+         * @param timeout timeout to wait
+         * @param timeUnit timeout unit
+         * @param count count of jobs to return, limited by the demand of the subscriber
+         * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
+         */
+        public Observable<Job<K, V>> getjobs(long timeout, TimeUnit timeUnit, long count) {
+            QueueListener<K, V> onSubscribe = newOnSubscribe(timeout, timeUnit, count);
+            return onSubscribe.toObservable();
+        }
+
+        /**
+         * Enables adaptive polling using a {@code COUNT} of {@link #DEFAULT_DRAIN_COUNT}. The {@code timeout} and {@code count}
+         * of {@link #getjobs(long, TimeUnit, long)} are used as grace period on shutdown respective ignored.
+         *
+         * @param longPollTimeout the server-side timeout for blocking {@code GETJOB} commands while the queues are empty
+         * @param timeUnit the timeout unit
+         * @return the builder
+         */
+        public B withAdaptivePolling(long longPollTimeout, TimeUnit timeUnit) {
+            return withAdaptivePolling(longPollTimeout, timeUnit, DEFAULT_DRAIN_COUNT);
+        }
+
+        /**
+         * Enables adaptive polling. The {@code timeout} and {@code count} of {@link #getjobs(long, TimeUnit, long)} are used as
+         * grace period on shutdown respective ignored.
+         *
+         * @param longPollTimeout the server-side timeout for blocking {@code GETJOB} commands while the queues are empty
+         * @param timeUnit the timeout unit
+         * @param drainCount the {@code COUNT} of jobs to fetch with a single {@code GETJOB} command
+         * @return the builder
+         */
+        public B withAdaptivePolling(long longPollTimeout, TimeUnit timeUnit, long drainCount) {
+            this.adaptivePolling = new AdaptivePolling(longPollTimeout, timeUnit, drainCount);
+            return self();
+        }
+
+        /**
+         * Enables the prefetch buffer. The size of job bodies is estimated for {@code byte[]}, {@link java.nio.ByteBuffer} and
+         * {@link CharSequence} bodies.
+         *
+         * @param lowJobs low watermark of the number of buffered jobs
+         * @param highJobs high watermark of the number of buffered jobs
+         * @param lowBytes low watermark of the buffered body bytes
+         * @param highBytes high watermark of the buffered body bytes
+         * @return the builder
+         * @see QueueListenerFactory#withPrefetch(int, int, long, long)
+         */
+        public B withPrefetch(int lowJobs, int highJobs, long lowBytes, long highBytes) {
+            return withPrefetch(lowJobs, highJobs, lowBytes, highBytes, PrefetchBuffer::estimateBodySize);
+        }
+
+        /**
+         * Enables the prefetch buffer.
+         *
+         * @param lowJobs low watermark of the number of buffered jobs
+         * @param highJobs high watermark of the number of buffered jobs
+         * @param lowBytes low watermark of the buffered body bytes
+         * @param highBytes high watermark of the buffered body bytes
+         * @param bodySize function to determine the size of a job body in bytes, must not be {@literal null}
+         * @return the builder
+         * @see QueueListenerFactory#withPrefetch(int, int, long, long)
+         */
+        public B withPrefetch(final int lowJobs, final int highJobs, final long lowBytes, final long highBytes,
+                final ToIntFunction<? super V> bodySize) {
+
+            PrefetchBuffer.validate(lowJobs, highJobs, lowBytes, highBytes);
+            LettuceAssert.notNull(bodySize, "Body size function must not be null");
+
+            this.prefetchBufferSupplier = () -> new PrefetchBuffer<K, V>(lowJobs, highJobs, lowBytes, highBytes, bodySize);
+            return self();
+        }
+
+        /**
+         * Requests the counters of the jobs ({@code WITHCOUNTERS}).
+         *
+         * @return the builder
+         * @see QueueListenerFactory#withCounters()
+         */
+        public B withCounters() {
 
-    private Supplier<LocalityAwareConnection<K, V>> createDisqueConnectionSupplier() {
-        return new Supplier<LocalityAwareConnection<K, V>>() {
-            @Override
-            public LocalityAwareConnection<K, V> get() {
+            this.withCounters = true;
+            return self();
+        }
 
-                final NodeIdAwareSocketAddressSupplier socketAddressSupplier = createSocketAddressSupplier();
-                DisqueConnection<K, V> connection = disqueClient.connect(codec, disqueURI, new SocketAddressSupplierFactory() {
-                    @Override
-                    public SocketAddressSupplier newSupplier(DisqueURI disqueURI) {
-                        return socketAddressSupplier;
-                    }
-                });
+        /**
+         * Sends control commands on a second connection to the polled node.
+         *
+         * @return the builder
+         * @see QueueListenerFactory#withControlChannel()
+         */
+        public B withControlChannel() {
 
-                return new LocalityAwareConnection<K, V>(socketAddressSupplier, connection);
-            }
-        };
-    }
+            this.controlChannel = true;
+            return self();
+        }
 
-    private NodeIdAwareSocketAddressSupplier createSocketAddressSupplier() {
-        return new NodeIdAwareSocketAddressSupplier(SocketAddressSupplierFactory.Factories.ROUND_ROBIN.newSupplier(disqueURI));
-    }
+        /**
+         * Enables weighted fairness across the queues. Queues without a weight use a weight of {@literal 1}.
+         *
+         * @param weights the weights per queue, must not be {@literal null}
+         * @return the builder
+         * @see QueueListenerFactory#withWeightedFairness(Map)
+         */
+        public B withWeightedFairness(Map<K, Integer> weights) {
 
-    /**
-     * Shut down the {@link QueueListenerFactory} and close all open connections. Shared clients are not shut down by this
-     * method. The instance should be discarded after calling shutdown.
-     */
-    public void shutdown() {
-        shutdown(2, 15, TimeUnit.SECONDS);
-    }
+            WeightedFairness.validate(queues, weights);
 
-    /**
-     * Shut down the {@link QueueListenerFactory} and close all open connections. Shared clients are not shut down by this
-     * method. The instance should be discarded after calling shutdown.
-     *
-     * @param quietPeriod the quiet period as described in the documentation
-     * @param timeout the maximum amount of time to wait until the executor is shutdown regardless if a task was submitted
-     *        during the quiet period
-     * @param timeUnit the unit of {@code quietPeriod} and {@code timeout}
-     */
-    public void shutdown(long quietPeriod, long timeout, TimeUnit timeUnit) {
+            this.weights = new LinkedHashMap<>(weights);
+            return self();
+        }
 
-        // disable all resources to benefit from concurrent shutdowns
-        for (QueueListener<K, V> resource : resources) {
-            resource.disable();
+        /**
+         * Enables queue discovery every {@link #DEFAULT_DISCOVERY_INTERVAL} {@link #DEFAULT_DISCOVERY_UNIT}.
+         *
+         * @param pattern the queue name pattern, must not be {@literal null}
+         * @return the builder
+         * @see QueueListenerFactory#withQueueDiscovery(String, long, TimeUnit)
+         */
+        public B withQueueDiscovery(String pattern) {
+            return withQueueDiscovery(pattern, DEFAULT_DISCOVERY_INTERVAL, DEFAULT_DISCOVERY_UNIT);
         }
 
-        for (QueueListener<K, V> resource : resources) {
-            resource.close(timeout, timeUnit);
+        /**
+         * Enables queue discovery. The listeners poll only the non-empty queues matching the {@code pattern}.
+         *
+         * @param pattern the queue name pattern, must not be {@literal null}
+         * @param interval interval between discovery scan cycles
+         * @param timeUnit the interval unit
+         * @return the builder
+         * @see QueueListenerFactory#withQueueDiscovery(String, long, TimeUnit)
+         */
+        public B withQueueDiscovery(String pattern, long interval, TimeUnit timeUnit) {
+
+            LettuceAssert.isTrue(interval > 0, "Discovery interval must be greater 0");
+            LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+            this.discoveryFilter = QueueDiscovery.glob(pattern);
+            this.discoveryInterval = interval;
+            this.discoveryUnit = timeUnit;
+            return self();
         }
-        resources.clear();
 
-        if (!sharedClient) {
-            disqueClient.shutdown(quietPeriod, timeout, timeUnit);
+        /**
+         * Enables the detection of paused queues using a check interval of {@link #DEFAULT_PAUSE_CHECK_INTERVAL}
+         * {@link #DEFAULT_PAUSE_CHECK_UNIT}.
+         *
+         * @return the builder
+         * @see QueueListenerFactory#withPauseDetection(long, TimeUnit)
+         */
+        public B withPauseDetection() {
+            return withPauseDetection(DEFAULT_PAUSE_CHECK_INTERVAL, DEFAULT_PAUSE_CHECK_UNIT);
         }
-    }
 
-    /**
-     * Initiates a node switch if neccessary for all produced listeners by this {@link QueueListenerFactory}.
-     */
-    public void switchNodes() {
-        for (QueueListener<K, V> resource : resources) {
-            resource.switchNodes();
+        /**
+         * Enables the detection of paused queues. Paused queues are left out of the {@code GETJOB} commands until they are
+         * resumed.
+         *
+         * @param checkInterval minimal interval between pause checks respective re-checks of paused queues
+         * @param timeUnit the interval unit
+         * @return the builder
+         * @see QueueListenerFactory#withPauseDetection(long, TimeUnit)
+         */
+        public B withPauseDetection(long checkInterval, TimeUnit timeUnit) {
+
+            LettuceAssert.isTrue(checkInterval > 0, "Check interval must be greater 0");
+            LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+            this.pauseCheckInterval = checkInterval;
+            this.pauseCheckUnit = timeUnit;
+            return self();
         }
+
+        /**
+         *
+         * @return this builder
+         */
+        protected abstract B self();
     }
 
     /**
      * Builder for the getjobs Queue Listener {@link Observable}.
      */
-    public class GetJobsBuilder {
+    public class GetJobsBuilder extends AbstractGetJobsBuilder<GetJobsBuilder> {
+
+        private AdaptiveCount adaptiveCount;
+        private final Map<K, Integer> inFlightLimits = new LinkedHashMap<>();
+        private boolean inFlightTracking;
+        private InFlightJournal journal;
+        private boolean jobRecycling;
+
+        @Override
+        protected QueueListener<K, V> newOnSubscribe(Supplier<LocalityAwareConnection<K, V>> connectionSupplier, long timeout,
+                TimeUnit timeUnit, long count) {
+            QueueListener<K, V> onSubscribe = super.newOnSubscribe(connectionSupplier, timeout, timeUnit, count);
+            if (adaptiveCount != null) {
+                onSubscribe.withAdaptiveCount(adaptiveCount);
+            }
+            if (!inFlightLimits.isEmpty()) {
+                onSubscribe.withInFlightLimits(inFlightLimits);
+            }
+            if (inFlightTracking) {
+                onSubscribe.withInFlightTracking();
+            }
+            if (journal != null) {
+                onSubscribe.withInFlightJournal(journal);
+            }
+            if (jobRecycling) {
+                onSubscribe.withJobRecycling(new JobPool<K, V>(codec, JobPool.DEFAULT_SIZE));
+            }
+            return onSubscribe;
+        }
 
         /**
-         * Get jobs from the specified queues. By default COUNT is 1, so just one job will be returned. A default TIMEOUT of 10
+         * Get jobs from the specified queues in batches using a COUNT of {@link #DEFAULT_DRAIN_COUNT}. A default TIMEOUT of 10
          * MILLISECONDS is used to enable graceful connection shutdown.
-         *
          * <p>
-         * When there are jobs in more than one of the queues, the command guarantees to return jobs in the order the queues are
-         * specified. If COUNT allows more jobs to be returned, queues are scanned again and again in the same order popping
-         * more elements.
+         * The {@link Observable} emits the jobs of each {@code GETJOB} reply as one {@link List}. Empty replies are not emitted.
+         * The demand of the {@link rx.Subscriber subscriber} is counted in batches. Use
+         * {@link JobBatches#fastack(DisqueConnection, java.util.Collection)} to acknowledge a whole batch with a single
+         * command. Batches cannot be combined with a prefetch buffer.
          * </p>
+         *
+         * @return an Observable that emits batches of {@link Job} elements until the subscriber terminates the subscription
+         */
+        public Observable<List<Job<K, V>>> getjobBatches() {
+            return getjobBatches(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_DRAIN_COUNT);
+        }
+
+        /**
+         * Get jobs from the specified queues in batches.
          * <p>
-         * The {@link Observable} emits {@link Job} objects as soon as a job is received from Disque. The terminal event is
-         * emitted as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}.
+         * The {@link Observable} emits the jobs of each {@code GETJOB} reply as one {@link List}. Empty replies are not emitted.
+         * The demand of the {@link rx.Subscriber subscriber} is counted in batches. Use
+         * {@link JobBatches#fastack(DisqueConnection, java.util.Collection)} to acknowledge a whole batch with a single
+         * command. Batches cannot be combined with a prefetch buffer.
          * </p>
          *
+         * @param timeout timeout to wait
+         * @param timeUnit timeout unit
+         * @param count maximal count of jobs per batch
+         * @return an Observable that emits batches of {@link Job} elements until the subscriber terminates the subscription
+         */
+        public Observable<List<Job<K, V>>> getjobBatches(long timeout, TimeUnit timeUnit, long count) {
+            QueueListener<K, V> onSubscribe = newOnSubscribe(timeout, timeUnit, count);
+            return onSubscribe.toBatchObservable();
+        }
+
+        /**
+         * Enables the adaptive {@code COUNT}. The {@code count} of {@link #getjobs(long, TimeUnit, long)} and the drain count
+         * of adaptive polling are ignored.
+         *
+         * @param minCount the minimal {@code COUNT}, must be greater 0
+         * @param maxCount the maximal {@code COUNT}, must be greater or equal to {@code minCount}
+         * @param retry the {@code RETRY} period of the consumed jobs
+         * @param timeUnit the retry unit
+         * @return the builder
+         * @see QueueListenerFactory#withAdaptiveCount(long, long, long, TimeUnit)
+         */
+        public GetJobsBuilder withAdaptiveCount(long minCount, long maxCount, long retry, TimeUnit timeUnit) {
+            this.adaptiveCount = new AdaptiveCount(minCount, maxCount, retry, timeUnit);
+            return this;
+        }
+
+        /**
+         * Recycles the emitted jobs. Jobs must not be retained beyond handling them.
+         *
+         * @return the builder
+         * @see QueueListenerFactory#withJobRecycling()
+         */
+        public GetJobsBuilder withJobRecycling() {
+
+            this.jobRecycling = true;
+            return this;
+        }
+
+        /**
+         * Limits the number of in-flight jobs of the {@code queue}. Can be called for multiple queues.
+         *
+         * @param queue the queue, must be one of the queues of the {@link QueueListenerFactory}
+         * @param limit the maximal number of in-flight jobs of the {@code queue}, must be greater 0
+         * @return the builder
+         * @see QueueListenerFactory#withInFlightLimit(Object, int)
+         */
+        public GetJobsBuilder withInFlightLimit(K queue, int limit) {
+
+            LettuceAssert.notNull(queue, "Queue must not be null");
+            LettuceAssert.isTrue(Arrays.asList(queues).contains(queue), "Queue " + queue + " is not a queue of the listener");
+            LettuceAssert.isTrue(limit > 0, "Limit must be greater 0");
+
+            this.inFlightLimits.put(queue, limit);
+            return this;
+        }
+
+        /**
+         * Enables tracking of in-flight jobs. Jobs that were received but not handled are released using a single
+         * {@code NACK} when the subscription ends.
+         *
+         * @return the builder
+         * @see QueueListenerFactory#withInFlightTracking()
+         */
+        public GetJobsBuilder withInFlightTracking() {
+
+            this.inFlightTracking = true;
+            return this;
+        }
+
+        /**
+         * Enables tracking of in-flight jobs and records them in the journal {@code file}. Opens the journal and releases the
+         * jobs that were delivered but never released unless the journal is already open.
+         *
+         * @param file the journal file, must not be {@literal null}
+         * @return the builder
+         * @see QueueListenerFactory#withInFlightJournal(File)
+         */
+        public GetJobsBuilder withInFlightJournal(File file) {
+
+            LettuceAssert.notNull(file, "File must not be null");
+
+            this.journal = getJournal(file);
+            return this;
+        }
+
+        @Override
+        protected GetJobsBuilder self() {
+            return this;
+        }
+    }
+
+    /**
+     * Builder for cluster-wide getjobs Queue Listener {@link Observable Observables}. Each node listener uses the settings of
+     * this builder.
+     */
+    public class ClusterGetJobsBuilder extends AbstractGetJobsBuilder<ClusterGetJobsBuilder> {
+
+        private final long topologyRefreshInterval;
+        private final TimeUnit topologyRefreshUnit;
+
+        private ClusterGetJobsBuilder(long topologyRefreshInterval, TimeUnit topologyRefreshUnit) {
+
+            LettuceAssert.isTrue(topologyRefreshInterval > 0, "Topology refresh interval must be greater 0");
+            LettuceAssert.notNull(topologyRefreshUnit, "TimeUnit must not be null");
+
+            this.topologyRefreshInterval = topologyRefreshInterval;
+            this.topologyRefreshUnit = topologyRefreshUnit;
+        }
+
+        /**
+         * Get jobs from the specified queues of all cluster nodes. By default COUNT is 1, so just one job will be returned per
+         * node. A default TIMEOUT of 10 MILLISECONDS is used to enable graceful connection shutdown.
+         *
          * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
          */
+        @Override
         public Observable<Job<K, V>> getjobs() {
-            return Observable.create(newOnSubscribe(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_COUNT)).observeOn(scheduler);
+            return getjobs(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_COUNT);
         }
 
         /**
-         * Get jobs from the specified queues.
+         * Get jobs from the specified queues of all cluster nodes.
          *
-         * <p>
-         * When there are jobs in more than one of the queues, the command guarantees to return jobs in the order the queues are
-         * specified. If COUNT allows more jobs to be returned, queues are scanned again and again in the same order popping
-         * more elements.
-         * </p>
-         * <p>
-         * The {@link Observable} emits {@link Job} objects as soon as a job is received from Disque. The terminal event is
-         * emitted as soon as the {@link rx.Subscriber subscriber} unsubscribes from the {@link Observable}.
-         * </p>
+         * @param timeout timeout to wait
+         * @param timeUnit timeout unit
+         * @param count count of jobs to return per node, limited by the demand of the subscriber
+         * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
+         */
+        @Override
+        public Observable<Job<K, V>> getjobs(final long timeout, final TimeUnit timeUnit, final long count) {
+
+            ClusterQueueListener<K, V> onSubscribe = new ClusterQueueListener<K, V>(scheduler,
+                    createDisqueConnectionSupplier(),
+                    disqueNode -> newOnSubscribe(createDisqueConnectionSupplier(disqueNode), timeout, timeUnit, count),
+                    disqueNode -> createDisqueConnectionSupplier(disqueNode).get(), topologyRefreshInterval,
+                    topologyRefreshUnit);
+            onSubscribe.withLifecycle(QueueListenerFactory.this::onActive, QueueListenerFactory.this::onIdle);
+            return onSubscribe.toObservable();
+        }
+
+        @Override
+        protected ClusterGetJobsBuilder self() {
+            return this;
+        }
+    }
+
+    /**
+     * Builder for auto-scaling getjobs Queue Listener {@link Observable Observables}. Each subscription uses the settings of
+     * this builder.
+     */
+    public class AutoScalingGetJobsBuilder extends AbstractGetJobsBuilder<AutoScalingGetJobsBuilder> {
+
+        private final int minSubscriptions;
+        private final int maxSubscriptions;
+        private final long scaleUpBacklog;
+        private final long scaleDownBacklog;
+        private final long sampleInterval;
+        private final TimeUnit sampleUnit;
+
+        private AutoScalingGetJobsBuilder(int minSubscriptions, int maxSubscriptions, long scaleUpBacklog,
+                long scaleDownBacklog, long sampleInterval, TimeUnit sampleUnit) {
+
+            ScalingPolicy.validate(minSubscriptions, maxSubscriptions, scaleUpBacklog, scaleDownBacklog);
+            LettuceAssert.isTrue(sampleInterval > 0, "Sample interval must be greater 0");
+            LettuceAssert.notNull(sampleUnit, "TimeUnit must not be null");
+
+            this.minSubscriptions = minSubscriptions;
+            this.maxSubscriptions = maxSubscriptions;
+            this.scaleUpBacklog = scaleUpBacklog;
+            this.scaleDownBacklog = scaleDownBacklog;
+            this.sampleInterval = sampleInterval;
+            this.sampleUnit = sampleUnit;
+        }
+
+        /**
+         * Get jobs from the specified queues using a variable number of subscriptions. By default COUNT is 1, so just one job
+         * will be returned per subscription. A default TIMEOUT of 10 MILLISECONDS is used to enable graceful connection
+         * shutdown.
+         *
+         * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
+         */
+        @Override
+        public Observable<Job<K, V>> getjobs() {
+            return getjobs(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_COUNT);
+        }
+
+        /**
+         * Get jobs from the specified queues using a variable number of subscriptions.
          *
          * @param timeout timeout to wait
          * @param timeUnit timeout unit
-         * @param count count of jobs to return
+         * @param count count of jobs to return per subscription, limited by the demand of the subscriber
          * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
          */
+        @Override
         public Observable<Job<K, V>> getjobs(long timeout, TimeUnit timeUnit, long count) {
-            QueueListener<K, V> onSubscribe = newOnSubscribe(timeout, timeUnit, count);
-            return Observable.create(onSubscribe).observeOn(scheduler);
+
+            ScalingQueueListener<K, V> onSubscribe = new ScalingQueueListener<K, V>(scheduler,
+                    newOnSubscribe(timeout, timeUnit, count), createDisqueConnectionSupplier(),
+                    () -> new ScalingPolicy(minSubscriptions, maxSubscriptions, scaleUpBacklog, scaleDownBacklog),
+                    disqueClient.getResources().eventBus(), sampleInterval, sampleUnit);
+            onSubscribe.withLifecycle(QueueListenerFactory.this::onActive, QueueListenerFactory.this::onIdle);
+            return onSubscribe.toObservable();
+        }
+
+        @Override
+        protected AutoScalingGetJobsBuilder self() {
+            return this;
+        }
+    }
+
+    /**
+     * Builder for multiplexed getjobs Queue Listener {@link Observable Observables}.
+     */
+    public class MultiplexedGetJobsBuilder {
+
+        private final QueueMultiplexer<K, V> multiplexer;
+
+        private MultiplexedGetJobsBuilder(QueueMultiplexer<K, V> multiplexer) {
+            this.multiplexer = multiplexer;
+        }
+
+        /**
+         * Get jobs from the queues of the {@link QueueListenerFactory} using a shared connection.
+         *
+         * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
+         */
+        public Observable<Job<K, V>> getjobs() {
+            return multiplexer.getjobs(queues);
+        }
+
+        /**
+         * Get jobs from the specified queues using a shared connection. The queues may differ from the queues of the
+         * {@link QueueListenerFactory}.
+         *
+         * @param queues the queue names, must not be {@literal null} and not empty
+         * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
+         */
+        public Observable<Job<K, V>> getjobs(Collection<K> queues) {
+
+            LettuceAssert.notNull(queues, "Queues must not be null");
+
+            return multiplexer.getjobs(queues.toArray(Arrays.copyOf(QueueListenerFactory.this.queues, 0)));
         }
     }
 
+    /**
+     * Builder for getjobs Queue Listener {@link Observable Observables} with enabled locality tracking. The settings inherited
+     * from {@link GetJobsBuilder} return a {@link GetJobsBuilder}, so node switching is configured first.
+     */
     public class LocalityTrackingGetJobsBuilder extends GetJobsBuilder {
 
         private long interval;
         private TimeUnit timeUnit;
+        private double margin = NodeLocality.DEFAULT_MARGIN;
         private boolean withReconnect;
 
         public LocalityTrackingGetJobsBuilder() {
         }
 
-        private QueueListener<K, V> newOnSubscribe(long timeout, TimeUnit timeUnit, long count) {
-            QueueListener<K, V> onSubscribe = QueueListenerFactory.this.newOnSubscribe(timeout, timeUnit, count);
+        @Override
+        protected QueueListener<K, V> newOnSubscribe(long timeout, TimeUnit timeUnit, long count) {
+            QueueListener<K, V> onSubscribe = super.newOnSubscribe(timeout, timeUnit, count);
             onSubscribe.withJobLocalityTracking();
             if (withReconnect) {
                 onSubscribe.withNodeSwitching(interval, this.timeUnit);
+                onSubscribe.withLocalityMargin(margin);
             }
             return onSubscribe;
         }
@@ -350,7 +1560,7 @@ public class QueueListenerFactory<K, V> {
          * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
          */
         public Observable<Job<K, V>> getjobs() {
-            return Observable.create(newOnSubscribe(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_COUNT)).observeOn(scheduler);
+            return newOnSubscribe(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT, DEFAULT_COUNT).toObservable();
         }
 
         /**
@@ -362,12 +1572,12 @@ public class QueueListenerFactory<K, V> {
          *
          * @param timeout timeout to wait
          * @param timeUnit timeout unit
-         * @param count count of jobs to return
+         * @param count count of jobs to return, limited by the demand of the subscriber
          * @return an Observable that emits {@link Job} elements until the subscriber terminates the subscription
          */
         public Observable<Job<K, V>> getjobs(long timeout, TimeUnit timeUnit, long count) {
             QueueListener<K, V> onSubscribe = newOnSubscribe(timeout, timeUnit, count);
-            return Observable.create(onSubscribe).observeOn(scheduler);
+            return onSubscribe.toObservable();
         }
 
         /**
@@ -379,9 +1589,29 @@ public class QueueListenerFactory<K, V> {
          */
         public LocalityTrackingGetJobsBuilder withNodeSwitching(long nodeReconnectCheckInterval,
                 TimeUnit nodeReconnectCheckTimeUnit) {
+            return withNodeSwitching(nodeReconnectCheckInterval, nodeReconnectCheckTimeUnit, NodeLocality.DEFAULT_MARGIN);
+        }
+
+        /**
+         * Enables the periodic node switching. The received jobs are counted per producing node in an exponentially decayed
+         * score that halves with each check. A check switches to the node with the highest score only if it exceeds the score
+         * of the current node by the {@code margin}, e.g. {@literal 0.25} requires 25% more jobs from the other node. The
+         * margin keeps consumers from switching back and forth between nodes that produce a similar number of jobs.
+         *
+         * @param nodeReconnectCheckInterval interval between node reconnect checks
+         * @param nodeReconnectCheckTimeUnit the time unit
+         * @param margin the relative margin, must be greater or equal to 0
+         * @return the builder
+         */
+        public LocalityTrackingGetJobsBuilder withNodeSwitching(long nodeReconnectCheckInterval,
+                TimeUnit nodeReconnectCheckTimeUnit, double margin) {
+
+            NodeLocality.validate(margin);
+
             withReconnect = true;
             this.interval = nodeReconnectCheckInterval;
             this.timeUnit = nodeReconnectCheckTimeUnit;
+            this.margin = margin;
             return this;
         }
     }
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.lambdaworks.redis.RedisChannelHandler;
+import com.lambdaworks.redis.RedisException;
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.DisqueConnection;
+import biz.paluch.spinach.api.GetJobArgs;
+import biz.paluch.spinach.api.Job;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Observable;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Multiplexes many queue subscriptions over a small set of shared polling connections. Each subscription is assigned to the
+ * connection with the fewest subscriptions. A connection polls with {@code NOHANG} {@code GETJOB} across the union of the
+ * queues of its subscriptions and routes the received jobs to the subscriptions by {@link Job#getQueue()}.
+ * <p>
+ * Only subscriptions with demand take part in a poll and the {@code COUNT} is limited by their total demand. Each job is routed
+ * to a subscription of its queue that still has demand, so no subscription receives more jobs than requested. Jobs that cannot
+ * be routed (because the subscriptions of the queue have no demand left or were cancelled concurrently) are returned to Disque
+ * using {@code ENQUEUE}. Unlike {@code NACK}, {@code ENQUEUE} does not increment the {@code nacks} counter of the job, so
+ * routing does not count towards a dead-letter threshold. Polling pauses while no subscription has demand and is delayed by
+ * the idle delay after an empty reply.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class QueueMultiplexer<K, V> {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(QueueMultiplexer.class);
+    private static final AtomicInteger multiplexerIds = new AtomicInteger();
+
+    private final int id = multiplexerIds.incrementAndGet();
+    private final Scheduler scheduler;
+    private final Supplier<QueueListener.LocalityAwareConnection<K, V>> disqueConnectionSupplier;
+    private final int connections;
+    private final long idleDelay;
+    private final TimeUnit timeUnit;
+    private final long count;
+    private final List<Poller> pollers = new ArrayList<>();
+
+    private boolean closed;
+
+    QueueMultiplexer(Scheduler scheduler, Supplier<QueueListener.LocalityAwareConnection<K, V>> disqueConnectionSupplier,
+            int connections, long idleDelay, TimeUnit timeUnit, long count) {
+
+        LettuceAssert.isTrue(connections > 0, "Connections must be greater 0");
+        LettuceAssert.isTrue(idleDelay > 0, "Idle delay must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+        LettuceAssert.isTrue(count > 0, "Count must be greater 0");
+
+        this.scheduler = scheduler;
+        this.disqueConnectionSupplier = disqueConnectionSupplier;
+        this.connections = connections;
+        this.idleDelay = idleDelay;
+        this.timeUnit = timeUnit;
+        this.count = count;
+    }
+
+    /**
+     * Create an {@link Observable} that emits jobs from the {@code queues}. Each subscription is registered with one of the
+     * shared polling connections.
+     *
+     * @param queues the queue names
+     * @return the {@link Observable}
+     */
+    Observable<Job<K, V>> getjobs(final K[] queues) {
+
+        LettuceAssert.isTrue(queues != null && queues.length > 0, "Queues must not be empty");
+
+        return Observable.create((Observable.OnSubscribe<Job<K, V>>) subscriber -> {
+
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+
+            try {
+                Poller poller = getPoller();
+                Registration registration = new Registration(poller, subscriber, queues);
+                subscriber.add(Subscriptions.create(() -> poller.unregister(registration)));
+                poller.register(registration);
+                subscriber.setProducer(registration);
+            } catch (Exception e) {
+                subscriber.onError(e);
+            }
+        }).observeOn(scheduler);
+    }
+
+    /**
+     * Select the poller with the fewest registrations. Opens a new connection until the configured number of connections is
+     * reached.
+     */
+    private synchronized Poller getPoller() {
+
+        LettuceAssert.assertState(!closed, "QueueMultiplexer is closed");
+
+        Poller selected = null;
+        for (Poller poller : pollers) {
+            if (selected == null || poller.registrations.size() < selected.registrations.size()) {
+                selected = poller;
+            }
+        }
+
+        if (pollers.size() < connections && (selected == null || !selected.registrations.isEmpty())) {
+            selected = new Poller(getClass().getSimpleName() + "-" + id + "-" + (pollers.size() + 1));
+            pollers.add(selected);
+        }
+
+        return selected;
+    }
+
+    boolean hasSettings(int connections, long idleDelay, TimeUnit timeUnit) {
+        return this.connections == connections && this.timeUnit.toNanos(this.idleDelay) == timeUnit.toNanos(idleDelay);
+    }
+
+    /**
+     * Close all polling connections. Registered subscriptions do not receive further jobs.
+     *
+     * @param timeout grace period to await outstanding commands
+     * @param timeUnit the timeout unit
+     */
+    void close(long timeout, TimeUnit timeUnit) {
+
+        List<Poller> pollers;
+        synchronized (this) {
+            closed = true;
+            pollers = new ArrayList<>(this.pollers);
+            this.pollers.clear();
+        }
+
+        for (Poller poller : pollers) {
+            poller.close(timeout, timeUnit);
+        }
+    }
+
+    /**
+     * Routing key of a decoded queue name. Binary queue names are compared by content without copying them.
+     */
+    private static Object key(Object queue) {
+
+        if (queue instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) queue);
+        }
+
+        return queue;
+    }
+
+    /**
+     * A subscription for a set of queues.
+     */
+    class Registration implements Producer {
+
+        private final Poller poller;
+        private final Subscriber<? super Job<K, V>> subscriber;
+        private final K[] queues;
+        private final List<Object> keys = new ArrayList<>();
+        private final AtomicLong requested = new AtomicLong();
+
+        Registration(Poller poller, Subscriber<? super Job<K, V>> subscriber, K[] queues) {
+
+            this.poller = poller;
+            this.subscriber = subscriber;
+            this.queues = queues;
+
+            for (K queue : queues) {
+                keys.add(key(queue));
+            }
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n < 0) {
+                throw new IllegalArgumentException("n >= 0 required but it was " + n);
+            }
+
+            if (n != 0) {
+                Demand.add(requested, n);
+                poller.call();
+            }
+        }
+
+        boolean isActive() {
+            return !subscriber.isUnsubscribed() && requested.get() > 0;
+        }
+
+        boolean emit(Job<K, V> job) {
+
+            if (!isActive()) {
+                return false;
+            }
+
+            subscriber.onNext(job);
+            Demand.produced(requested, 1);
+            return true;
+        }
+    }
+
+    /**
+     * Polling connection shared by multiple {@link Registration registrations}.
+     */
+    class Poller {
+
+        private final String connectionId;
+        private final DisqueConnection<K, V> disqueConnection;
+        private final NodeIdAwareSocketAddressSupplier socketAddressSupplier;
+        private final Scheduler.Worker worker;
+        private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        private final AtomicBoolean polling = new AtomicBoolean();
+        private final GetJobArgs getJobArgs = GetJobArgs.builder().noHang(true).build();
+
+        private volatile RedisFuture<List<Job<K, V>>> outstanding;
+
+        Poller(String connectionId) {
+
+            QueueListener.LocalityAwareConnection<K, V> localityAwareConnection = disqueConnectionSupplier.get();
+
+            this.connectionId = connectionId;
+            this.disqueConnection = localityAwareConnection.getConnection();
+            this.socketAddressSupplier = localityAwareConnection.getSocketAddressSupplier();
+            this.worker = scheduler.createWorker();
+
+            disqueConnection.async().clientSetname(connectionId);
+        }
+
+        void register(Registration registration) {
+            registrations.add(registration);
+        }
+
+        void unregister(Registration registration) {
+            registrations.remove(registration);
+        }
+
+        /**
+         * Start polling unless a {@code GETJOB} command is already outstanding.
+         */
+        void call() {
+            if (polling.compareAndSet(false, true)) {
+                poll();
+            }
+        }
+
+        private void poll() {
+
+            if (!open.get()) {
+                polling.set(false);
+                return;
+            }
+
+            Map<Object, List<Registration>> routes = new HashMap<>();
+            List<K> queues = new ArrayList<>();
+            K[] template = null;
+            long demand = 0;
+
+            for (Registration registration : registrations) {
+
+                if (!registration.isActive()) {
+                    continue;
+                }
+
+                demand = Math.min(count, demand + Math.min(count, registration.requested.get()));
+                template = registration.queues;
+                for (int i = 0; i < registration.queues.length; i++) {
+
+                    List<Registration> route = routes.get(registration.keys.get(i));
+                    if (route == null) {
+                        route = new ArrayList<>();
+                        routes.put(registration.keys.get(i), route);
+                        queues.add(registration.queues[i]);
+                    }
+                    route.add(registration);
+                }
+            }
+
+            if (queues.isEmpty()) {
+                pause();
+                return;
+            }
+
+            K[] from = queues.toArray(Arrays.copyOf(template, queues.size()));
+            RedisFuture<List<Job<K, V>>> future = disqueConnection.async().getjobs(getJobArgs, demand, from);
+            outstanding = future;
+            future.whenComplete((jobs, throwable) -> onCompletion(jobs, throwable, routes));
+        }
+
+        private void onCompletion(List<Job<K, V>> jobs, Throwable throwable, Map<Object, List<Registration>> routes) {
+
+            if (throwable != null) {
+                onError(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause()
+                        : throwable);
+                return;
+            }
+
+            List<String> unrouted = null;
+            for (Job<K, V> job : jobs) {
+                if (!route(job, routes.get(key(job.getQueue())))) {
+                    if (unrouted == null) {
+                        unrouted = new ArrayList<>();
+                    }
+                    unrouted.add(job.getId());
+                }
+            }
+
+            if (unrouted != null) {
+                disqueConnection.async().enqueue(unrouted.toArray(new String[unrouted.size()]));
+            }
+
+            if (jobs.isEmpty()) {
+                worker.schedule(this::poll, idleDelay, timeUnit);
+            } else {
+                poll();
+            }
+        }
+
+        private boolean route(Job<K, V> job, List<Registration> route) {
+
+            if (route == null) {
+                return false;
+            }
+
+            int offset = Math.abs(job.getId().hashCode() % route.size());
+            for (int i = 0; i < route.size(); i++) {
+                if (route.get((offset + i) % route.size()).emit(job)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void pause() {
+
+            polling.set(false);
+
+            for (Registration registration : registrations) {
+                if (registration.isActive()) {
+                    call();
+                    return;
+                }
+            }
+        }
+
+        private void onError(Throwable throwable) {
+
+            if (!open.get() || throwable instanceof CancellationException) {
+                polling.set(false);
+                return;
+            }
+
+            if (throwable instanceof RedisException && throwable.getMessage() != null
+                    && throwable.getMessage().startsWith("LEAVING")) {
+
+                log.info("Received LEAVING on {}, reconnecting", connectionId);
+                // reloading the nodes requires a blocking call, don't block the I/O thread
+                worker.schedule(() -> {
+                    try {
+                        socketAddressSupplier.reloadNodes();
+                        GetJobsAction.disconnect((RedisChannelHandler<?, ?>) disqueConnection);
+                    } catch (RuntimeException e) {
+                        log.warn("Cannot reconnect " + connectionId + ": " + e.getMessage(), e);
+                    }
+                    poll();
+                });
+                return;
+            }
+
+            polling.set(false);
+            for (Registration registration : registrations) {
+                registrations.remove(registration);
+                if (!registration.subscriber.isUnsubscribed()) {
+                    registration.subscriber.onError(throwable);
+                }
+            }
+        }
+
+        void close(long timeout, TimeUnit timeUnit) {
+
+            open.set(false);
+            RedisFuture<List<Job<K, V>>> future = outstanding;
+
+            try {
+                if (future != null && !future.isDone() && !future.await(timeout, timeUnit)) {
+                    log.warn("Could not gracefully close the multiplexed connection " + connectionId + " within " + timeout
+                            + " " + timeUnit + ", forcing close of connection");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                disqueConnection.close();
+                worker.unsubscribe();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * Exponential backoff with jitter for jobs that are retried by adding them again using {@code ADDJOB} with {@code DELAY}.
+ * The attempt of a job is derived from its {@code nacks} and {@code additional-deliveries} counters (requires
+ * {@code GETJOB WITHCOUNTERS}). A job that is added again starts with fresh counters under a new id, so the attempts of the
+ * jobs added by this instance are remembered for the last {@link #MEMORY} retries. The delay of attempt {@code n} is
+ * {@code min(base * 2^(n-1), max)}, half of it is randomized (equal jitter) to spread retries of jobs that failed together.
+ * Instances are thread-safe.
+ *
+ * @author Mark Paluch
+ */
+class RetryBackoff {
+
+    /**
+     * Number of retried jobs whose attempt is remembered.
+     */
+    static final int MEMORY = 10000;
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Map<String, Integer> attempts = new LinkedHashMap<String, Integer>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MEMORY;
+        }
+    };
+
+    /**
+     * @param base delay of the first retry, must be greater 0
+     * @param max maximal delay, must not be less than {@code base}
+     * @param timeUnit the delay unit
+     */
+    RetryBackoff(long base, long max, TimeUnit timeUnit) {
+
+        validate(base, max, timeUnit);
+
+        this.baseMillis = timeUnit.toMillis(base);
+        this.maxMillis = timeUnit.toMillis(max);
+    }
+
+    /**
+     * Validate the backoff settings.
+     *
+     * @param base delay of the first retry
+     * @param max maximal delay
+     * @param timeUnit the delay unit
+     */
+    static void validate(long base, long max, TimeUnit timeUnit) {
+
+        LettuceAssert.isTrue(base > 0, "Base delay must be greater 0");
+        LettuceAssert.isTrue(max >= base, "Max delay must not be less than the base delay");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+    }
+
+    /**
+     *
+     * @param counters the counters of a job, may be {@literal null}
+     * @return the number of failed deliveries according to the {@code nacks} and {@code additional-deliveries} counters
+     */
+    static long getFailedDeliveries(Map<String, Long> counters) {
+
+        if (counters == null) {
+            return 0;
+        }
+
+        Long nacks = counters.get("nacks");
+        Long additionalDeliveries = counters.get("additional-deliveries");
+        return (nacks != null ? nacks : 0) + (additionalDeliveries != null ? additionalDeliveries : 0);
+    }
+
+    /**
+     * Retrieve the number of failures of the {@code job} according to its counters and the remembered attempts.
+     *
+     * @param job the job
+     * @return the number of failures
+     */
+    long getFailures(Job<?, ?> job) {
+
+        Integer remembered;
+        synchronized (attempts) {
+            remembered = attempts.get(job.getId());
+        }
+
+        return Math.max(remembered != null ? remembered : 0, getFailedDeliveries(job.getCounters()));
+    }
+
+    /**
+     * Retrieve the attempt of the failed {@code job}, starting with {@literal 1} for the first failure. Forgets the
+     * remembered attempt of the job.
+     *
+     * @param job the failed job
+     * @return the attempt
+     */
+    int getAttempt(Job<?, ?> job) {
+
+        long failures = getFailures(job);
+        synchronized (attempts) {
+            attempts.remove(job.getId());
+        }
+
+        return (int) Math.min(failures + 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Remember the {@code attempt} of the job that was added again as {@code jobId}.
+     *
+     * @param jobId the id of the added job
+     * @param attempt the attempt that failed
+     */
+    void remember(String jobId, int attempt) {
+        synchronized (attempts) {
+            attempts.put(jobId, attempt);
+        }
+    }
+
+    /**
+     * Calculate the randomized delay of the {@code attempt}.
+     *
+     * @param attempt the attempt
+     * @return the delay in seconds, at least {@literal 1}
+     */
+    long getDelay(int attempt) {
+        return getDelay(attempt, ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Calculate the delay of the {@code attempt}.
+     *
+     * @param attempt the attempt
+     * @param random random value between {@literal 0} and {@literal 1}
+     * @return the delay in seconds, at least {@literal 1}. {@code DELAY} has a resolution of seconds.
+     */
+    long getDelay(int attempt, double random) {
+
+        int shift = Math.max(attempt - 1, 0);
+        long delay = shift >= Long.numberOfLeadingZeros(baseMillis) - 1 ? maxMillis : Math.min(baseMillis << shift, maxMillis);
+        long jittered = delay / 2 + (long) (delay / 2 * random);
+
+        return Math.max(TimeUnit.MILLISECONDS.toSeconds(jittered + 999), 1);
+    }
+}
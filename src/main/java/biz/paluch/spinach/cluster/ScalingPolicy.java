@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Scaling decision for the number of subscriptions based on the backlog of the queues. The backlog per subscription is
+ * compared against two thresholds:
+ * <ul>
+ * <li>If the backlog per subscription exceeds {@code scaleUpBacklog} for {@link #SAMPLES} consecutive samples, one
+ * subscription is added.</li>
+ * <li>If the backlog per subscription is below {@code scaleDownBacklog} for {@link #SAMPLES} consecutive samples, one
+ * subscription is retired.</li>
+ * </ul>
+ * The gap between the thresholds and the required consecutive samples form the hysteresis that prevents flapping. The number
+ * of subscriptions is kept between {@code minSubscriptions} and {@code maxSubscriptions}. Instances are stateful and not
+ * thread-safe.
+ *
+ * @author Mark Paluch
+ */
+class ScalingPolicy {
+
+    /**
+     * Number of consecutive samples required for a scaling decision.
+     */
+    static final int SAMPLES = 3;
+
+    private final int minSubscriptions;
+    private final int maxSubscriptions;
+    private final long scaleUpBacklog;
+    private final long scaleDownBacklog;
+
+    private int aboveSamples;
+    private int belowSamples;
+
+    /**
+     * @param minSubscriptions the minimal number of subscriptions, must be greater 0
+     * @param maxSubscriptions the maximal number of subscriptions, must be greater or equal to {@code minSubscriptions}
+     * @param scaleUpBacklog backlog per subscription above which subscriptions are added
+     * @param scaleDownBacklog backlog per subscription below which subscriptions are retired, must be less than
+     *        {@code scaleUpBacklog}
+     */
+    ScalingPolicy(int minSubscriptions, int maxSubscriptions, long scaleUpBacklog, long scaleDownBacklog) {
+
+        validate(minSubscriptions, maxSubscriptions, scaleUpBacklog, scaleDownBacklog);
+
+        this.minSubscriptions = minSubscriptions;
+        this.maxSubscriptions = maxSubscriptions;
+        this.scaleUpBacklog = scaleUpBacklog;
+        this.scaleDownBacklog = scaleDownBacklog;
+    }
+
+    /**
+     * Validate the scaling settings.
+     *
+     * @param minSubscriptions the minimal number of subscriptions
+     * @param maxSubscriptions the maximal number of subscriptions
+     * @param scaleUpBacklog backlog per subscription above which subscriptions are added
+     * @param scaleDownBacklog backlog per subscription below which subscriptions are retired
+     */
+    static void validate(int minSubscriptions, int maxSubscriptions, long scaleUpBacklog, long scaleDownBacklog) {
+
+        LettuceAssert.isTrue(minSubscriptions > 0, "Min subscriptions must be greater 0");
+        LettuceAssert.isTrue(maxSubscriptions >= minSubscriptions,
+                "Max subscriptions must be greater or equal to min subscriptions");
+        LettuceAssert.isTrue(scaleDownBacklog >= 0, "Scale down backlog must be greater or equal to 0");
+        LettuceAssert.isTrue(scaleUpBacklog > scaleDownBacklog, "Scale up backlog must be greater than scale down backlog");
+    }
+
+    int getMinSubscriptions() {
+        return minSubscriptions;
+    }
+
+    /**
+     * Record a backlog sample and decide on the number of subscriptions.
+     *
+     * @param subscriptions the current number of subscriptions
+     * @param backlog the number of queued jobs
+     * @return the new number of subscriptions
+     */
+    int next(int subscriptions, long backlog) {
+
+        long perSubscription = backlog / Math.max(subscriptions, 1);
+
+        if (perSubscription > scaleUpBacklog) {
+            aboveSamples++;
+            belowSamples = 0;
+        } else if (perSubscription < scaleDownBacklog) {
+            belowSamples++;
+            aboveSamples = 0;
+        } else {
+            aboveSamples = 0;
+            belowSamples = 0;
+        }
+
+        if (aboveSamples >= SAMPLES && subscriptions < maxSubscriptions) {
+            aboveSamples = 0;
+            return subscriptions + 1;
+        }
+
+        if (belowSamples >= SAMPLES && subscriptions > minSubscriptions) {
+            belowSamples = 0;
+            return subscriptions - 1;
+        }
+
+        return Math.max(minSubscriptions, Math.min(subscriptions, maxSubscriptions));
+    }
+}
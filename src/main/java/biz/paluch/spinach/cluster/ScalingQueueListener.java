@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.lambdaworks.redis.event.EventBus;
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.cluster.QueueListener.LocalityAwareConnection;
+import io.netty.util.internal.ConcurrentSet;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Observable;
+import rx.Scheduler;
+import rx.subjects.PublishSubject;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Auto-scaling job listener. Each subscription merges the jobs of a variable number of {@link QueueListener} subscriptions,
+ * each of them using its own connection. The backlog of the queues is sampled periodically using {@code QLEN} and a
+ * {@link ScalingPolicy} decides whether to add or retire a subscription. Retired subscriptions stop polling and close their
+ * connection. Each decision is published as {@link SubscriptionScalingEvent} on the {@link EventBus}.
+ * <p>
+ * Sampling uses its own connection and the asynchronous API. The next sample is taken after the decision of the previous one
+ * is applied, so slow samples do not pile up.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class ScalingQueueListener<K, V> {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(ScalingQueueListener.class);
+    private static final AtomicInteger scalingListenerIds = new AtomicInteger();
+
+    private final AtomicInteger subscriberIds = new AtomicInteger();
+    private final int id = scalingListenerIds.incrementAndGet();
+
+    private final Scheduler scheduler;
+    private final QueueListener<K, V> listener;
+    private final Supplier<LocalityAwareConnection<K, V>> samplingConnectionSupplier;
+    private final Supplier<ScalingPolicy> policySupplier;
+    private final EventBus eventBus;
+    private final long sampleInterval;
+    private final TimeUnit timeUnit;
+    private final Set<Scaling> scalings = new ConcurrentSet<>();
+
+    private Consumer<ScalingQueueListener<K, V>> onActive;
+    private Consumer<ScalingQueueListener<K, V>> onIdle;
+
+    /**
+     * @param scheduler the scheduler for sampling
+     * @param listener the listener providing the merged subscriptions
+     * @param samplingConnectionSupplier supplier for the connection used to sample the backlog
+     * @param policySupplier supplier for a new {@link ScalingPolicy} per subscription
+     * @param eventBus the event bus to publish {@link SubscriptionScalingEvent scaling events}
+     * @param sampleInterval interval between backlog samples
+     * @param timeUnit the interval unit
+     */
+    ScalingQueueListener(Scheduler scheduler, QueueListener<K, V> listener,
+            Supplier<LocalityAwareConnection<K, V>> samplingConnectionSupplier, Supplier<ScalingPolicy> policySupplier,
+            EventBus eventBus, long sampleInterval, TimeUnit timeUnit) {
+
+        LettuceAssert.isTrue(sampleInterval > 0, "Sample interval must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.samplingConnectionSupplier = samplingConnectionSupplier;
+        this.policySupplier = policySupplier;
+        this.eventBus = eventBus;
+        this.sampleInterval = sampleInterval;
+        this.timeUnit = timeUnit;
+    }
+
+    /**
+     * Create an {@link Observable} that emits the jobs of all subscriptions. The subscriptions are retired once the subscriber
+     * unsubscribes.
+     *
+     * @return the {@link Observable}
+     */
+    Observable<Job<K, V>> toObservable() {
+
+        return Observable.create((Observable.OnSubscribe<Job<K, V>>) subscriber -> {
+
+            Scaling scaling = new Scaling(policySupplier.get());
+            scalings.add(scaling);
+
+            if (onActive != null) {
+                onActive.accept(this);
+            }
+
+            subscriber.add(Subscriptions.create(scaling::close));
+            Observable.merge(scaling.members).unsafeSubscribe(subscriber);
+            scaling.start();
+        });
+    }
+
+    /**
+     * Stop sampling and retire all subscriptions. Subscribers receive a completion once the retired subscriptions terminated.
+     */
+    void close() {
+        for (Scaling scaling : scalings) {
+            scaling.close();
+        }
+    }
+
+    /**
+     *
+     * @return {@literal true} if the listener has no open subscriptions
+     */
+    boolean isIdle() {
+        return scalings.isEmpty();
+    }
+
+    /**
+     * Register callbacks for the subscription lifecycle.
+     *
+     * @param onActive invoked when a subscription is started
+     * @param onIdle invoked when the last subscription is closed
+     */
+    void withLifecycle(Consumer<ScalingQueueListener<K, V>> onActive, Consumer<ScalingQueueListener<K, V>> onIdle) {
+        this.onActive = onActive;
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * State of a single auto-scaling subscription.
+     */
+    private class Scaling {
+
+        private final String scalingId = getClass().getSimpleName() + "-" + id + "-" + subscriberIds.incrementAndGet();
+        private final ScalingPolicy policy;
+        private final Scheduler.Worker worker = scheduler.createWorker();
+        private final PublishSubject<Observable<Job<K, V>>> members = PublishSubject.create();
+        private final Deque<PublishSubject<Void>> retireSignals = new ArrayDeque<>();
+        private final AtomicBoolean open = new AtomicBoolean(true);
+
+        private volatile LocalityAwareConnection<K, V> connection;
+
+        Scaling(ScalingPolicy policy) {
+            this.policy = policy;
+        }
+
+        void start() {
+            worker.schedule(() -> {
+                for (int i = 0; i < policy.getMinSubscriptions(); i++) {
+                    addSubscription();
+                }
+                worker.schedule(this::sample, sampleInterval, timeUnit);
+            });
+        }
+
+        private void sample() {
+
+            if (!open.get()) {
+                return;
+            }
+
+            try {
+                if (connection == null) {
+                    connection = samplingConnectionSupplier.get();
+                }
+            } catch (RuntimeException e) {
+                log.warn("Cannot connect to sample the backlog: " + e.toString(), e);
+                worker.schedule(this::sample, sampleInterval, timeUnit);
+                return;
+            }
+
+            K[] queues = listener.getQueues();
+            List<CompletableFuture<Long>> futures = new ArrayList<>(queues.length);
+            for (K queue : queues) {
+                futures.add(connection.getConnection().async().qlen(queue).toCompletableFuture());
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((ignore, throwable) -> {
+
+                        if (throwable != null) {
+                            log.warn("Cannot sample the backlog: " + throwable.toString());
+                            worker.schedule(this::sample, sampleInterval, timeUnit);
+                            return;
+                        }
+
+                        long backlog = 0;
+                        for (CompletableFuture<Long> future : futures) {
+                            backlog += future.join();
+                        }
+
+                        long sampled = backlog;
+                        worker.schedule(() -> {
+                            scale(sampled);
+                            worker.schedule(this::sample, sampleInterval, timeUnit);
+                        });
+                    });
+        }
+
+        private void scale(long backlog) {
+
+            if (!open.get()) {
+                return;
+            }
+
+            int subscriptions = retireSignals.size();
+            int target = policy.next(subscriptions, backlog);
+            if (target == subscriptions) {
+                return;
+            }
+
+            log.debug("Scaling {} from {} to {} subscriptions, backlog {}", scalingId, subscriptions, target, backlog);
+
+            while (retireSignals.size() < target) {
+                addSubscription();
+            }
+
+            while (retireSignals.size() > target) {
+                retireSubscription();
+            }
+
+            eventBus.publish(new SubscriptionScalingEvent(scalingId, subscriptions, target, backlog));
+        }
+
+        private void addSubscription() {
+
+            PublishSubject<Void> retireSignal = PublishSubject.create();
+            retireSignals.addLast(retireSignal);
+            members.onNext(listener.toObservable().takeUntil(retireSignal));
+        }
+
+        private void retireSubscription() {
+            retireSignals.pollLast().onNext(null);
+        }
+
+        void close() {
+
+            if (!open.compareAndSet(true, false)) {
+                return;
+            }
+
+            scalings.remove(this);
+            if (onIdle != null && scalings.isEmpty()) {
+                onIdle.accept(ScalingQueueListener.this);
+            }
+
+            // retire on the worker to not race with scaling decisions, closing the connection blocks as well
+            worker.schedule(() -> {
+                try {
+                    while (!retireSignals.isEmpty()) {
+                        retireSubscription();
+                    }
+                    members.onCompleted();
+
+                    if (connection != null) {
+                        connection.getConnection().close();
+                    }
+                } finally {
+                    worker.unsubscribe();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import com.lambdaworks.redis.event.Event;
+
+/**
+ * Event that is published on the {@link com.lambdaworks.redis.event.EventBus} of the client when an auto-scaling listener
+ * adds or retires a subscription.
+ *
+ * @author Mark Paluch
+ * @see QueueListenerFactory#withAutoScaling(int, int)
+ */
+public class SubscriptionScalingEvent implements Event {
+
+    private final String listenerId;
+    private final int previousSubscriptions;
+    private final int subscriptions;
+    private final long backlog;
+
+    /**
+     * @param listenerId the id of the auto-scaling listener
+     * @param previousSubscriptions the number of subscriptions before the decision
+     * @param subscriptions the number of subscriptions after the decision
+     * @param backlog the sampled backlog that led to the decision
+     */
+    public SubscriptionScalingEvent(String listenerId, int previousSubscriptions, int subscriptions, long backlog) {
+        this.listenerId = listenerId;
+        this.previousSubscriptions = previousSubscriptions;
+        this.subscriptions = subscriptions;
+        this.backlog = backlog;
+    }
+
+    /**
+     *
+     * @return the id of the auto-scaling listener
+     */
+    public String getListenerId() {
+        return listenerId;
+    }
+
+    /**
+     *
+     * @return the number of subscriptions before the decision
+     */
+    public int getPreviousSubscriptions() {
+        return previousSubscriptions;
+    }
+
+    /**
+     *
+     * @return the number of subscriptions after the decision
+     */
+    public int getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     *
+     * @return the sampled backlog (sum of {@code QLEN} of the queues) that led to the decision
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getClass().getSimpleName());
+        sb.append(" [listenerId='").append(listenerId).append('\'');
+        sb.append(", previousSubscriptions=").append(previousSubscriptions);
+        sb.append(", subscriptions=").append(subscriptions);
+        sb.append(", backlog=").append(backlog);
+        sb.append(']');
+        return sb.toString();
+    }
+}
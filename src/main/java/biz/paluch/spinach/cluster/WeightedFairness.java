@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+/**
+ * Weighted fair ordering of the queues of a {@code GETJOB} command. Disque drains the queues strictly in the order of the
+ * {@code FROM} list, so the queue that received the smallest weighted share is put first. The service of each queue is
+ * measured in received jobs divided by the weight of the queue and decays by half once {@link #WINDOW} jobs are received,
+ * so a queue that was idle for a long time cannot claim priority over a long period. Queues without a weight use a weight of
+ * {@literal 1}, including queues that are added to the listener later. Instances are stateful and bound to a single
+ * subscription.
+ *
+ * @author Mark Paluch
+ */
+class WeightedFairness<K> {
+
+    /**
+     * Number of received jobs after which the service counters decay.
+     */
+    static final int WINDOW = 1024;
+
+    private final K[] queues;
+    private final Map<K, Integer> weights;
+    private final Map<K, Service> services = new ConcurrentHashMap<>();
+
+    private long windowed;
+
+    /**
+     * @param queues the queues of the listener, must not be {@literal null}
+     * @param weights the weights per queue, must not be {@literal null}
+     */
+    WeightedFairness(K[] queues, Map<K, Integer> weights) {
+
+        validate(queues, weights);
+
+        this.queues = queues;
+        this.weights = new HashMap<>(weights);
+
+        for (K queue : queues) {
+            services.put(queue, new Service());
+        }
+    }
+
+    /**
+     * Validate the weights.
+     *
+     * @param queues the queues of the listener
+     * @param weights the weights per queue
+     */
+    static <K> void validate(K[] queues, Map<K, Integer> weights) {
+
+        LettuceAssert.notNull(queues, "Queues must not be null");
+        LettuceAssert.notNull(weights, "Weights must not be null");
+
+        for (Map.Entry<K, Integer> entry : weights.entrySet()) {
+            LettuceAssert.isTrue(Arrays.asList(queues).contains(entry.getKey()),
+                    "Queue " + entry.getKey() + " is not a queue of the listener");
+            LettuceAssert.isTrue(entry.getValue() != null && entry.getValue() > 0, "Weight must be greater 0");
+        }
+    }
+
+    /**
+     * Create a new instance using the same weights but a fresh state.
+     *
+     * @return a new {@link WeightedFairness}
+     */
+    WeightedFairness<K> newInstance() {
+        return new WeightedFairness<K>(queues, weights);
+    }
+
+    /**
+     * Order the {@code queues} by their weighted service, the least served queue first. Queues with the same service keep
+     * their order.
+     *
+     * @param queues the current queues of the listener
+     * @return the ordered queues
+     */
+    K[] order(K[] queues) {
+
+        K[] result = Arrays.copyOf(queues, queues.length);
+        double[] keys = new double[result.length];
+        for (int i = 0; i < result.length; i++) {
+            keys[i] = getWeightedService(result[i]);
+        }
+
+        // insertion sort: stable and cheap for the handful of queues of a listener
+        for (int i = 1; i < result.length; i++) {
+
+            K queue = result[i];
+            double key = keys[i];
+            int j = i - 1;
+
+            while (j >= 0 && keys[j] > key) {
+                result[j + 1] = result[j];
+                keys[j + 1] = keys[j];
+                j--;
+            }
+
+            result[j + 1] = queue;
+            keys[j + 1] = key;
+        }
+
+        return result;
+    }
+
+    /**
+     * Record a received job.
+     *
+     * @param queue the queue of the job
+     */
+    void onReceived(K queue) {
+
+        Service service = services.computeIfAbsent(queue, k -> new Service());
+        service.received++;
+        service.service++;
+
+        if (++windowed >= WINDOW) {
+            windowed = 0;
+            for (Service each : services.values()) {
+                each.service /= 2;
+            }
+        }
+    }
+
+    /**
+     * Retrieve the achieved shares of the received jobs per queue since the subscription was started.
+     *
+     * @return the share per queue between {@literal 0} and {@literal 1}
+     */
+    Map<K, Double> getShares() {
+
+        long total = 0;
+        for (Service service : services.values()) {
+            total += service.received;
+        }
+
+        Map<K, Double> shares = new LinkedHashMap<>();
+        for (Map.Entry<K, Service> entry : services.entrySet()) {
+            shares.put(entry.getKey(), total == 0 ? 0d : (double) entry.getValue().received / total);
+        }
+        return shares;
+    }
+
+    private double getWeightedService(K queue) {
+
+        Service service = services.get(queue);
+        if (service == null) {
+            return 0;
+        }
+
+        Integer weight = weights.get(queue);
+        return (double) service.service / (weight != null ? weight : 1);
+    }
+
+    /**
+     * Service counters of a queue. Counters are updated from the polling sequence of a single subscription.
+     */
+    private static class Service {
+
+        volatile long received;
+        volatile long service;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.DisqueConnection;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import rx.Scheduler;
+
+/**
+ * Lease extension of in-flight jobs using {@code WORKING}. Leases are kept on a {@link HashedTimingWheel} that advances every
+ * {@link #TICK} {@link #TICK_UNIT}, so the cost per tick does not depend on the number of leases. The first {@code WORKING}
+ * of a job is sent after the initial delay, each further {@code WORKING} after a fraction of the postpone time returned by
+ * the previous one. All {@code WORKING} commands that fall due in the same tick are pipelined and written with a single flush.
+ * <p>
+ * A lease ends when it is {@link #cancel(String) cancelled} on {@code ACKJOB} or {@code NACK}, when {@code WORKING} fails
+ * (e.g. the job is no longer known) or returns no postpone time. Cancelled leases stay on the wheel until they fall due and
+ * are dropped then. The commands use their own connection with disabled auto-flush, the commands are only written from the
+ * tick worker.
+ * </p>
+ *
+ * @author Mark Paluch
+ */
+class WorkingLeases<K, V> {
+
+    static final long TICK = 100;
+    static final TimeUnit TICK_UNIT = TimeUnit.MILLISECONDS;
+    static final int BUCKETS = 512;
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(WorkingLeases.class);
+
+    private final Supplier<DisqueConnection<K, V>> connectionSupplier;
+    private final long initialTicks;
+    private final double refreshFraction;
+    private final Scheduler.Worker worker;
+    private final HashedTimingWheel<Lease> wheel = new HashedTimingWheel<>(BUCKETS);
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private volatile DisqueConnection<K, V> connection;
+
+    /**
+     * @param scheduler the scheduler for the ticks
+     * @param connectionSupplier supplier for the connection used to send {@code WORKING}
+     * @param initialDelay delay of the first {@code WORKING} of a job, must be greater 0
+     * @param timeUnit the delay unit
+     * @param refreshFraction fraction of the postpone time after which the lease is refreshed, must be greater 0 and less
+     *        than 1
+     */
+    WorkingLeases(Scheduler scheduler, Supplier<DisqueConnection<K, V>> connectionSupplier, long initialDelay,
+            TimeUnit timeUnit, double refreshFraction) {
+
+        validate(initialDelay, timeUnit, refreshFraction);
+
+        this.connectionSupplier = connectionSupplier;
+        this.initialTicks = toTicks(timeUnit.toNanos(initialDelay));
+        this.refreshFraction = refreshFraction;
+        this.worker = scheduler.createWorker();
+        this.worker.schedulePeriodically(this::tick, TICK, TICK, TICK_UNIT);
+    }
+
+    /**
+     * Validate the lease settings.
+     *
+     * @param initialDelay delay of the first {@code WORKING} of a job
+     * @param timeUnit the delay unit
+     * @param refreshFraction fraction of the postpone time after which the lease is refreshed
+     */
+    static void validate(long initialDelay, TimeUnit timeUnit, double refreshFraction) {
+
+        LettuceAssert.isTrue(initialDelay > 0, "Initial delay must be greater 0");
+        LettuceAssert.notNull(timeUnit, "TimeUnit must not be null");
+        LettuceAssert.isTrue(refreshFraction > 0 && refreshFraction < 1, "Refresh fraction must be between 0 and 1");
+    }
+
+    /**
+     * Start the lease of the job {@code id}. Replaces a lease of the same job.
+     *
+     * @param id the job id
+     */
+    void start(String id) {
+
+        Lease lease = new Lease(id);
+        leases.put(id, lease);
+        wheel.schedule(lease, initialTicks);
+    }
+
+    /**
+     * End the lease of the job {@code id}.
+     *
+     * @param id the job id
+     */
+    void cancel(String id) {
+        leases.remove(id);
+    }
+
+    /**
+     *
+     * @return the number of active leases
+     */
+    int size() {
+        return leases.size();
+    }
+
+    /**
+     * Calculate the number of ticks until the lease is refreshed.
+     *
+     * @param postponeSeconds the postpone time returned by {@code WORKING}
+     * @param refreshFraction fraction of the postpone time after which the lease is refreshed
+     * @return the number of ticks, at least {@literal 1}
+     */
+    static long refreshTicks(long postponeSeconds, double refreshFraction) {
+        return toTicks((long) (TimeUnit.SECONDS.toNanos(postponeSeconds) * refreshFraction));
+    }
+
+    private static long toTicks(long nanos) {
+        return Math.max(nanos / TICK_UNIT.toNanos(TICK), 1);
+    }
+
+    private void tick() {
+
+        List<Lease> due = wheel.advance();
+        if (due.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (connection == null) {
+                connection = connectionSupplier.get();
+                connection.setAutoFlushCommands(false);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot connect to extend leases: " + e.toString(), e);
+            for (Lease lease : due) {
+                wheel.schedule(lease, 1);
+            }
+            return;
+        }
+
+        int sent = 0;
+        for (Lease lease : due) {
+
+            if (leases.get(lease.id) != lease) {
+                continue;
+            }
+
+            connection.async().working(lease.id).whenComplete((seconds, throwable) -> onWorking(lease, seconds, throwable));
+            sent++;
+        }
+
+        if (sent != 0) {
+            connection.flushCommands();
+        }
+    }
+
+    private void onWorking(Lease lease, Long seconds, Throwable throwable) {
+
+        if (leases.get(lease.id) != lease) {
+            return;
+        }
+
+        if (throwable != null || seconds == null || seconds <= 0) {
+            log.debug("Ending lease of job {}: {}", lease.id, throwable != null ? throwable.toString() : seconds);
+            leases.remove(lease.id, lease);
+            return;
+        }
+
+        wheel.schedule(lease, refreshTicks(seconds, refreshFraction));
+    }
+
+    /**
+     * Stop extending leases and close the connection.
+     */
+    void close() {
+
+        leases.clear();
+
+        // closing the connection blocks, so run it outside of the calling thread
+        worker.schedule(() -> {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+    }
+
+    /**
+     * Lease of a job. Leases are compared by identity, so a lease that was replaced or cancelled is dropped.
+     */
+    private static class Lease {
+
+        final String id;
+
+        Lease(String id) {
+            this.id = id;
+        }
+    }
+}
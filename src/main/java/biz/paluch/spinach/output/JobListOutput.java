@@ -35,10 +35,12 @@ import com.lambdaworks.redis.codec.RedisCodec;
 public class JobListOutput<K, V> extends CommandOutput<K, V, List<Job<K, V>>> implements SupportsObservables {
 
     private K defaultQueue;
+    private JobPool<K, V> pool;
+    private JobPool.PooledJob<K, V> pooledJob;
     private K queue;
     private String id;
     private V body;
-    private Map<String, Long> counters = new HashMap<String, Long>();
+    private Map<String, Long> counters;
     private String lastKey;
     private Subscriber<Object> subscriber;
 
@@ -51,6 +53,17 @@ public class JobListOutput<K, V> extends CommandOutput<K, V, List<Job<K, V>>> im
         this.defaultQueue = defaultQueue;
     }
 
+    /**
+     * Create an output that emits recycled {@link Job} instances of the {@code pool}.
+     *
+     * @param codec the codec
+     * @param pool the job pool
+     */
+    public JobListOutput(RedisCodec<K, V> codec, JobPool<K, V> pool) {
+        super(codec, new ArrayList<Job<K, V>>());
+        this.pool = pool;
+    }
+
     @Override
     public void set(ByteBuffer bytes) {
 
@@ -58,7 +71,7 @@ public class JobListOutput<K, V> extends CommandOutput<K, V, List<Job<K, V>>> im
             if (defaultQueue != null) {
                 queue = defaultQueue;
             } else {
-                queue = codec.decodeKey(bytes);
+                queue = pool != null ? pool.decodeQueue(bytes) : codec.decodeKey(bytes);
                 return;
             }
         }
@@ -69,12 +82,17 @@ public class JobListOutput<K, V> extends CommandOutput<K, V, List<Job<K, V>>> im
         }
 
         if (body == null) {
-            counters = new HashMap<String, Long>();
+            if (pool != null) {
+                pooledJob = pool.acquire();
+                counters = pooledJob.getCounterMap();
+            } else {
+                counters = new HashMap<String, Long>();
+            }
             body = codec.decodeValue(bytes);
             return;
         }
 
-        lastKey = decodeAscii(bytes);
+        lastKey = pool != null ? JobPool.decodeCounterKey(bytes) : decodeAscii(bytes);
     }
 
     @Override
@@ -89,7 +107,15 @@ public class JobListOutput<K, V> extends CommandOutput<K, V, List<Job<K, V>>> im
     public void complete(int depth) {
 
         if (id != null && body != null && depth == 1) {
-            Job<K, V> job = new Job<K, V>(queue, id, body, counters);
+            Job<K, V> job;
+            if (pooledJob != null) {
+                pooledJob.set(queue, id, body);
+                job = pooledJob;
+                pooledJob = null;
+            } else {
+                job = new Job<K, V>(queue, id, body, counters);
+            }
+
             if (subscriber != null && !subscriber.isUnsubscribed()) {
                 subscriber.onNext(job);
             }
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.output;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.lambdaworks.redis.codec.RedisCodec;
+import com.lambdaworks.redis.internal.LettuceAssert;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * Pool of recyclable {@link Job} instances for {@link JobListOutput}. A pooled job keeps its counters map across uses (a
+ * read-mostly map whose {@link Map#entrySet()} is a snapshot), queue
+ * names are decoded once and cached (up to {@link #QUEUE_CACHE_SIZE} queues) and the known counter names are not decoded at
+ * all. With a pool, the remaining allocations per job are the job id and the body decoded by the codec.
+ * <p>
+ * A job must be {@link #release(Job) released} once it is no longer used. A released job is cleared and reused for a later
+ * job, so references to a released job or its counters must not be retained. Jobs that are not released are garbage
+ * collected as usual. Instances are thread-safe.
+ * </p>
+ *
+ * @author Mark Paluch
+ * @param <K> Queue-Id Type.
+ * @param <V> Body-Id Type.
+ */
+public class JobPool<K, V> {
+
+    public static final int DEFAULT_SIZE = 1024;
+    public static final int QUEUE_CACHE_SIZE = 16;
+
+    private static final String[] COUNTER_KEYS = { "nacks", "additional-deliveries" };
+
+    private final RedisCodec<K, V> codec;
+    private final PooledJob<K, V>[] free;
+    private final byte[][] queueBytes = new byte[QUEUE_CACHE_SIZE][];
+    private final Object[] queues = new Object[QUEUE_CACHE_SIZE];
+
+    private int available;
+    private int cachedQueues;
+
+    /**
+     * @param codec the codec, must not be {@literal null}
+     * @param size maximal number of released jobs kept for reuse, must be greater 0
+     */
+    @SuppressWarnings("unchecked")
+    public JobPool(RedisCodec<K, V> codec, int size) {
+
+        LettuceAssert.notNull(codec, "RedisCodec must not be null");
+        LettuceAssert.isTrue(size > 0, "Size must be greater 0");
+
+        this.codec = codec;
+        this.free = (PooledJob<K, V>[]) new PooledJob<?, ?>[size];
+    }
+
+    public RedisCodec<K, V> getCodec() {
+        return codec;
+    }
+
+    /**
+     * Release the {@code job} for reuse. Jobs that were not created by this pool or were already released are ignored.
+     *
+     * @param job the job
+     */
+    public synchronized void release(Job<K, V> job) {
+
+        if (!(job instanceof PooledJob) || ((PooledJob<K, V>) job).pool != this || ((PooledJob<K, V>) job).released) {
+            return;
+        }
+
+        PooledJob<K, V> pooled = (PooledJob<K, V>) job;
+        pooled.clear();
+
+        if (available < free.length) {
+            free[available++] = pooled;
+        }
+    }
+
+    /**
+     *
+     * @return the number of released jobs available for reuse
+     */
+    public synchronized int getAvailable() {
+        return available;
+    }
+
+    /**
+     * Check whether the {@code job} was created by a {@link JobPool}. A pooled job is released and reused once its subscriber
+     * returns from handling it, so it must not be buffered or handled asynchronously.
+     *
+     * @param job the job
+     * @return {@literal true} if the {@code job} is recycled by a {@link JobPool}
+     */
+    public static boolean isPooled(Job<?, ?> job) {
+        return job instanceof PooledJob;
+    }
+
+    synchronized PooledJob<K, V> acquire() {
+
+        if (available == 0) {
+            return new PooledJob<K, V>(this);
+        }
+
+        PooledJob<K, V> job = free[--available];
+        free[available] = null;
+        job.released = false;
+        return job;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized K decodeQueue(ByteBuffer bytes) {
+
+        for (int i = 0; i < cachedQueues; i++) {
+            if (equals(queueBytes[i], bytes)) {
+                return (K) queues[i];
+            }
+        }
+
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        K queue = codec.decodeKey(bytes);
+
+        if (cachedQueues < QUEUE_CACHE_SIZE) {
+            queueBytes[cachedQueues] = copy;
+            queues[cachedQueues++] = queue;
+        }
+        return queue;
+    }
+
+    /**
+     * Decode a counter name without allocation if it is one of the known counters.
+     */
+    static String decodeCounterKey(ByteBuffer bytes) {
+
+        for (String key : COUNTER_KEYS) {
+            if (equals(key, bytes)) {
+                return key;
+            }
+        }
+
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return new String(copy, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean equals(byte[] expected, ByteBuffer bytes) {
+
+        if (expected.length != bytes.remaining()) {
+            return false;
+        }
+
+        int position = bytes.position();
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != bytes.get(position + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(String expected, ByteBuffer bytes) {
+
+        if (expected.length() != bytes.remaining()) {
+            return false;
+        }
+
+        int position = bytes.position();
+        for (int i = 0; i < expected.length(); i++) {
+            if (expected.charAt(i) != bytes.get(position + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Map of the counters of a pooled job. Keeps the entries in arrays that are reused across jobs, so putting a counter
+     * allocates nothing unless the value exceeds the {@link Long#valueOf(long) cached values}.
+     */
+    static class CounterMap extends AbstractMap<String, Long> {
+
+        private String[] keys = new String[COUNTER_KEYS.length];
+        private Long[] values = new Long[COUNTER_KEYS.length];
+        private int size;
+
+        @Override
+        public Long put(String key, Long value) {
+
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    Long previous = values[i];
+                    values[i] = value;
+                    return previous;
+                }
+            }
+
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            keys[size] = key;
+            values[size++] = value;
+            return null;
+        }
+
+        @Override
+        public Long get(Object key) {
+
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Long>> entrySet() {
+
+            Map<String, Long> copy = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < size; i++) {
+                copy.put(keys[i], values[i]);
+            }
+            return Collections.unmodifiableMap(copy).entrySet();
+        }
+    }
+
+    /**
+     * {@link Job} that is owned by a {@link JobPool} and keeps its counters map across uses. The job holds its own state
+     * because the state of a {@link Job} is private.
+     */
+    static class PooledJob<K, V> extends Job<K, V> {
+
+        private final JobPool<K, V> pool;
+        private final CounterMap counterMap = new CounterMap();
+        private K queue;
+        private String id;
+        private V body;
+        private Map<String, Long> counters;
+        private boolean released;
+
+        PooledJob(JobPool<K, V> pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public K getQueue() {
+            return queue;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public V getBody() {
+            return body;
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        CounterMap getCounterMap() {
+            return counterMap;
+        }
+
+        void set(K queue, String id, V body) {
+            this.queue = queue;
+            this.id = id;
+            this.body = body;
+            this.counters = counterMap;
+        }
+
+        void clear() {
+            this.queue = null;
+            this.id = null;
+            this.body = null;
+            this.counterMap.clear();
+            this.released = true;
+        }
+    }
+}
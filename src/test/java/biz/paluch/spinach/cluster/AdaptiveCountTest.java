@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class AdaptiveCountTest {
+
+    private AdaptiveCount sut = new AdaptiveCount(1, 4, 1000, TimeUnit.NANOSECONDS);
+
+    @Test
+    public void startsWithMinCount() throws Exception {
+        assertThat(sut.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void increasesAdditivelyOnFullBatches() throws Exception {
+
+        handleBatch(1, 1, 10);
+        assertThat(sut.getCount()).isEqualTo(2);
+
+        handleBatch(2, 2, 10);
+        assertThat(sut.getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void keepsCountOnPartialBatches() throws Exception {
+
+        handleBatch(1, 1, 10);
+        handleBatch(1, 2, 10);
+
+        assertThat(sut.getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void doesNotExceedMaxCount() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            handleBatch((int) sut.getCount(), sut.getCount(), 10);
+        }
+
+        assertThat(sut.getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void decreasesMultiplicativelyNearRetryBudget() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            handleBatch((int) sut.getCount(), sut.getCount(), 10);
+        }
+
+        handleBatch(4, 4, 500);
+        assertThat(sut.getCount()).isEqualTo(2);
+
+        handleBatch(2, 2, 900);
+        assertThat(sut.getCount()).isEqualTo(1);
+
+        handleBatch(1, 1, 900);
+        assertThat(sut.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void adjustsOnceAllJobsOfBatchAreHandled() throws Exception {
+
+        sut.onReceived(1, 1, 0);
+        assertThat(sut.getCount()).isEqualTo(1);
+
+        sut.onHandled(10);
+        assertThat(sut.getCount()).isEqualTo(2);
+
+        sut.onReceived(2, 2, 20);
+        sut.onHandled(30);
+        assertThat(sut.getCount()).isEqualTo(2);
+
+        sut.onHandled(40);
+        assertThat(sut.getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void newInstanceResetsState() throws Exception {
+
+        handleBatch(1, 1, 10);
+
+        assertThat(sut.newInstance().getCount()).isEqualTo(1);
+    }
+
+    private void handleBatch(int received, long count, long latency) {
+
+        sut.onReceived(received, count, 0);
+        for (int i = 0; i < received; i++) {
+            sut.onHandled(latency);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import biz.paluch.spinach.api.GetJobArgs;
+
+/**
+ * @author Mark Paluch
+ */
+public class AdaptivePollingTest {
+
+    private AdaptivePolling sut = new AdaptivePolling(2, TimeUnit.SECONDS, 50);
+
+    @Test
+    public void fullReplyDrains() throws Exception {
+        assertThat(sut.next(50, 50)).isEqualTo(AdaptivePolling.Mode.DRAIN);
+        assertThat(sut.next(3, 3)).isEqualTo(AdaptivePolling.Mode.DRAIN);
+    }
+
+    @Test
+    public void partialOrEmptyReplyLongPolls() throws Exception {
+        assertThat(sut.next(10, 50)).isEqualTo(AdaptivePolling.Mode.LONG_POLL);
+        assertThat(sut.next(0, 50)).isEqualTo(AdaptivePolling.Mode.LONG_POLL);
+    }
+
+    @Test
+    public void drainUsesNoHang() throws Exception {
+
+        GetJobArgs getJobArgs = sut.getJobArgs(AdaptivePolling.Mode.DRAIN);
+
+        assertThat(getJobArgs.getNoHang()).isTrue();
+        assertThat(getJobArgs.getTimeout()).isNull();
+    }
+
+    @Test
+    public void longPollUsesTimeout() throws Exception {
+
+        GetJobArgs getJobArgs = sut.getJobArgs(AdaptivePolling.Mode.LONG_POLL);
+
+        assertThat(getJobArgs.getNoHang()).isNull();
+        assertThat(getJobArgs.getTimeout()).isEqualTo(2000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroTimeout() throws Exception {
+        new AdaptivePolling(0, TimeUnit.SECONDS, 50);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class CompletedJobsTest {
+
+    private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    @Test
+    public void containsCompletedJobs() throws Exception {
+
+        CompletedJobs sut = new CompletedJobs(10, 1, TimeUnit.MINUTES);
+        sut.add("D-dcb833cf-8YL1NT17e9+wsA/09NqxscQI-05a1", 0);
+
+        assertThat(sut.contains("D-dcb833cf-8YL1NT17e9+wsA/09NqxscQI-05a1", 1)).isTrue();
+        assertThat(sut.contains("D-dcb833cf-8YL1NT17e9+wsA/09NqxscQJ-05a1", 1)).isFalse();
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void ignoresJobsCompletedBeforeWindow() throws Exception {
+
+        CompletedJobs sut = new CompletedJobs(10, 1, TimeUnit.MINUTES);
+        sut.add("D-1", 0);
+
+        assertThat(sut.contains("D-1", WINDOW)).isTrue();
+        assertThat(sut.contains("D-1", WINDOW + 1)).isFalse();
+
+        sut.add("D-1", WINDOW);
+        assertThat(sut.contains("D-1", WINDOW + 1)).isTrue();
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void evictsOldestJobs() throws Exception {
+
+        CompletedJobs sut = new CompletedJobs(100, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 10000; i++) {
+            sut.add("D-" + i, 0);
+        }
+
+        assertThat(sut.size()).isEqualTo(100);
+        for (int i = 0; i < 10000; i++) {
+            assertThat(sut.contains("D-" + i, 0)).as("D-" + i).isEqualTo(i >= 9900);
+        }
+    }
+
+    @Test
+    public void capacityOfOne() throws Exception {
+
+        CompletedJobs sut = new CompletedJobs(1, 1, TimeUnit.MINUTES);
+        sut.add("D-1", 0);
+        sut.add("D-2", 0);
+
+        assertThat(sut.contains("D-1", 0)).isFalse();
+        assertThat(sut.contains("D-2", 0)).isTrue();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidCapacity() throws Exception {
+        CompletedJobs.validate(0, 1, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class DemandTest {
+
+    private final AtomicLong requested = new AtomicLong();
+
+    @Test
+    public void addAndProduce() throws Exception {
+
+        assertThat(Demand.add(requested, 5)).isEqualTo(0);
+        assertThat(Demand.add(requested, 2)).isEqualTo(5);
+        assertThat(Demand.produced(requested, 3)).isEqualTo(4);
+        assertThat(requested.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void unboundedDemandIsCapped() throws Exception {
+
+        Demand.add(requested, Long.MAX_VALUE - 1);
+        Demand.add(requested, 10);
+
+        assertThat(requested.get()).isEqualTo(Long.MAX_VALUE);
+        assertThat(Demand.produced(requested, 100)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void producedMoreThanRequested() throws Exception {
+
+        Demand.add(requested, 1);
+        Demand.produced(requested, 2);
+    }
+}
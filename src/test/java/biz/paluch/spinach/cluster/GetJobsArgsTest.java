@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class GetJobsArgsTest {
+
+    private GetJobsArgs<String> sut = GetJobsArgs.create(1, TimeUnit.SECONDS, 1, new String[] { "a", "b" });
+
+    @Test
+    public void addQueuesAppendsNewQueues() throws Exception {
+
+        String[] before = sut.getQueues();
+        sut.addQueues(new String[] { "b", "c", "c" });
+
+        assertThat(sut.getQueues()).containsExactly("a", "b", "c");
+        assertThat(before).containsExactly("a", "b");
+    }
+
+    @Test
+    public void removeQueues() throws Exception {
+
+        sut.removeQueues(new String[] { "a", "x" });
+
+        assertThat(sut.getQueues()).containsExactly("b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void removeQueuesRequiresRemainingQueue() throws Exception {
+        sut.removeQueues(new String[] { "a", "b" });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addQueuesRejectsNullElements() throws Exception {
+        sut.addQueues(new String[] { null });
+    }
+}
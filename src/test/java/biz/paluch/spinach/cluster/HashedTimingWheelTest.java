@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class HashedTimingWheelTest {
+
+    private final HashedTimingWheel<String> sut = new HashedTimingWheel<>(8);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBucketsThatAreNoPowerOfTwo() throws Exception {
+        new HashedTimingWheel<String>(6);
+    }
+
+    @Test
+    public void emitsElementsWhenDue() throws Exception {
+
+        sut.schedule("a", 1);
+        sut.schedule("b", 3);
+        sut.schedule("c", 3);
+        assertThat(sut.size()).isEqualTo(3);
+
+        assertThat(sut.advance()).containsExactly("a");
+        assertThat(sut.advance()).isEmpty();
+        assertThat(sut.advance()).containsExactly("b", "c");
+        assertThat(sut.size()).isZero();
+    }
+
+    @Test
+    public void schedulesAtLeastOneTick() throws Exception {
+
+        sut.schedule("a", 0);
+        assertThat(sut.advance()).containsExactly("a");
+    }
+
+    @Test
+    public void keepsElementsDueInLaterRotations() throws Exception {
+
+        sut.schedule("late", 19);
+        sut.schedule("early", 3);
+
+        for (int i = 1; i < 19; i++) {
+            assertThat(sut.advance()).isEqualTo(i == 3 ? Collections.singletonList("early") : Collections.<String> emptyList());
+        }
+
+        assertThat(sut.advance()).containsExactly("late");
+        assertThat(sut.size()).isZero();
+    }
+
+    @Test
+    public void schedulesRelativeToCurrentTick() throws Exception {
+
+        sut.advance();
+        sut.advance();
+        sut.schedule("a", 2);
+
+        assertThat(sut.advance()).isEmpty();
+        assertThat(sut.advance()).containsExactly("a");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class InFlightJobsTest {
+
+    private final InFlightJobs sut = new InFlightJobs();
+
+    @Test
+    public void addAndRemove() throws Exception {
+
+        assertThat(sut.add("D-1")).isTrue();
+        assertThat(sut.add("D-2")).isTrue();
+        assertThat(sut.size()).isEqualTo(2);
+
+        assertThat(sut.remove("D-1")).isTrue();
+        assertThat(sut.remove("D-1")).isFalse();
+        assertThat(sut.remove("D-3")).isFalse();
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void ignoresDuplicates() throws Exception {
+
+        assertThat(sut.add("D-1")).isTrue();
+        assertThat(sut.add("D-1")).isFalse();
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void drainReturnsTrackedIds() throws Exception {
+
+        sut.add("D-1");
+        sut.add("D-2");
+        sut.add("D-3");
+        sut.remove("D-2");
+
+        assertThat(sut.drain()).containsOnly("D-1", "D-3");
+        assertThat(sut.size()).isZero();
+        assertThat(sut.drain()).isEmpty();
+    }
+
+    @Test
+    public void releaseSkipsEmittedIds() throws Exception {
+
+        sut.add("D-1");
+        sut.add("D-2");
+        sut.add("D-3");
+        assertThat(sut.emit("D-1")).isTrue();
+        assertThat(sut.emit("D-2")).isTrue();
+        sut.failed("D-2");
+
+        assertThat(sut.release()).containsOnly("D-2", "D-3");
+        assertThat(sut.size()).isEqualTo(1);
+        assertThat(sut.emit("D-3")).isFalse();
+
+        assertThat(sut.remove("D-1")).isTrue();
+        assertThat(sut.size()).isZero();
+    }
+
+    @Test
+    public void emittedStateSurvivesResize() throws Exception {
+
+        sut.add("D-emitted");
+        sut.emit("D-emitted");
+        for (int i = 0; i < 100; i++) {
+            sut.add("D-" + i);
+        }
+
+        assertThat(sut.release()).hasSize(100).doesNotContain("D-emitted");
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() throws Exception {
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(sut.add("D-" + i)).isTrue();
+        }
+
+        assertThat(sut.size()).isEqualTo(1000);
+
+        for (int i = 0; i < 1000; i += 2) {
+            assertThat(sut.remove("D-" + i)).isTrue();
+        }
+
+        assertThat(sut.drain()).hasSize(500).contains("D-1", "D-999").doesNotContain("D-0", "D-998");
+    }
+
+    @Test
+    public void reusesRemovedSlots() throws Exception {
+
+        // a steady flow of received and handled jobs must not grow the set
+        for (int i = 0; i < 10000; i++) {
+            sut.add("D-" + i);
+            sut.remove("D-" + i);
+        }
+
+        sut.add("D-last");
+        assertThat(sut.size()).isEqualTo(1);
+        assertThat(sut.drain()).containsOnly("D-last");
+    }
+}
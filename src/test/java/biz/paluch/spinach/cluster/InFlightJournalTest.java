@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Mark Paluch
+ */
+public class InFlightJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysUnreleasedJobs() throws Exception {
+
+        File file = folder.newFile();
+        InFlightJournal journal = new InFlightJournal(file, 1024);
+        journal.delivered("D-1");
+        journal.delivered("D-2");
+        journal.delivered("D-3");
+        journal.released("D-2");
+        journal.close();
+
+        assertThat(replay(file, 1024)).containsExactly("D-1", "D-3");
+        assertThat(replay(file, 1024)).isEmpty();
+    }
+
+    @Test
+    public void failedReplayKeepsJournal() throws Exception {
+
+        File file = folder.newFile();
+        InFlightJournal journal = new InFlightJournal(file, 1024);
+        journal.delivered("D-1");
+        journal.close();
+
+        journal = new InFlightJournal(file, 1024);
+        try {
+            journal.replay(ids -> {
+                throw new IllegalStateException();
+            });
+            fail("Missing IllegalStateException");
+        } catch (IllegalStateException e) {
+            journal.close();
+        }
+
+        assertThat(replay(file, 1024)).containsExactly("D-1");
+    }
+
+    @Test
+    public void compactsFullJournal() throws Exception {
+
+        File file = folder.newFile();
+        InFlightJournal journal = new InFlightJournal(file, 256);
+        journal.delivered("D-pending");
+        for (int i = 0; i < 1000; i++) {
+            journal.delivered("D-" + i);
+            journal.released("D-" + i);
+        }
+        journal.close();
+
+        assertThat(file.length()).isEqualTo(256);
+        assertThat(replay(file, 256)).containsExactly("D-pending");
+    }
+
+    @Test
+    public void growsIfInFlightJobsExceedHalfOfJournal() throws Exception {
+
+        File file = folder.newFile();
+        InFlightJournal journal = new InFlightJournal(file, 256);
+        for (int i = 0; i < 100; i++) {
+            journal.delivered("D-" + i);
+        }
+        assertThat(journal.size()).isEqualTo(100);
+        journal.close();
+
+        assertThat(file.length()).isGreaterThan(256);
+        assertThat(replay(file, 256)).hasSize(100).contains("D-0", "D-99");
+    }
+
+    @Test
+    public void inFlightJobsRecordInJournal() throws Exception {
+
+        File file = folder.newFile();
+        InFlightJournal journal = new InFlightJournal(file, 1024);
+        InFlightJobs inFlightJobs = new InFlightJobs(journal);
+        inFlightJobs.add("D-1");
+        inFlightJobs.add("D-2");
+        inFlightJobs.add("D-3");
+        inFlightJobs.remove("D-1");
+        assertThat(journal.size()).isEqualTo(2);
+
+        inFlightJobs.drain();
+        assertThat(journal.size()).isZero();
+        journal.close();
+
+        assertThat(replay(file, 1024)).isEmpty();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsForeignFile() throws Exception {
+
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a journal".getBytes());
+        }
+
+        new InFlightJournal(file, 1024);
+    }
+
+    private static List<String> replay(File file, int size) throws Exception {
+
+        List<String> ids = new ArrayList<>();
+        InFlightJournal journal = new InFlightJournal(file, size);
+        journal.replay(jobIds -> ids.addAll(Arrays.asList(jobIds)));
+        journal.close();
+        return ids;
+    }
+}
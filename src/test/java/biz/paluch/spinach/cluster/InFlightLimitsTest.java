@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class InFlightLimitsTest {
+
+    private String[] queues = { "slow", "fast" };
+    private InFlightLimits<String> sut = new InFlightLimits<String>(queues, Collections.singletonMap("slow", 2));
+
+    @Test
+    public void returnsAllQueuesBelowLimit() throws Exception {
+
+        sut.onReceived("slow");
+
+        assertThat(sut.getAvailableQueues(queues)).containsExactly("slow", "fast");
+        assertThat(sut.getRemainingCapacity(sut.getAvailableQueues(queues))).isEqualTo(1);
+    }
+
+    @Test
+    public void leavesOutQueuesAtLimit() throws Exception {
+
+        sut.onReceived("slow");
+        sut.onReceived("slow");
+        sut.onReceived("fast");
+
+        assertThat(sut.getAvailableQueues(queues)).containsExactly("fast");
+        assertThat(sut.getRemainingCapacity(sut.getAvailableQueues(queues))).isEqualTo(Long.MAX_VALUE);
+        assertThat(sut.hasCapacity(queues)).isTrue();
+        assertThat(sut.hasCapacity(new String[] { "slow" })).isFalse();
+    }
+
+    @Test
+    public void notifiesWhenQueueDropsBelowLimit() throws Exception {
+
+        AtomicInteger notifications = new AtomicInteger();
+        sut.onAvailable(notifications::incrementAndGet);
+
+        sut.onReceived("slow");
+        sut.onReceived("slow");
+        sut.onHandled("slow");
+        sut.onHandled("slow");
+
+        assertThat(notifications.get()).isEqualTo(1);
+        assertThat(sut.getInFlight("slow")).isEqualTo(0);
+    }
+
+    @Test
+    public void newInstanceHasFreshState() throws Exception {
+
+        sut.onReceived("slow");
+        sut.onReceived("slow");
+
+        InFlightLimits<String> instance = sut.newInstance();
+
+        assertThat(instance.getInFlight("slow")).isEqualTo(0);
+        assertThat(instance.getAvailableQueues(queues)).containsExactly("slow", "fast");
+    }
+
+    @Test
+    public void doesNotLimitAddedQueues() throws Exception {
+
+        sut.onReceived("slow");
+        sut.onReceived("slow");
+        sut.onReceived("added");
+
+        assertThat(sut.getAvailableQueues(new String[] { "slow", "fast", "added" })).containsExactly("fast", "added");
+        assertThat(sut.getInFlight("added")).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownQueue() throws Exception {
+        new InFlightLimits<String>(new String[] { "queue" }, Collections.singletonMap("other", 1));
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static com.google.code.tempusfugit.temporal.Timeout.timeout;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.code.tempusfugit.temporal.Condition;
+import com.google.code.tempusfugit.temporal.Duration;
+import com.google.code.tempusfugit.temporal.WaitFor;
+import com.lambdaworks.redis.codec.Utf8StringCodec;
+
+import rx.Observable;
+
+import biz.paluch.spinach.DisqueURI;
+import biz.paluch.spinach.TestSettings;
+import biz.paluch.spinach.api.AddJobArgs;
+import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.commands.AbstractCommandTest;
+
+/**
+ * @author Mark Paluch
+ */
+public class JobWorkerTest extends AbstractCommandTest {
+
+    private QueueListenerFactory<String, String> queueListenerFactory = QueueListenerFactory.create(
+            DisqueURI.create(TestSettings.host(), TestSettings.port()), new Utf8StringCodec(), queue);
+
+    @After
+    public void after() throws Exception {
+        queueListenerFactory.shutdown(0, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void acknowledgesHandledJobs() throws Exception {
+
+        addJobs(10, queue, 1, value);
+
+        final AtomicInteger handled = new AtomicInteger();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> handled.incrementAndGet())
+                .withMaxInFlight(4).withAckBatching(3, 50, TimeUnit.MILLISECONDS).start();
+
+        waitFor(handled, 10);
+        worker.shutdown(1, TimeUnit.SECONDS);
+
+        assertThat(worker.isRunning()).isFalse();
+        assertThat(worker.getInFlight()).isEqualTo(0);
+        assertThat(disque.qlen(queue)).isEqualTo(0);
+    }
+
+    @Test
+    public void stopsWhenJobSourceFails() throws Exception {
+
+        IllegalStateException failure = new IllegalStateException("source failed");
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> {
+        }).withJobs(Observable.<Job<String, String>> error(failure)).start();
+
+        try {
+            worker.getTerminated().get(5, TimeUnit.SECONDS);
+            fail("Missing ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+
+        assertThat(worker.isRunning()).isFalse();
+    }
+
+    @Test
+    public void refusesRecycledJobs() throws Exception {
+
+        String jobId = disque.addjob(queue, value, 5, TimeUnit.MINUTES);
+
+        final AtomicInteger handled = new AtomicInteger();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> handled.incrementAndGet())
+                .withJobs(queueListenerFactory.withJobRecycling().getjobs()).start();
+
+        try {
+            worker.getTerminated().get(5, TimeUnit.SECONDS);
+            fail("Missing ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+
+        // the recycled job is returned to the queue without handling it
+        assertThat(handled.get()).isEqualTo(0);
+        assertThat(disque.getjob(100, TimeUnit.MILLISECONDS, queue).getId()).isEqualTo(jobId);
+    }
+
+    @Test
+    public void returnsFailedJobsToQueue() throws Exception {
+
+        String jobId = disque.addjob(queue, value, 5, TimeUnit.MINUTES);
+
+        final Set<String> failed = ConcurrentHashMap.newKeySet();
+        final AtomicInteger handled = new AtomicInteger();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> {
+            if (failed.add(job.getId())) {
+                throw new IllegalStateException("first attempt fails");
+            }
+            handled.incrementAndGet();
+        }).start();
+
+        waitFor(handled, 1);
+        worker.shutdown(1, TimeUnit.SECONDS);
+
+        // the job is redelivered before its RETRY period only if it was returned using NACK
+        assertThat(failed).containsOnly(jobId);
+        assertThat(handled.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void extendsLeaseOfLongRunningJobs() throws Exception {
+
+        disque.addjob(queue, value, 5, TimeUnit.MINUTES, AddJobArgs.builder().retry(1, TimeUnit.SECONDS).build());
+
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger handled = new AtomicInteger();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> {
+            received.incrementAndGet();
+            TimeUnit.SECONDS.sleep(3);
+            handled.incrementAndGet();
+        }).withLeaseExtension(200, TimeUnit.MILLISECONDS).start();
+
+        waitFor(handled, 1);
+        worker.shutdown(1, TimeUnit.SECONDS);
+
+        // without WORKING, the job would be redelivered after its RETRY of one second
+        assertThat(received.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void retriesFailedJobsWithDelay() throws Exception {
+
+        String jobId = disque.addjob(queue, value, 5, TimeUnit.MINUTES);
+
+        final Set<String> failed = ConcurrentHashMap.newKeySet();
+        final AtomicInteger handled = new AtomicInteger();
+        final long started = System.nanoTime();
+        final AtomicLong retried = new AtomicLong();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> {
+            if (failed.isEmpty()) {
+                failed.add(job.getId());
+                throw new IllegalStateException("first attempt fails");
+            }
+            retried.set(System.nanoTime() - started);
+            handled.incrementAndGet();
+        }).withRetryBackoff(1, 10, TimeUnit.SECONDS).start();
+
+        waitFor(handled, 1);
+        worker.shutdown(1, TimeUnit.SECONDS);
+
+        // the job was added again with a new id and the failed job was acknowledged
+        assertThat(failed).containsOnly(jobId);
+        assertThat(retried.get()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(disque.show(jobId)).isNullOrEmpty();
+    }
+
+    @Test
+    public void retriesFailedJobsWithRetryArgs() throws Exception {
+
+        disque.addjob(queue, value, 5, TimeUnit.MINUTES);
+
+        final Set<String> failed = ConcurrentHashMap.newKeySet();
+        final Set<String> retried = ConcurrentHashMap.newKeySet();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> {
+            if (failed.isEmpty()) {
+                failed.add(job.getId());
+                throw new IllegalStateException("first attempt fails");
+            }
+            retried.add(job.getId());
+        }).withRetryBackoff(1, 10, TimeUnit.SECONDS, AddJobArgs.builder().retry(2, TimeUnit.MINUTES).build())
+                .withAckBatching(100, 1, TimeUnit.HOURS).start();
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return !retried.isEmpty();
+            }
+        }, timeout(Duration.seconds(5)));
+
+        // the retried job is not acknowledged before shutdown, so its arguments are visible with SHOW
+        List<Object> show = disque.show(retried.iterator().next());
+        assertThat(String.valueOf(show.get(show.indexOf("retry") + 1))).isEqualTo("120");
+        worker.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void movesPoisonJobsToDeadLetterQueue() throws Exception {
+
+        String poisonId = disque.addjob(queue, "poison", 5, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+            disque.getjob(queue);
+            disque.nack(poisonId);
+        }
+        disque.addjob(queue, value, 5, TimeUnit.MINUTES);
+
+        final Set<String> handled = ConcurrentHashMap.newKeySet();
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> handled.add(job.getBody()))
+                .withDeadLetterQueue("dead-letter", 3).start();
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return disque.qlen("dead-letter") == 1 && !handled.isEmpty();
+            }
+        }, timeout(Duration.seconds(5)));
+        worker.shutdown(1, TimeUnit.SECONDS);
+
+        assertThat(handled).containsOnly(value);
+        assertThat(disque.getjob("dead-letter").getBody()).isEqualTo("poison");
+        assertThat(disque.show(poisonId)).isNullOrEmpty();
+    }
+
+    @Test
+    public void movesPoisonJobsToDeadLetterQueueWithArgs() throws Exception {
+
+        String poisonId = disque.addjob(queue, "poison", 5, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+            disque.getjob(queue);
+            disque.nack(poisonId);
+        }
+
+        JobWorker<String, String> worker = queueListenerFactory.newWorker(job -> {
+        }).withDeadLetterQueue("dead-letter", 3, AddJobArgs.builder().retry(2, TimeUnit.MINUTES).build()).start();
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return disque.qlen("dead-letter") == 1;
+            }
+        }, timeout(Duration.seconds(5)));
+        worker.shutdown(1, TimeUnit.SECONDS);
+
+        List<Object> show = disque.show(disque.qpeek("dead-letter", 1).get(0).getId());
+        assertThat(String.valueOf(show.get(show.indexOf("retry") + 1))).isEqualTo("120");
+    }
+
+    private void waitFor(final AtomicInteger counter, final int expected) throws Exception {
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return counter.get() >= expected;
+            }
+        }, timeout(Duration.seconds(5)));
+    }
+}
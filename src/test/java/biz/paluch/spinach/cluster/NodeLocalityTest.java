@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class NodeLocalityTest {
+
+    private static final String NODE_A = "dcb833cf9e8bf6f5ca9a1e9eb4b2a0e4ab2b64b8";
+    private static final String NODE_B = "ff010e8a3b1c7a6a0e5a4d4f2fb1e8f3c0a1b2c3";
+    private static final String JOB_A = "D-dcb833cf-8YL1NT17e9+wsA/09NqxscQI-05a1";
+    private static final String JOB_B = "D-ff010e8a-6FH7ewVysl5mZmXbW0/GRqvG-05a1";
+
+    @Test
+    public void prefersNodeWithMostJobs() throws Exception {
+
+        NodeLocality sut = new NodeLocality(0);
+        receive(sut, JOB_A, 2);
+        receive(sut, JOB_B, 5);
+        receive(sut, "foo", 10);
+        sut.update();
+
+        assertThat(sut.getBestNodeIdPrefix()).isEqualTo("ff010e8a");
+        assertThat(sut.getScore(NODE_B)).isEqualTo(5);
+        assertThat(sut.getScore(NODE_A)).isEqualTo(2);
+    }
+
+    @Test
+    public void decaysScores() throws Exception {
+
+        NodeLocality sut = new NodeLocality(0);
+        receive(sut, JOB_A, 8);
+        sut.update();
+        sut.update();
+        receive(sut, JOB_B, 3);
+        sut.update();
+
+        // A: 8 -> 4 -> 2, B: 3
+        assertThat(sut.getScore(NODE_A)).isEqualTo(2);
+        assertThat(sut.getBestNodeIdPrefix()).isEqualTo("ff010e8a");
+    }
+
+    @Test
+    public void switchesOnlyBeyondMargin() throws Exception {
+
+        NodeLocality sut = new NodeLocality(0.25);
+        receive(sut, JOB_A, 10);
+        receive(sut, JOB_B, 12);
+        sut.update();
+
+        assertThat(sut.isSwitchBeneficial("ff010e8a", NODE_A)).isFalse();
+        assertThat(sut.isSwitchBeneficial("ff010e8a", null)).isTrue();
+
+        receive(sut, JOB_A, 10);
+        receive(sut, JOB_B, 20);
+        sut.update();
+
+        // A: 5 + 10, B: 6 + 20
+        assertThat(sut.isSwitchBeneficial("ff010e8a", NODE_A)).isTrue();
+        assertThat(sut.isSwitchBeneficial("dcb833cf", NODE_B)).isFalse();
+    }
+
+    @Test
+    public void removesNode() throws Exception {
+
+        NodeLocality sut = new NodeLocality(0);
+        receive(sut, JOB_A, 2);
+        receive(sut, JOB_B, 1);
+        sut.update();
+        sut.remove("dcb833cf");
+
+        assertThat(sut.getScore(NODE_A)).isZero();
+        assertThat(sut.getBestNodeIdPrefix()).isEqualTo("ff010e8a");
+    }
+
+    @Test
+    public void replacesLowestNodeWhenFull() throws Exception {
+
+        NodeLocality sut = new NodeLocality(0);
+        for (int i = 0; i < NodeLocality.MAX_NODES; i++) {
+            receive(sut, String.format("D-%08x-8YL1NT17e9+wsA/09NqxscQI-05a1", i), i + 2);
+        }
+        receive(sut, JOB_A, 1);
+        sut.update();
+
+        assertThat(sut.getScore(String.format("%08x", 0))).isZero();
+        assertThat(sut.getScore(NODE_A)).isEqualTo(1);
+    }
+
+    @Test
+    public void recordsJobsWithoutAllocation() throws Exception {
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        NodeLocality sut = new NodeLocality(0);
+
+        // warm up
+        receive(sut, JOB_A, 100000);
+        receive(sut, JOB_B, 100000);
+
+        long start = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        receive(sut, JOB_A, 100000);
+        receive(sut, JOB_B, 100000);
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+
+        assertThat(allocated).isLessThan(1024);
+    }
+
+    private static void receive(NodeLocality sut, String jobId, int count) {
+        for (int i = 0; i < count; i++) {
+            sut.onReceived(jobId);
+        }
+    }
+}
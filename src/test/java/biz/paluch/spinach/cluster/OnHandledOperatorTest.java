@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+/**
+ * @author Mark Paluch
+ */
+public class OnHandledOperatorTest {
+
+    private final List<String> events = new ArrayList<>();
+    private final OnHandledOperator<Integer> sut = new OnHandledOperator<Integer>(null, i -> events.add("handled " + i),
+            i -> events.add("failed " + i));
+
+    @Test
+    public void handledAfterOnNext() throws Exception {
+
+        Observable.just(1, 2).lift(sut).subscribe(i -> events.add("onNext " + i));
+
+        assertThat(events).containsExactly("onNext 1", "handled 1", "onNext 2", "handled 2");
+    }
+
+    @Test
+    public void unsubscribeWithinOnNextIsHandled() throws Exception {
+
+        TestSubscriber<Integer> subscriber = new TestSubscriber<Integer>();
+        Observable.range(1, 5).lift(sut).take(2).subscribe(subscriber);
+
+        subscriber.assertValues(1, 2);
+        assertThat(events).containsExactly("handled 1", "handled 2");
+    }
+
+    @Test
+    public void throwingHandlerFailsBeforeUnsubscribe() throws Exception {
+
+        TestSubscriber<Integer> subscriber = new TestSubscriber<Integer>();
+        Observable.range(1, 3).doOnUnsubscribe(() -> events.add("unsubscribed")).lift(sut).subscribe(i -> {
+            if (i == 2) {
+                throw new IllegalStateException("failed");
+            }
+        }, subscriber::onError);
+
+        subscriber.assertError(IllegalStateException.class);
+        assertThat(events).containsExactly("handled 1", "failed 2", "unsubscribed");
+    }
+
+    @Test
+    public void gateDropsElement() throws Exception {
+
+        TestSubscriber<Integer> subscriber = new TestSubscriber<Integer>();
+        Observable.just(1, 2).lift(new OnHandledOperator<Integer>(i -> i != 1, i -> events.add("handled " + i), null))
+                .subscribe(subscriber);
+
+        subscriber.assertValues(2);
+        assertThat(events).containsExactly("handled 2");
+    }
+}
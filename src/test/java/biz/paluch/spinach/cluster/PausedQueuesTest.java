@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import rx.schedulers.Schedulers;
+
+/**
+ * @author Mark Paluch
+ */
+public class PausedQueuesTest {
+
+    private final String[] queues = { "q1", "q2", "q3" };
+    private final PausedQueues<String, String> pausedQueues = new PausedQueues<String, String>(Schedulers.immediate(), null,
+            () -> queues, () -> {
+            }, 1, TimeUnit.SECONDS);
+
+    @After
+    public void after() throws Exception {
+        pausedQueues.close();
+    }
+
+    @Test
+    public void isPaused() throws Exception {
+
+        assertThat(PausedQueues.isPaused(Collections.<String, Object> singletonMap("pause", "out"))).isTrue();
+        assertThat(PausedQueues.isPaused(Collections.<String, Object> singletonMap("pause", "all"))).isTrue();
+        assertThat(PausedQueues.isPaused(Collections.<String, Object> singletonMap("pause", "in"))).isFalse();
+        assertThat(PausedQueues.isPaused(Collections.<String, Object> singletonMap("pause", "none"))).isFalse();
+        assertThat(PausedQueues.isPaused(Collections.<String, Object> emptyMap())).isFalse();
+    }
+
+    @Test
+    public void activeQueuesWithoutPause() throws Exception {
+        assertThat(pausedQueues.getActiveQueues(queues)).isSameAs(queues);
+    }
+
+    @Test
+    public void leavesOutPausedQueues() throws Exception {
+
+        assertThat(pausedQueues.update("q2", true)).isFalse();
+
+        assertThat(pausedQueues.getActiveQueues(queues)).containsExactly("q1", "q3");
+    }
+
+    @Test
+    public void resumesQueue() throws Exception {
+
+        pausedQueues.update("q2", true);
+
+        assertThat(pausedQueues.update("q2", false)).isTrue();
+        assertThat(pausedQueues.update("q2", false)).isFalse();
+        assertThat(pausedQueues.getActiveQueues(queues)).containsExactly("q1", "q2", "q3");
+    }
+}
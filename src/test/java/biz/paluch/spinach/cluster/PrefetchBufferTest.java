@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * @author Mark Paluch
+ */
+public class PrefetchBufferTest {
+
+    private PrefetchBuffer<String, String> sut = new PrefetchBuffer<String, String>(1, 3, 5, 10,
+            PrefetchBuffer::estimateBodySize);
+
+    @Test
+    public void offerAndPollInOrder() throws Exception {
+
+        assertThat(sut.offer(job("1", "a"))).isTrue();
+        assertThat(sut.offer(job("2", "b"))).isTrue();
+
+        assertThat(sut.size()).isEqualTo(2);
+        assertThat(sut.poll().getId()).isEqualTo("1");
+        assertThat(sut.poll().getId()).isEqualTo("2");
+        assertThat(sut.poll()).isNull();
+    }
+
+    @Test
+    public void rejectsOfferAboveHighWatermark() throws Exception {
+
+        sut.offer(job("1", "a"));
+        sut.offer(job("2", "b"));
+        sut.offer(job("3", "c"));
+
+        assertThat(sut.remainingCapacity()).isEqualTo(0);
+        assertThat(sut.isAboveHighWatermark()).isTrue();
+        assertThat(sut.offer(job("4", "d"))).isFalse();
+    }
+
+    @Test
+    public void wrapsAround() throws Exception {
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(sut.offer(job("" + i, "a"))).isTrue();
+            assertThat(sut.poll().getId()).isEqualTo("" + i);
+        }
+
+        assertThat(sut.size()).isEqualTo(0);
+        assertThat(sut.bytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void byteWatermarks() throws Exception {
+
+        sut.offer(job("1", "0123456789"));
+
+        assertThat(sut.bytes()).isEqualTo(10);
+        assertThat(sut.isAboveHighWatermark()).isTrue();
+        assertThat(sut.isBelowLowWatermark()).isFalse();
+
+        sut.poll();
+        sut.offer(job("2", "0123"));
+
+        assertThat(sut.isAboveHighWatermark()).isFalse();
+        assertThat(sut.isBelowLowWatermark()).isTrue();
+    }
+
+    @Test
+    public void jobWatermarks() throws Exception {
+
+        sut.offer(job("1", "a"));
+        assertThat(sut.isBelowLowWatermark()).isTrue();
+
+        sut.offer(job("2", "a"));
+        assertThat(sut.isBelowLowWatermark()).isFalse();
+        assertThat(sut.isAboveHighWatermark()).isFalse();
+    }
+
+    @Test
+    public void estimateBodySize() throws Exception {
+
+        assertThat(PrefetchBuffer.estimateBodySize(new byte[3])).isEqualTo(3);
+        assertThat(PrefetchBuffer.estimateBodySize(ByteBuffer.allocate(4))).isEqualTo(4);
+        assertThat(PrefetchBuffer.estimateBodySize("abcde")).isEqualTo(5);
+        assertThat(PrefetchBuffer.estimateBodySize(new Object())).isEqualTo(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLowWatermarkAboveHighWatermark() throws Exception {
+        PrefetchBuffer.validate(3, 3, 5, 10);
+    }
+
+    private Job<String, String> job(String id, String body) {
+        return new Job<String, String>("queue", id, body, null);
+    }
+}
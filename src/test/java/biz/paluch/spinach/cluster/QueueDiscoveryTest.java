@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class QueueDiscoveryTest {
+
+    @Test
+    public void globMatchesLiterally() throws Exception {
+
+        Predicate<Object> filter = QueueDiscovery.glob("tenant.jobs");
+
+        assertThat(filter.test("tenant.jobs")).isTrue();
+        assertThat(filter.test("tenantxjobs")).isFalse();
+        assertThat(filter.test("tenant.jobs2")).isFalse();
+    }
+
+    @Test
+    public void globWildcard() throws Exception {
+
+        Predicate<Object> filter = QueueDiscovery.glob("tenant-*-jobs");
+
+        assertThat(filter.test("tenant-1-jobs")).isTrue();
+        assertThat(filter.test("tenant--jobs")).isTrue();
+        assertThat(filter.test("tenant-1-jobs-dlq")).isFalse();
+        assertThat(filter.test("other-1-jobs")).isFalse();
+    }
+
+    @Test
+    public void globSingleCharacter() throws Exception {
+
+        Predicate<Object> filter = QueueDiscovery.glob("queue-?");
+
+        assertThat(filter.test("queue-1")).isTrue();
+        assertThat(filter.test("queue-")).isFalse();
+        assertThat(filter.test("queue-12")).isFalse();
+    }
+
+    @Test
+    public void globQuotesRegexCharacters() throws Exception {
+
+        Predicate<Object> filter = QueueDiscovery.glob("[a]+*");
+
+        assertThat(filter.test("[a]+queue")).isTrue();
+        assertThat(filter.test("aqueue")).isFalse();
+    }
+}
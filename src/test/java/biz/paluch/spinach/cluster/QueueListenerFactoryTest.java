@@ -18,6 +18,12 @@ package biz.paluch.spinach.cluster;
 import static com.google.code.tempusfugit.temporal.Timeout.timeout;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -32,8 +38,10 @@ import rx.observers.TestSubscriber;
 import rx.schedulers.Schedulers;
 import biz.paluch.spinach.DisqueURI;
 import biz.paluch.spinach.TestSettings;
+import biz.paluch.spinach.api.AddJobArgs;
 import biz.paluch.spinach.api.DisqueConnection;
 import biz.paluch.spinach.api.Job;
+import biz.paluch.spinach.api.PauseArgs;
 import biz.paluch.spinach.commands.AbstractCommandTest;
 
 import com.google.code.tempusfugit.temporal.Condition;
@@ -41,6 +49,8 @@ import com.google.code.tempusfugit.temporal.Duration;
 import com.google.code.tempusfugit.temporal.WaitFor;
 import com.lambdaworks.redis.codec.Utf8StringCodec;
 
+import io.netty.util.internal.ConcurrentSet;
+
 /**
  * @author Mark Paluch
  */
@@ -87,6 +97,89 @@ public class QueueListenerFactoryTest extends AbstractCommandTest {
         waitForSomeReceivedJobs();
     }
 
+    @Test
+    public void adaptivePolling() throws Exception {
+        queueListenerFactory.withAdaptivePolling(1, TimeUnit.SECONDS).getjobs().subscribe(subscriber);
+
+        createJobs(connection0);
+        waitForReceivedJobs(subscriber, 10);
+
+        createJobs(connection0);
+        waitForReceivedJobs(subscriber, 20);
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void adaptiveCount() throws Exception {
+        queueListenerFactory.withAdaptiveCount(1, 5, 1, TimeUnit.MINUTES).getjobs().subscribe(subscriber);
+
+        createJobs(connection0);
+        waitForReceivedJobs(subscriber, 10);
+
+        assertThat(queueListenerFactory.getCounts()).hasSize(1);
+        assertThat(queueListenerFactory.getCounts().values().iterator().next()).isGreaterThan(1);
+    }
+
+    @Test
+    public void prefetchReleasesBufferedJobsOnShutdown() throws Exception {
+
+        TestSubscriber<Job<String, String>> subscriber = new TestSubscriber<Job<String, String>>(0);
+        queueListenerFactory.withPrefetch(2, 5, 1024, 4096).getjobs(10, TimeUnit.MILLISECONDS, 5).subscribe(subscriber);
+
+        createJobs(connection0);
+        subscriber.requestMore(2);
+        waitForReceivedJobs(subscriber, 2);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertThat(disque.qlen(queue)).isEqualTo(5);
+
+        queueListenerFactory.shutdown(0, 200, TimeUnit.MILLISECONDS);
+
+        assertThat(subscriber.getOnNextEvents()).hasSize(2);
+        assertThat(disque.qlen(queue)).isEqualTo(8);
+    }
+
+    @Test
+    public void controlChannelReleasesBufferedJobsDuringLongPoll() throws Exception {
+
+        TestSubscriber<Job<String, String>> subscriber = new TestSubscriber<Job<String, String>>(0);
+        queueListenerFactory.withPrefetch(4, 8, 1024, 4096).withControlChannel().getjobs(5, TimeUnit.SECONDS, 5)
+                .subscribe(subscriber);
+
+        for (int i = 0; i < 3; i++) {
+            connection0.sync().addjob(queue, "job-" + i, 1, TimeUnit.MINUTES);
+        }
+        subscriber.requestMore(1);
+        waitForReceivedJobs(subscriber, 1);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // the buffer is below its low watermark, so a long poll is outstanding
+        assertThat(disque.qlen(queue)).isEqualTo(0);
+
+        queueListenerFactory.shutdown(0, 500, TimeUnit.MILLISECONDS);
+
+        assertThat(subscriber.getOnNextEvents()).hasSize(1);
+        assertThat(disque.qlen(queue)).isEqualTo(2);
+    }
+
+    @Test
+    public void queueListenerHonorsBackpressure() throws Exception {
+
+        TestSubscriber<Job<String, String>> subscriber = new TestSubscriber<Job<String, String>>(0);
+        queueListenerFactory.getjobs(10, TimeUnit.MILLISECONDS, 5).subscribe(subscriber);
+
+        createJobs(connection0);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertThat(subscriber.getOnNextEvents()).isEmpty();
+
+        subscriber.requestMore(3);
+        waitForReceivedJobs(subscriber, 3);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertThat(subscriber.getOnNextEvents()).hasSize(3);
+        subscriber.assertNoErrors();
+    }
+
     @Test
     public void queueListenerOnSameNode() throws Exception {
         queueListenerFactory.withLocalityTracking().getjobs().subscribe(subscriber);
@@ -98,6 +191,20 @@ public class QueueListenerFactoryTest extends AbstractCommandTest {
         assertThat(connection1.sync().clientList()).doesNotContain("QueueListener-");
     }
 
+    @Test
+    public void localityTrackingBuilderIsGetJobsBuilder() throws Exception {
+
+        QueueListenerFactory<String, String>.GetJobsBuilder builder = queueListenerFactory.withLocalityTracking()
+                .withNodeSwitching(50, TimeUnit.MILLISECONDS).withCounters();
+        builder.getjobs().subscribe(subscriber);
+
+        createJobs(connection0);
+        waitForSomeReceivedJobs();
+
+        assertThat(subscriber.getOnNextEvents().get(0).getCounters()).containsKey("nacks");
+        subscriber.assertNoErrors();
+    }
+
     @Test
     public void queueListenerOnDifferentNode() throws Exception {
         queueListenerFactory.withLocalityTracking().getjobs().subscribe(subscriber);
@@ -256,6 +363,358 @@ public class QueueListenerFactoryTest extends AbstractCommandTest {
         connection0.sync().clusterLeaving(false);
     }
 
+    @Test
+    public void addQueuesToRunningListener() throws Exception {
+
+        queueListenerFactory.getjobs().subscribe(subscriber);
+        queueListenerFactory.addQueues(Collections.singletonList("added-queue"));
+
+        connection0.sync().addjob("added-queue", "value", 2, TimeUnit.SECONDS);
+        waitForReceivedJobs(subscriber, 1);
+
+        assertThat(subscriber.getOnNextEvents().get(0).getQueue()).isEqualTo("added-queue");
+
+        queueListenerFactory.removeQueues(Collections.singletonList("added-queue"));
+        assertThat(queueListenerFactory.getQueues()).containsExactly(queue);
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void queueDiscovery() throws Exception {
+
+        connection0.sync().addjob("discovered-queue", "value", 2, TimeUnit.SECONDS);
+        connection0.sync().addjob("other-queue", "value", 2, TimeUnit.SECONDS);
+
+        queueListenerFactory.withQueueDiscovery("discovered-*", 100, TimeUnit.MILLISECONDS).getjobs().subscribe(subscriber);
+        waitForReceivedJobs(subscriber, 1);
+
+        assertThat(subscriber.getOnNextEvents().get(0).getQueue()).isEqualTo("discovered-queue");
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void resumesPausedQueue() throws Exception {
+
+        connection0.sync().pause(queue, PauseArgs.builder().out().build());
+        try {
+            connection0.sync().addjob(queue, "value", 2, TimeUnit.SECONDS);
+
+            queueListenerFactory.withPauseDetection(100, TimeUnit.MILLISECONDS).getjobs().subscribe(subscriber);
+            Thread.sleep(300);
+            assertThat(subscriber.getOnNextEvents()).isEmpty();
+        } finally {
+            connection0.sync().pause(queue, PauseArgs.builder().none().build());
+        }
+
+        waitForReceivedJobs(subscriber, 1);
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void autoScaling() throws Exception {
+
+        QueueListenerFactory<String, String> scalingFactory = QueueListenerFactory.create(client, Schedulers.io(), disqueURI0,
+                new Utf8StringCodec(), queue);
+        final TestSubscriber<SubscriptionScalingEvent> events = new TestSubscriber<SubscriptionScalingEvent>();
+        client.getResources().eventBus().get().ofType(SubscriptionScalingEvent.class).subscribe(events);
+
+        try {
+            // more jobs than the subscriptions buffer
+            for (int i = 0; i < 400; i++) {
+                connection0.sync().addjob(queue, "value", 5, TimeUnit.SECONDS);
+            }
+
+            TestSubscriber<Job<String, String>> slowSubscriber = new TestSubscriber<Job<String, String>>(0);
+            scalingFactory.withAutoScaling(1, 2, 10, 1, 50, TimeUnit.MILLISECONDS).getjobs().subscribe(slowSubscriber);
+
+            WaitFor.waitOrTimeout(new Condition() {
+                @Override
+                public boolean isSatisfied() {
+                    return !events.getOnNextEvents().isEmpty();
+                }
+            }, timeout(Duration.seconds(5)));
+
+            SubscriptionScalingEvent event = events.getOnNextEvents().get(0);
+            assertThat(event.getPreviousSubscriptions()).isEqualTo(1);
+            assertThat(event.getSubscriptions()).isEqualTo(2);
+        } finally {
+            events.unsubscribe();
+            scalingFactory.shutdown(0, 200, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void resubscribeAfterQueueChange() throws Exception {
+
+        Observable<Job<String, String>> observable = queueListenerFactory.getjobs();
+        Subscription subscription = observable.subscribe(subscriber);
+        subscription.unsubscribe();
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return queueListenerFactory.getCounts().isEmpty();
+            }
+        }, timeout(Duration.seconds(5)));
+
+        queueListenerFactory.addQueues(Collections.singletonList("added-queue"));
+
+        TestSubscriber<Job<String, String>> resubscribed = new TestSubscriber<Job<String, String>>();
+        observable.subscribe(resubscribed);
+
+        connection0.sync().addjob("added-queue", "value", 2, TimeUnit.SECONDS);
+        waitForReceivedJobs(resubscribed, 1);
+
+        assertThat(resubscribed.getOnNextEvents().get(0).getQueue()).isEqualTo("added-queue");
+    }
+
+    @Test
+    public void shutdownAsync() throws Exception {
+
+        queueListenerFactory.getjobs().subscribe(subscriber);
+        queueListenerFactory.getjobs().subscribe(new TestSubscriber<Job<String, String>>());
+
+        queueListenerFactory.shutdownAsync(0, 1, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+
+        assertThat(queueListenerFactory.getCounts()).isEmpty();
+    }
+
+    @Test
+    public void jobRecyclingEmitsJobsWithCounters() throws Exception {
+
+        final Set<String> bodies = new ConcurrentSet<String>();
+        queueListenerFactory.withJobRecycling().withCounters().getjobs().doOnNext(job -> {
+            if (job.getCounters().containsKey("nacks")) {
+                bodies.add(job.getBody());
+            }
+        }).subscribe(subscriber);
+
+        createJobs(connection0);
+        waitForReceivedJobs(subscriber, 10);
+
+        assertThat(bodies).hasSize(10);
+
+        // handled jobs are released to the pool
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return subscriber.getOnNextEvents().get(9).getId() == null;
+            }
+        }, timeout(Duration.seconds(5)));
+    }
+
+    @Test
+    public void inFlightTrackingReleasesJobOfFailingSubscriber() throws Exception {
+
+        String jobId = connection0.sync().addjob(queue, "value", 2, TimeUnit.SECONDS,
+                AddJobArgs.builder().retry(1, TimeUnit.HOURS).build());
+
+        final TestSubscriber<Job<String, String>> failing = new TestSubscriber<Job<String, String>>() {
+            @Override
+            public void onNext(Job<String, String> job) {
+                throw new IllegalStateException("Handler failure");
+            }
+        };
+        queueListenerFactory.withInFlightTracking().getjobs().subscribe(failing);
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return !failing.getOnErrorEvents().isEmpty();
+            }
+        }, timeout(Duration.seconds(5)));
+
+        // the job is re-queued right away instead of after the retry time
+        queueListenerFactory.getjobs().subscribe(subscriber);
+        waitForReceivedJobs(subscriber, 1);
+
+        assertThat(subscriber.getOnNextEvents().get(0).getId()).isEqualTo(jobId);
+    }
+
+    @Test
+    public void inFlightTrackingLeavesHandledJobToHandlerOnShutdown() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            connection0.sync().addjob(queue, "value", 2, TimeUnit.SECONDS, AddJobArgs.builder().retry(1, TimeUnit.HOURS).build());
+        }
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final TestSubscriber<Job<String, String>> blocking = new TestSubscriber<Job<String, String>>() {
+            @Override
+            public void onNext(Job<String, String> job) {
+                super.onNext(job);
+                entered.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        queueListenerFactory.withInFlightTracking().getjobs(100, TimeUnit.MILLISECONDS, 3).subscribe(blocking);
+
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        queueListenerFactory.shutdownAsync(0, 1, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        blocked.countDown();
+
+        // the buffered jobs are released and not handled anymore, the handled job stays with its handler
+        List<Job<String, String>> released = connection0.sync().getjobs(100, TimeUnit.MILLISECONDS, 10, queue);
+        Thread.sleep(200);
+
+        assertThat(blocking.getOnNextEvents()).hasSize(1);
+        assertThat(released).hasSize(2);
+        assertThat(released).extracting("id").doesNotContain(blocking.getOnNextEvents().get(0).getId());
+    }
+
+    @Test
+    public void inFlightJournalReleasesJobsOfCrashedConsumer() throws Exception {
+
+        connection0.sync().addjob(queue, "value", 2, TimeUnit.SECONDS, AddJobArgs.builder().retry(1, TimeUnit.HOURS).build());
+        Job<String, String> job = connection0.sync().getjob(queue);
+
+        // a consumer that received the job and died
+        File file = File.createTempFile("spinach", ".journal");
+        file.deleteOnExit();
+        InFlightJournal journal = new InFlightJournal(file, InFlightJournal.DEFAULT_SIZE);
+        journal.delivered(job.getId());
+        journal.close();
+
+        queueListenerFactory.withInFlightJournal(file).getjobs().subscribe(subscriber);
+        waitForReceivedJobs(subscriber, 1);
+
+        assertThat(subscriber.getOnNextEvents().get(0).getId()).isEqualTo(job.getId());
+    }
+
+    @Test
+    public void batches() throws Exception {
+
+        createJobs(connection0);
+
+        final TestSubscriber<List<Job<String, String>>> batchSubscriber = new TestSubscriber<List<Job<String, String>>>();
+        queueListenerFactory.getjobBatches(10, TimeUnit.MILLISECONDS, 5).subscribe(batchSubscriber);
+
+        WaitFor.waitOrTimeout(new Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return batchSubscriber.getOnNextEvents().size() >= 2;
+            }
+        }, timeout(Duration.seconds(5)));
+
+        List<Job<String, String>> batch = batchSubscriber.getOnNextEvents().get(0);
+        assertThat(batch).hasSize(5);
+        assertThat(JobBatches.fastack(connection0, batch).get()).isEqualTo(5);
+        batchSubscriber.assertNoErrors();
+    }
+
+    @Test
+    public void clusterWideConsumption() throws Exception {
+
+        queueListenerFactory.withClusterWideConsumption().getjobs().subscribe(subscriber);
+
+        createJobs(connection0);
+        createJobs(connection1);
+        waitForReceivedJobs(subscriber, 20);
+
+        Set<String> nodeIdPrefixes = new HashSet<String>();
+        for (Job<String, String> job : subscriber.getOnNextEvents()) {
+            nodeIdPrefixes.add(GetJobsAction.getNodeIdPrefix(job.getId()));
+        }
+
+        assertThat(nodeIdPrefixes).hasSize(2);
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void clusterWideConsumptionEmitsJobsThatOutliveHandling() throws Exception {
+
+        // jobs are buffered per node before they are emitted, so they are not recycled
+        queueListenerFactory.withClusterWideConsumption().withCounters().getjobs().subscribe(subscriber);
+
+        createJobs(connection0);
+        createJobs(connection1);
+        waitForReceivedJobs(subscriber, 20);
+        Thread.sleep(100);
+
+        for (Job<String, String> job : subscriber.getOnNextEvents()) {
+            assertThat(job.getId()).isNotNull();
+            assertThat(job.getBody()).isNotNull();
+            assertThat(job.getCounters()).containsKey("nacks");
+        }
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void clusterWideConsumptionReleasesBufferedJobsOnShutdown() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            connection0.sync().addjob(queue, "value", 2, TimeUnit.SECONDS, AddJobArgs.builder().retry(1, TimeUnit.HOURS).build());
+        }
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final TestSubscriber<Job<String, String>> blocking = new TestSubscriber<Job<String, String>>() {
+            @Override
+            public void onNext(Job<String, String> job) {
+                super.onNext(job);
+                entered.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        queueListenerFactory.withClusterWideConsumption().getjobs(100, TimeUnit.MILLISECONDS, 3).subscribe(blocking);
+
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(200);
+        queueListenerFactory.shutdownAsync(0, 1, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        blocked.countDown();
+
+        // the jobs buffered for the node are released
+        List<Job<String, String>> released = connection0.sync().getjobs(100, TimeUnit.MILLISECONDS, 10, queue);
+
+        assertThat(blocking.getOnNextEvents()).hasSize(1);
+        assertThat(released).hasSize(2);
+    }
+
+    @Test
+    public void multiplexedSubscriptions() throws Exception {
+
+        TestSubscriber<Job<String, String>> other = new TestSubscriber<Job<String, String>>();
+
+        queueListenerFactory.withMultiplexing().getjobs().subscribe(subscriber);
+        queueListenerFactory.withMultiplexing().getjobs(Collections.singletonList("other-queue")).subscribe(other);
+
+        createJobs(connection0);
+        connection0.sync().addjob("other-queue", "value", 2, TimeUnit.SECONDS);
+
+        waitForReceivedJobs(subscriber, 10);
+        waitForReceivedJobs(other, 1);
+
+        assertThat(other.getOnNextEvents().get(0).getQueue()).isEqualTo("other-queue");
+        subscriber.assertNoErrors();
+        other.assertNoErrors();
+        other.unsubscribe();
+    }
+
+    @Test
+    public void multiplexedSubscriptionsRouteAgainstOwnDemand() throws Exception {
+
+        TestSubscriber<Job<String, String>> slow = new TestSubscriber<Job<String, String>>(1);
+
+        queueListenerFactory.withMultiplexing(1, 10, TimeUnit.MILLISECONDS).getjobs().subscribe(slow);
+        queueListenerFactory.withMultiplexing(1, 10, TimeUnit.MILLISECONDS).getjobs().subscribe(subscriber);
+
+        createJobs(connection0);
+        waitForReceivedJobs(subscriber, 9);
+
+        assertThat(slow.getOnNextEvents()).hasSize(1);
+        subscriber.assertNoErrors();
+        slow.unsubscribe();
+    }
+
     @Test
     public void sharedRedisClient() throws Exception {
 
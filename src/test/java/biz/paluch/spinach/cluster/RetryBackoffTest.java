@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * @author Mark Paluch
+ */
+public class RetryBackoffTest {
+
+    private final RetryBackoff sut = new RetryBackoff(2, 60, TimeUnit.SECONDS);
+
+    @Test
+    public void exponentialDelay() throws Exception {
+
+        assertThat(sut.getDelay(1, 1)).isEqualTo(2);
+        assertThat(sut.getDelay(2, 1)).isEqualTo(4);
+        assertThat(sut.getDelay(3, 1)).isEqualTo(8);
+        assertThat(sut.getDelay(6, 1)).isEqualTo(60);
+        assertThat(sut.getDelay(1000, 1)).isEqualTo(60);
+    }
+
+    @Test
+    public void jitterRandomizesHalfOfTheDelay() throws Exception {
+
+        assertThat(sut.getDelay(3, 0)).isEqualTo(4);
+        assertThat(sut.getDelay(3, 0.5)).isEqualTo(6);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(sut.getDelay(3)).isBetween(4L, 8L);
+        }
+    }
+
+    @Test
+    public void delayIsAtLeastOneSecond() throws Exception {
+        assertThat(new RetryBackoff(10, 100, TimeUnit.MILLISECONDS).getDelay(1, 0)).isEqualTo(1);
+    }
+
+    @Test
+    public void attemptFromCounters() throws Exception {
+
+        Map<String, Long> counters = new HashMap<>();
+        counters.put("nacks", 2L);
+        counters.put("additional-deliveries", 1L);
+
+        assertThat(sut.getAttempt(new Job<String, String>("queue", "D-1", "body", counters))).isEqualTo(4);
+        assertThat(sut.getAttempt(new Job<String, String>("queue", "D-2", "body", null))).isEqualTo(1);
+    }
+
+    @Test
+    public void remembersAttemptsOfAddedJobs() throws Exception {
+
+        sut.remember("D-2", 3);
+
+        Job<String, String> job = new Job<String, String>("queue", "D-2", "body", new HashMap<String, Long>());
+        assertThat(sut.getAttempt(job)).isEqualTo(4);
+        assertThat(sut.getAttempt(job)).isEqualTo(1);
+    }
+
+    @Test
+    public void failuresDoNotForgetRememberedAttempts() throws Exception {
+
+        sut.remember("D-3", 2);
+
+        Job<String, String> job = new Job<String, String>("queue", "D-3", "body", null);
+        assertThat(sut.getFailures(job)).isEqualTo(2);
+        assertThat(sut.getFailures(job)).isEqualTo(2);
+        assertThat(sut.getAttempt(job)).isEqualTo(3);
+        assertThat(sut.getFailures(job)).isZero();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowBase() throws Exception {
+        RetryBackoff.validate(10, 5, TimeUnit.SECONDS);
+    }
+}
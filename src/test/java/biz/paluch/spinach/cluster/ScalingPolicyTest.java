@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class ScalingPolicyTest {
+
+    private ScalingPolicy sut = new ScalingPolicy(1, 3, 100, 10);
+
+    @Test
+    public void scalesUpAfterConsecutiveSamples() throws Exception {
+
+        assertThat(sut.next(1, 500)).isEqualTo(1);
+        assertThat(sut.next(1, 500)).isEqualTo(1);
+        assertThat(sut.next(1, 500)).isEqualTo(2);
+    }
+
+    @Test
+    public void scalesDownAfterConsecutiveSamples() throws Exception {
+
+        assertThat(sut.next(3, 0)).isEqualTo(3);
+        assertThat(sut.next(3, 0)).isEqualTo(3);
+        assertThat(sut.next(3, 0)).isEqualTo(2);
+    }
+
+    @Test
+    public void keepsSubscriptionsWithinHysteresis() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(sut.next(2, 100)).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void interruptedStreakResets() throws Exception {
+
+        sut.next(1, 500);
+        sut.next(1, 500);
+        sut.next(1, 50);
+
+        assertThat(sut.next(1, 500)).isEqualTo(1);
+    }
+
+    @Test
+    public void usesBacklogPerSubscription() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(sut.next(3, 250)).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void staysWithinBounds() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(sut.next(3, 10000)).isEqualTo(3);
+            assertThat(sut.next(1, 0)).isEqualTo(1);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOverlappingThresholds() throws Exception {
+        new ScalingPolicy(1, 3, 10, 10);
+    }
+}
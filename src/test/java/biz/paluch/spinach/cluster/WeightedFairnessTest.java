@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Mark Paluch
+ */
+public class WeightedFairnessTest {
+
+    private String[] queues = { "a", "b", "c" };
+    private WeightedFairness<String> sut = new WeightedFairness<String>(queues, Collections.singletonMap("a", 2));
+
+    @Test
+    public void keepsOrderWithoutReceivedJobs() throws Exception {
+        assertThat(sut.order(queues)).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void putsLeastServedQueueFirst() throws Exception {
+
+        sut.onReceived("a");
+        sut.onReceived("a");
+        sut.onReceived("a");
+        sut.onReceived("b");
+
+        assertThat(sut.order(queues)).containsExactly("c", "b", "a");
+    }
+
+    @Test
+    public void ordersSubsetOfQueues() throws Exception {
+
+        sut.onReceived("c");
+
+        assertThat(sut.order(new String[] { "c", "b" })).containsExactly("b", "c");
+    }
+
+    @Test
+    public void achievesWeightedShareForBackloggedQueues() throws Exception {
+
+        // simulate backlogged queues: each GETJOB returns one job of the first queue
+        for (int i = 0; i < 3000; i++) {
+            sut.onReceived(sut.order(queues)[0]);
+        }
+
+        Map<String, Double> shares = sut.getShares();
+        assertThat(shares.get("a")).isCloseTo(0.5, offset(0.01));
+        assertThat(shares.get("b")).isCloseTo(0.25, offset(0.01));
+        assertThat(shares.get("c")).isCloseTo(0.25, offset(0.01));
+    }
+
+    @Test
+    public void sharesAreZeroWithoutReceivedJobs() throws Exception {
+        assertThat(sut.getShares()).containsEntry("a", 0d).containsEntry("b", 0d).containsEntry("c", 0d);
+    }
+
+    @Test
+    public void tracksAddedQueues() throws Exception {
+
+        sut.onReceived("a");
+        sut.onReceived("b");
+        sut.onReceived("c");
+
+        assertThat(sut.order(new String[] { "a", "b", "c", "d" })).startsWith("d");
+
+        sut.onReceived("d");
+        sut.onReceived("d");
+
+        assertThat(sut.order(new String[] { "a", "b", "c", "d" })).containsExactly("a", "b", "c", "d");
+        assertThat(sut.getShares()).containsEntry("d", 0.4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveWeight() throws Exception {
+        new WeightedFairness<String>(queues, Collections.singletonMap("a", 0));
+    }
+}
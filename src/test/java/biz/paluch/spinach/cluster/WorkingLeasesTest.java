@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import rx.schedulers.Schedulers;
+
+/**
+ * @author Mark Paluch
+ */
+public class WorkingLeasesTest {
+
+    private final WorkingLeases<String, String> sut = new WorkingLeases<String, String>(Schedulers.computation(), null, 1,
+            TimeUnit.MINUTES, 0.5);
+
+    @After
+    public void after() throws Exception {
+        sut.close();
+    }
+
+    @Test
+    public void refreshTicks() throws Exception {
+
+        assertThat(WorkingLeases.refreshTicks(10, 0.5)).isEqualTo(50);
+        assertThat(WorkingLeases.refreshTicks(1, 0.25)).isEqualTo(2);
+        assertThat(WorkingLeases.refreshTicks(1, 0.01)).isEqualTo(1);
+    }
+
+    @Test
+    public void startAndCancel() throws Exception {
+
+        sut.start("D-1");
+        sut.start("D-2");
+        sut.start("D-1");
+        assertThat(sut.size()).isEqualTo(2);
+
+        sut.cancel("D-1");
+        sut.cancel("D-3");
+        assertThat(sut.size()).isEqualTo(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRefreshFraction() throws Exception {
+        WorkingLeases.validate(1, TimeUnit.SECONDS, 1);
+    }
+}
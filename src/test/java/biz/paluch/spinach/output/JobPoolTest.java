@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biz.paluch.spinach.output;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.lambdaworks.redis.codec.RedisCodec;
+import com.lambdaworks.redis.codec.Utf8StringCodec;
+
+import biz.paluch.spinach.api.Job;
+
+/**
+ * @author Mark Paluch
+ */
+public class JobPoolTest {
+
+    private static final ByteBuffer QUEUE = ascii("queue");
+    private static final ByteBuffer ID = ascii("D-dcb833cf-8YL1NT17e9+wsA/09NqxscQI-05a1");
+    private static final ByteBuffer BODY = ascii("body");
+    private static final ByteBuffer NACKS = ascii("nacks");
+    private static final ByteBuffer ADDITIONAL_DELIVERIES = ascii("additional-deliveries");
+
+    @Test
+    public void decodesJobsWithCounters() throws Exception {
+
+        JobPool<String, String> pool = new JobPool<String, String>(new Utf8StringCodec(), JobPool.DEFAULT_SIZE);
+        JobListOutput<String, String> output = new JobListOutput<String, String>(pool.getCodec(), pool);
+
+        decode(output, 3);
+
+        Job<String, String> job = output.get().get(0);
+        assertThat(job.getQueue()).isEqualTo("queue");
+        assertThat(job.getId()).isEqualTo("D-dcb833cf-8YL1NT17e9+wsA/09NqxscQI-05a1");
+        assertThat(job.getBody()).isEqualTo("body");
+        assertThat(job.getCounters()).containsEntry("nacks", 3L).containsEntry("additional-deliveries", 4L).hasSize(2);
+        assertThat(output.get()).hasSize(1);
+    }
+
+    @Test
+    public void recyclesReleasedJobs() throws Exception {
+
+        JobPool<String, String> pool = new JobPool<String, String>(new Utf8StringCodec(), JobPool.DEFAULT_SIZE);
+        JobListOutput<String, String> output = new JobListOutput<String, String>(pool.getCodec(), pool);
+
+        decode(output, 1);
+        Job<String, String> first = output.get().get(0);
+        pool.release(first);
+
+        assertThat(pool.getAvailable()).isEqualTo(1);
+        assertThat(first.getQueue()).isNull();
+        assertThat(first.getId()).isNull();
+        assertThat(first.getBody()).isNull();
+        assertThat(first.getCounters()).isEmpty();
+
+        output = new JobListOutput<String, String>(pool.getCodec(), pool);
+        decode(output, 2);
+
+        assertThat(output.get().get(0)).isSameAs(first);
+        assertThat(first.getCounters()).containsEntry("nacks", 2L);
+        assertThat(pool.getAvailable()).isZero();
+    }
+
+    @Test
+    public void ignoresForeignAndReleasedJobs() throws Exception {
+
+        JobPool<String, String> pool = new JobPool<String, String>(new Utf8StringCodec(), 1);
+        JobPool<String, String> other = new JobPool<String, String>(new Utf8StringCodec(), 1);
+        JobListOutput<String, String> output = new JobListOutput<String, String>(other.getCodec(), other);
+        decode(output, 0);
+
+        pool.release(new Job<String, String>("queue", "D-1", "body", null));
+        pool.release(output.get().get(0));
+        assertThat(pool.getAvailable()).isZero();
+
+        other.release(output.get().get(0));
+        other.release(output.get().get(0));
+        assertThat(other.getAvailable()).isEqualTo(1);
+    }
+
+    @Test
+    public void identifiesPooledJobs() throws Exception {
+
+        JobPool<String, String> pool = new JobPool<String, String>(new Utf8StringCodec(), 1);
+        JobListOutput<String, String> output = new JobListOutput<String, String>(pool.getCodec(), pool);
+        decode(output, 0);
+
+        assertThat(JobPool.isPooled(output.get().get(0))).isTrue();
+        assertThat(JobPool.isPooled(new Job<String, String>("queue", "D-1", "body", null))).isFalse();
+    }
+
+    @Test
+    public void allocatesOnlyJobIdPerPooledJob() throws Exception {
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        RedisCodec<String, String> codec = new ConstantCodec();
+        JobPool<String, String> pool = new JobPool<String, String>(codec, JobPool.DEFAULT_SIZE);
+
+        // warm up
+        consume(codec, pool, 10000);
+        consume(codec, null, 10000);
+
+        long start = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        int jobs = consume(codec, pool, 100000);
+        long pooled = (threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start) / jobs;
+
+        start = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        jobs = consume(codec, null, 100000);
+        long unpooled = (threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start) / jobs;
+
+        // the job id remains: a String, its 40 characters and the char[] used to decode it
+        assertThat(pooled).isLessThan(256).isLessThan(unpooled / 2);
+    }
+
+    /**
+     * Decode {@code count} jobs in replies of 100 jobs. Pooled jobs are released after the reply is handled.
+     */
+    private static int consume(RedisCodec<String, String> codec, JobPool<String, String> pool, int count) {
+
+        for (int i = 0; i < count / 100; i++) {
+
+            JobListOutput<String, String> output = pool != null ? new JobListOutput<String, String>(codec, pool)
+                    : new JobListOutput<String, String>(codec);
+
+            for (int j = 0; j < 100; j++) {
+                decode(output, j);
+            }
+
+            List<Job<String, String>> jobs = output.get();
+            for (int j = 0; j < jobs.size(); j++) {
+                if (pool != null) {
+                    pool.release(jobs.get(j));
+                }
+            }
+        }
+        return count / 100 * 100;
+    }
+
+    private static void decode(JobListOutput<String, String> output, long nacks) {
+
+        output.set(rewind(QUEUE));
+        output.set(rewind(ID));
+        output.set(rewind(BODY));
+        output.set(rewind(NACKS));
+        output.set(nacks);
+        output.set(rewind(ADDITIONAL_DELIVERIES));
+        output.set(nacks + 1);
+        output.complete(2);
+        output.complete(1);
+    }
+
+    private static ByteBuffer rewind(ByteBuffer buffer) {
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static ByteBuffer ascii(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Codec that decodes every key and value to the same instance to measure the allocations of the output itself.
+     */
+    private static class ConstantCodec implements RedisCodec<String, String> {
+
+        @Override
+        public String decodeKey(ByteBuffer bytes) {
+            return "queue";
+        }
+
+        @Override
+        public String decodeValue(ByteBuffer bytes) {
+            return "body";
+        }
+
+        @Override
+        public ByteBuffer encodeKey(String key) {
+            return ascii(key);
+        }
+
+        @Override
+        public ByteBuffer encodeValue(String value) {
+            return ascii(value);
+        }
+    }
+}